@@ -15,21 +15,39 @@ import dagger.Module
 import dagger.android.AndroidInjection
 import dagger.android.ContributesAndroidInjector
 import io.reactivex.Maybe
+import io.reactivex.Single
 import io.reactivex.disposables.Disposable
 import org.opensilk.dagger2.ForApp
 import org.opensilk.media.*
 import org.opensilk.media.database.MediaDAO
 import timber.log.Timber
 import java.net.SocketTimeoutException
+import java.util.concurrent.TimeUnit
 import javax.inject.Inject
 
 private const val JOB_LOOKUP_START = 1000
 private const val JOB_LOOKUP_END = 1999
 private const val JOB_DOWNLOAD_START = 2000
 private const val JOB_DOWNLOAD_END = 2999
+private const val JOB_MAINTENANCE = 3000
+private const val JOB_CRAWL_START = 4000
+private const val JOB_CRAWL_END = 4999
+
+private const val LOOKUP_BATCH_SECONDS = 2L
+private const val LOOKUP_BATCH_SIZE = 50
+private const val LOOKUP_CONCURRENCY = 4
+
+private val MAINTENANCE_INTERVAL_MS = TimeUnit.DAYS.toMillis(1)
+/**
+ * How long a row stays hidden before maintenance deletes it, long enough to
+ * ride out a server or card being away for a while
+ */
+private val HIDDEN_RETENTION_MS = TimeUnit.DAYS.toMillis(30)
 
 private fun Int.isLookupId(): Boolean = this in JOB_LOOKUP_START..JOB_LOOKUP_END
 private fun Int.isDownloadId(): Boolean = this in JOB_DOWNLOAD_START..JOB_DOWNLOAD_END
+private fun Int.isMaintenanceId(): Boolean = this == JOB_MAINTENANCE
+private fun Int.isCrawlId(): Boolean = this in JOB_CRAWL_START..JOB_CRAWL_END
 
 class AppJobScheduler @Inject constructor(
         @ForApp private val mContext: Context
@@ -63,6 +81,53 @@ class AppJobScheduler @Inject constructor(
         mScheduler.schedule(job)
     }
 
+    /**
+     * Schedules the daily database maintenance, unless it already is
+     */
+    fun scheduleMaintenance() {
+        if (mScheduler.allPendingJobs.any { it.id == JOB_MAINTENANCE }) {
+            return
+        }
+        val comp = ComponentName(mContext, AppJobService::class.java)
+        val job = JobInfo.Builder(JOB_MAINTENANCE, comp)
+                .setPeriodic(MAINTENANCE_INTERVAL_MS)
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .build()
+        mScheduler.schedule(job)
+    }
+
+    /**
+     * Schedules a crawl of [deviceId], unless one is already pending or running for it,
+     * rescheduling would stop a running crawl. Crawls wait for an idle, charging device
+     * so they don't take the device's browse slots from the ui, and pick up where the
+     * last left off so this is cheap once a device is indexed.
+     */
+    fun scheduleCrawl(deviceId: UpnpDeviceId) {
+        val id = getCrawlId(deviceId)
+        //running jobs are still pending until they finish
+        if (mScheduler.allPendingJobs.any { it.id == id }) {
+            return
+        }
+        val extras = PersistableBundle()
+        extras.putMediaId(deviceId)
+        val comp = ComponentName(mContext, AppJobService::class.java)
+        val job = JobInfo.Builder(id, comp)
+                .setExtras(extras)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .build()
+        mScheduler.schedule(job)
+    }
+
+    /**
+     * Same id for a device every time, so it only has one crawl pending
+     */
+    private fun getCrawlId(deviceId: UpnpDeviceId): Int =
+            JOB_CRAWL_START + (deviceId.deviceId.hashCode() and Int.MAX_VALUE) %
+                    (JOB_CRAWL_END - JOB_CRAWL_START + 1)
+
     @Synchronized
     private fun getNextLookupId(): Int {
         var next = mPrefs.getInt("lookup_id", JOB_LOOKUP_START) + 1
@@ -99,6 +164,7 @@ class AppJobService : JobService() {
     @Inject lateinit var mDatabaseClient: MediaDAO
     @Inject lateinit var mTvLookup: LookupTVDb
     @Inject lateinit var mFoldersLoader: FoldersLoader
+    @Inject lateinit var mUpnpCrawler: UpnpCrawler
 
     private lateinit var mDownloadManager: DownloadManager
     private lateinit var mWakelock: PowerManager.WakeLock
@@ -129,10 +195,16 @@ class AppJobService : JobService() {
         val id = params.jobId
         return when {
             id.isLookupId() ||
-            id.isDownloadId() -> {
+            id.isDownloadId() ||
+            id.isMaintenanceId() -> {
                 jobSubscriptions.remove(id)?.dispose()
                 false
             }
+            id.isCrawlId() -> {
+                jobSubscriptions.remove(id)?.dispose()
+                //the next one resumes from what this stored
+                true
+            }
             else -> false
         }
     }
@@ -143,6 +215,8 @@ class AppJobService : JobService() {
         return when {
             id.isLookupId() -> subscribeLookupRelated(params)
             id.isDownloadId() -> subscribeDownload(params)
+            id.isMaintenanceId() -> subscribeMaintenance(params)
+            id.isCrawlId() -> subscribeCrawl(params)
             else -> false
         }
     }
@@ -177,8 +251,9 @@ class AppJobService : JobService() {
 
     private fun subscribeVideoLookupRelated(mediaId: VideoId, params: JobParameters) {
         jobSubscriptions.remove(params.jobId)?.dispose()
-        val sub = mDatabaseClient.playableSiblingVideos(mediaId)
-                .flatMapMaybe<MediaRefWithEpisode> { ref ->
+        //pull siblings only as lookups finish so large folders are not read into memory
+        val sub = mDatabaseClient.playableSiblingVideosFlowable(mediaId)
+                .flatMapMaybe<MediaRefWithEpisode>({ ref ->
                     val title = ref.meta.originalTitle.elseIfBlank(ref.meta.title)
                     val name = extractSeriesName(title)
                     val seasonNum = extractSeasonNumber(title)
@@ -190,16 +265,23 @@ class AppJobService : JobService() {
                             lookupName = name, seasonNumber = seasonNum, episodeNumber = episodeNum))
                             .firstElement()
                             .map { MediaRefWithEpisode(ref, it) }
-                }
+                }, false, LOOKUP_CONCURRENCY)
+                //write results in batches so observers see one change set per batch
+                .buffer(LOOKUP_BATCH_SECONDS, TimeUnit.SECONDS, AppSchedulers.background, LOOKUP_BATCH_SIZE)
+                .filter { it.isNotEmpty() }
                 .subscribeOn(AppSchedulers.networkIo)
-                .subscribe({ vwe ->
-                    val ref = vwe.mediaRef
-                    val epi = vwe.episodeRef
-                    when (ref) {
-                        is VideoRef -> {
-                            mDatabaseClient.setVideoTvEpisodeId(ref.id, epi.id)
+                .subscribe({ batch ->
+                    mDatabaseClient.batchChanges {
+                        batch.forEach { vwe ->
+                            val ref = vwe.mediaRef
+                            val epi = vwe.episodeRef
+                            when (ref) {
+                                is VideoRef -> {
+                                    mDatabaseClient.setVideoTvEpisodeId(ref.id, epi.id)
+                                }
+                                else -> TODO("unhandled media ref $ref")
+                            }
                         }
-                        else -> TODO("unhandled media ref $ref")
                     }
                 }, { err ->
                     Timber.d(err, "Unsuccessful lookup for videos related to $mediaId")
@@ -266,6 +348,37 @@ class AppJobService : JobService() {
         jobSubscriptions.put(params.jobId, sub)
     }
 
+    private fun subscribeMaintenance(params: JobParameters): Boolean {
+        jobSubscriptions.remove(params.jobId)?.dispose()
+        val sub = Single.fromCallable {
+            val rows = mDatabaseClient.purgeHidden(System.currentTimeMillis() - HIDDEN_RETENTION_MS)
+            val bytes = mDatabaseClient.optimize()
+            Pair(rows, bytes)
+        }.subscribeOn(AppSchedulers.diskIo).subscribe({ (rows, bytes) ->
+            Timber.i("Maintenance purged $rows hidden rows and reclaimed $bytes bytes")
+            jobFinished(params, false)
+        }, { e ->
+            Timber.w(e, "Maintenance failed")
+            jobFinished(params, false)
+        })
+        jobSubscriptions.put(params.jobId, sub)
+        return true
+    }
+
+    private fun subscribeCrawl(params: JobParameters): Boolean {
+        val deviceId = params.extras.getMediaId() as? UpnpDeviceId ?: return false
+        jobSubscriptions.remove(params.jobId)?.dispose()
+        val sub = mUpnpCrawler.crawl(deviceId).subscribe({ result ->
+            Timber.i("Crawled $deviceId: $result")
+            jobFinished(params, false)
+        }, { e ->
+            Timber.w(e, "Unable to crawl $deviceId")
+            jobFinished(params, false)
+        })
+        jobSubscriptions.put(params.jobId, sub)
+        return true
+    }
+
     private fun resolveFolderName(folderRef: FolderRef): String = folderRef.meta.title
 
     private fun resolveFilename(videoRef: VideoRef): String {
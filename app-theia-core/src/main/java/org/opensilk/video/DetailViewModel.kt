@@ -7,7 +7,6 @@ import io.reactivex.disposables.CompositeDisposable
 import io.reactivex.functions.Consumer
 import org.opensilk.media.*
 import org.opensilk.media.database.MediaDAO
-import org.opensilk.media.database.VideoChange
 import org.opensilk.reactivex2.subscribeIgnoreError
 import timber.log.Timber
 import javax.inject.Inject
@@ -49,47 +48,45 @@ class DetailViewModel
     }
 
     private fun subscribeVideoRef(mediaId: VideoId) {
-        //fetch mediaref
-        val o = mClient.changesObservable
-                .filter { it is VideoChange && it.videoId == mediaId }
+        //fetch the video and its overview together
+        val o = mClient.changesFor(mediaId)
                 .map { true }
                 .startWith(true)
                 .flatMapMaybe {
-                    mClient.getMediaRef(mediaId)
-                            .map { it as VideoRef }
+                    mClient.getVideoDetail(mediaId)
                             .subscribeOn(AppSchedulers.diskIo)
                 }
                 .publish()
         //mediaref
-        mDisposables.add(o.subscribeIgnoreError(Consumer {
-            mediaRef = it
-            hasDescription.postValue(it.tvEpisodeId != null || it.movieId != null)
+        mDisposables.add(o.subscribeIgnoreError(Consumer { detail ->
+            val ref = detail.ref
+            mediaRef = ref
+            hasDescription.postValue(ref.tvEpisodeId != null || ref.movieId != null)
         }))
         //overview
-        mDisposables.add(o.flatMapMaybe { meta ->
-            mClient.getVideoOverview(meta.id).defaultIfEmpty("").map { overview ->
-                VideoDescInfo(meta.meta.title, meta.meta.subtitle, overview)
-            }.subscribeOn(AppSchedulers.diskIo)
+        mDisposables.add(o.map { detail ->
+            VideoDescInfo(detail.ref.meta.title, detail.ref.meta.subtitle, detail.overview)
         }.subscribeIgnoreError(Consumer {
             videoDescription.postValue(it)
         }))
         //fileinfo
-        mDisposables.add(o.map { meta ->
-            VideoFileInfo(meta.meta.originalTitle.elseIfBlank(meta.meta.title), meta.meta.size, meta.meta.duration)
+        mDisposables.add(o.map { detail ->
+            val meta = detail.ref.meta
+            VideoFileInfo(meta.originalTitle.elseIfBlank(meta.title), meta.size, meta.duration)
         }.subscribeIgnoreError(Consumer {
             fileInfo.postValue(it)
         }))
         //lastPosition
-        mDisposables.add(o.filter { meta ->
-            meta.resumeInfo != null
-        }.map { meta ->
-            meta.resumeInfo
+        mDisposables.add(o.filter { detail ->
+            detail.ref.resumeInfo != null
+        }.map { detail ->
+            detail.ref.resumeInfo
         }.subscribeIgnoreError(Consumer {
             resumeInfo.postValue(it)
         }))
         //poster
         mDisposables.add(o.map {
-            it.meta.artworkUri
+            it.ref.meta.artworkUri
         }.filter {
             it != Uri.EMPTY
         }.subscribeIgnoreError(Consumer {
@@ -97,7 +94,7 @@ class DetailViewModel
         }))
         //backdrop
         mDisposables.add(o.map {
-            it.meta.backdropUri
+            it.ref.meta.backdropUri
         }.filter {
             it != Uri.EMPTY
         }.subscribeIgnoreError(Consumer {
@@ -5,7 +5,6 @@ import io.reactivex.Single
 import org.opensilk.media.*
 import org.opensilk.media.database.DeviceChange
 import org.opensilk.media.database.MediaDAO
-import java.util.concurrent.TimeUnit
 import javax.inject.Inject
 
 /**
@@ -16,10 +15,7 @@ class DevicesLoader
         private val mDatabaseClient: MediaDAO
 ){
     fun devices(includeDocuments: Boolean = false): Observable<out List<MediaDeviceRef>> =
-            mDatabaseClient.changesObservable
-                    .filter { it is DeviceChange }
-                    //protect flood, but remain responsive
-                    .sample(1, TimeUnit.SECONDS, AppSchedulers.background)
+            mDatabaseClient.deviceChanges
                     .startWith(DeviceChange())
                     .switchMapSingle {
                         if (includeDocuments) {
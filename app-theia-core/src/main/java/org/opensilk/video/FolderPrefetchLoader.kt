@@ -1,5 +1,7 @@
 package org.opensilk.video
 
+import io.reactivex.Maybe
+import io.reactivex.Single
 import io.reactivex.disposables.Disposable
 import io.reactivex.exceptions.Exceptions
 import io.reactivex.functions.Consumer
@@ -12,6 +14,16 @@ import org.opensilk.media.loader.storage.StorageLoader
 import timber.log.Timber
 import javax.inject.Inject
 
+/**
+ * SystemUpdateIDs are unsigned, this never matches one
+ */
+private const val UNKNOWN_UPDATE_ID = -1L
+
+/**
+ * Children of a folder shown before the rest of it is browsed
+ */
+private const val FIRST_CHILDREN = 50
+
 /**
  * Pre-fetches folders and inserts them into the database.
  *
@@ -24,25 +36,44 @@ class FolderPrefetchLoader @Inject constructor(
         private val mDatabaseClient: MediaDAO,
         private val mBrowseLoader: UpnpBrowseLoader,
         private val mDocumentLoader: DocumentLoader,
-        private val mStorageLoader: StorageLoader
+        private val mStorageLoader: StorageLoader,
+        private val mDevicesObserver: UpnpDevicesObserver
 ) {
 
     /**
-     * Fetch children of [deviceId] and insert into database
+     * Fetch children of [deviceId] and insert into database,
+     * [force] fetches upnp containers even if unchanged
      */
-    fun prefetch(deviceId: MediaDeviceId, now: Boolean = false): Disposable = prefetch_(deviceId, now)
+    fun prefetch(deviceId: MediaDeviceId, now: Boolean = false, force: Boolean = false): Disposable =
+            prefetch_(deviceId, now, force)
 
     /**
-     * Fetch children of [folderId] and insert into database
+     * Fetch children of [folderId] and insert into database,
+     * [force] fetches upnp containers even if unchanged
      */
-    fun prefetch(folderId: FolderId, now: Boolean = false): Disposable = prefetch_(folderId, now)
+    fun prefetch(folderId: FolderId, now: Boolean = false, force: Boolean = false): Disposable =
+            prefetch_(folderId, now, force)
 
     private val mErrorSubject = PublishSubject.create<String>()
 
     fun errors(consumer: Consumer<String>): Disposable
             = mErrorSubject.hide().distinctUntilChanged().subscribe(consumer)
 
-    private fun prefetch_(mediaId: MediaId, now: Boolean = false): Disposable = when (mediaId) {
+    private fun prefetch_(mediaId: MediaId, now: Boolean, force: Boolean): Disposable = when (mediaId) {
+        is UpnpDeviceId -> browseIfChanged(mediaId, force)
+        is UpnpFolderId -> browseIfChanged(mediaId, force)
+        else -> fetch(mediaId).doOnSuccess { itemList -> insertItems(mediaId, itemList) }.toMaybe()
+    }.subscribeOn(if (now) AppSchedulers.newThread else AppSchedulers.prefetch).subscribe({ _ ->
+        postChange(mediaId)
+    }, { e ->
+        Timber.e(e, "Unable to fetch items for $mediaId")
+        mErrorSubject.onNext(e?.message ?: "Error loading items")
+    }, {
+        //skipped, still tell observers so they stop refreshing
+        postChange(mediaId)
+    })
+
+    private fun fetch(mediaId: MediaId): Single<out List<MediaRef>> = when (mediaId) {
         is UpnpDeviceId -> mBrowseLoader.directChildren(upnpFolderId = mediaId, wantVideoItems = true)
         is StorageDeviceId -> mStorageLoader.directChildren(parentId = mediaId, wantVideoItems = true)
 
@@ -50,28 +81,58 @@ class FolderPrefetchLoader @Inject constructor(
         is DocDirectoryId -> mDocumentLoader.directChildren(documentId = mediaId, wantVideoItems = true)
         is StorageFolderId -> mStorageLoader.directChildren(parentId = mediaId, wantVideoItems = true)
         else -> TODO("$mediaId")
-    }.subscribeOn(if (now) AppSchedulers.newThread else AppSchedulers.prefetch).subscribe({ itemList ->
-        insertItems(mediaId, itemList)
-        postChange(mediaId)
-    }, { e ->
-        Timber.e(e, "Unable to fetch items for $mediaId")
-        mErrorSubject.onNext(e?.message ?: "Error loading items")
-    })
+    }
 
-    private fun insertItems(parentId: MediaId, itemList: List<MediaRef>) {
-        Timber.d("Inserting ${itemList.size} children of $parentId")
-        mDatabaseClient.hideChildrenOf(parentId)
-        itemList.forEach { item ->
-            when (item) {
-                is UpnpFolderRef -> mDatabaseClient.addUpnpFolder(item)
-                is UpnpVideoRef -> mDatabaseClient.addUpnpVideo(item)
-                is StorageFolderRef -> mDatabaseClient.addStorageFolder(item)
-                is StorageVideoRef -> mDatabaseClient.addStorageVideo(item)
-                is DocDirectoryRef -> mDatabaseClient.addDocDirectory(item)
-                is DocVideoRef -> mDatabaseClient.addDocVideo(item)
-                else -> TODO("$item")
+    /**
+     * Browses [containerId], adding its first children as soon as they arrive
+     * so a large folder isn't blank until every page is in. The rest stay
+     * visible until the full list replaces them.
+     */
+    private fun browse(containerId: UpnpContainerId): Single<out List<MediaRef>> = Single.defer {
+        val children = ArrayList<MediaRef>()
+        mBrowseLoader.children(upnpFolderId = containerId, wantVideoItems = true).doOnNext { ref ->
+            children.add(ref)
+            if (children.size == FIRST_CHILDREN && mDatabaseClient.addChildren(ArrayList(children))) {
+                postChange(containerId)
             }
+        }.ignoreElements().toSingle { children }
+    }
+
+    /**
+     * Browses [containerId] unless it hasn't changed on the server since we last did.
+     * The SystemUpdateID is read before the browse, so a change during it
+     * is caught next time, and recorded once the children are inserted.
+     * [force] browses anyway, for servers that don't bump the SystemUpdateID.
+     */
+    private fun browseIfChanged(containerId: UpnpContainerId, force: Boolean): Maybe<out List<MediaRef>> =
+            mDevicesObserver.systemUpdateId(UpnpDeviceId(containerId.deviceId))
+                    .onErrorReturnItem(UNKNOWN_UPDATE_ID)
+                    .flatMapMaybe { updateId ->
+                        mDatabaseClient.getUpnpBrowseUpdateId(containerId)
+                                .toSingle(UNKNOWN_UPDATE_ID)
+                                .flatMapMaybe { browsedAt ->
+                                    if (!force && updateId != UNKNOWN_UPDATE_ID && browsedAt == updateId) {
+                                        Timber.d("Skipping browse of unchanged $containerId")
+                                        Maybe.empty<List<MediaRef>>()
+                                    } else {
+                                        browse(containerId).map { itemList ->
+                                            if (insertItems(containerId, itemList)
+                                                    && updateId != UNKNOWN_UPDATE_ID) {
+                                                mDatabaseClient.setUpnpBrowseUpdateId(containerId, updateId)
+                                            }
+                                            itemList
+                                        }.toMaybe()
+                                    }
+                                }
+                    }
+
+    private fun insertItems(parentId: MediaId, itemList: List<MediaRef>): Boolean {
+        Timber.d("Inserting ${itemList.size} children of $parentId")
+        if (!mDatabaseClient.replaceChildrenOf(parentId, itemList)) {
+            Timber.w("Failed to replace children of $parentId")
+            return false
         }
+        return true
     }
 
     private fun postChange(parentId: MediaId) {
@@ -4,8 +4,8 @@ import android.arch.lifecycle.*
 import io.reactivex.disposables.CompositeDisposable
 import io.reactivex.disposables.Disposables
 import io.reactivex.functions.Consumer
+import io.reactivex.subjects.PublishSubject
 import org.opensilk.media.*
-import org.opensilk.media.database.DeviceChange
 import org.opensilk.media.database.FolderChange
 import org.opensilk.media.database.MediaDAO
 import timber.log.Timber
@@ -30,6 +30,11 @@ class FolderViewModel @Inject constructor(
     private var mPrefetchDisposable = Disposables.disposed()
     private val mDisposables = CompositeDisposable()
     private val mChildrenPrefetchOnce = Once()
+    private val mWindowMoves = PublishSubject.create<WindowMove>()
+    @Volatile private var mHasMoreChildren = false
+    @Volatile private var mHasPreviousChildren = false
+    //set while a window asked for by loadMoreChildren or loadPreviousChildren is on its way
+    private val mMovingWindows = AtomicBoolean(false)
 
     override fun onCleared() {
         super.onCleared()
@@ -46,8 +51,12 @@ class FolderViewModel @Inject constructor(
         subscribeActions()
     }
 
+    /**
+     * [force] is for refreshes the user asked for, unchanged upnp containers
+     * are browsed anyway since some servers never bump their SystemUpdateID
+     */
     //@OnLifecycleEvent(Lifecycle.Event.ON_START)
-    fun runPrefetch() {
+    fun runPrefetch(force: Boolean = false) {
         if (mMediaId == NoMediaId) {
             throw IllegalStateException("MediaId not set")
         }
@@ -56,8 +65,8 @@ class FolderViewModel @Inject constructor(
         if (mPrefetchDisposable.isDisposed) {
             mDisposables.remove(mPrefetchDisposable)
             mPrefetchDisposable = when (mediaId) {
-                is MediaDeviceId -> mPrefetchLoader.prefetch(mediaId, true)
-                is FolderId -> mPrefetchLoader.prefetch(mediaId, true)
+                is MediaDeviceId -> mPrefetchLoader.prefetch(mediaId, true, force)
+                is FolderId -> mPrefetchLoader.prefetch(mediaId, true, force)
                 else -> TODO("$mediaId")
             }
             mDisposables.add(mPrefetchDisposable)
@@ -87,10 +96,14 @@ class FolderViewModel @Inject constructor(
     private fun subscribeChildren() {
         val mediaId = mMediaId
         mDisposables.add(when (mediaId) {
-            is MediaDeviceId -> mFolderLoader.directChildren(mediaId)
-            is FolderId -> mFolderLoader.directChildren(mediaId)
+            is MediaDeviceId -> mFolderLoader.pagedChildren(mediaId, mWindowMoves)
+            is FolderId -> mFolderLoader.pagedChildren(mediaId, mWindowMoves)
             else -> TODO("$mediaId")
-        }.subscribe({ items ->
+        }.subscribe({ windows ->
+            mMovingWindows.set(false)
+            mHasMoreChildren = windows.hasMore
+            mHasPreviousChildren = windows.hasPrevious
+            val items = windows.items
             //ignore the first list if it is empty
             if (!isFirstLoad.compareAndSet(true, false) || items.isNotEmpty()) {
                 folderItems.postValue(items)
@@ -102,6 +115,26 @@ class FolderViewModel @Inject constructor(
         }))
     }
 
+    /**
+     * Loads the next window of children, call as the list nears its end.
+     * Calls while a window is loading are ignored.
+     */
+    fun loadMoreChildren() {
+        if (mHasMoreChildren && mMovingWindows.compareAndSet(false, true)) {
+            mWindowMoves.onNext(WindowMove.NEXT)
+        }
+    }
+
+    /**
+     * Loads back the window before the first one held, call as the list nears its start.
+     * Calls while a window is loading are ignored.
+     */
+    fun loadPreviousChildren() {
+        if (mHasPreviousChildren && mMovingWindows.compareAndSet(false, true)) {
+            mWindowMoves.onNext(WindowMove.PREVIOUS)
+        }
+    }
+
     private fun subscribeTitle() {
         val mediaId = mMediaId
         mDisposables.add(mDatabaseClient.getMediaRef(mediaId).map {
@@ -113,12 +146,7 @@ class FolderViewModel @Inject constructor(
 
     private fun subscribeActions() {
         val mediaId = mMediaId
-        mDisposables.add(mDatabaseClient.changesObservable
-                .filter { when (it) {
-                    is FolderChange -> it.folderId == mediaId
-                    is DeviceChange -> it.deviceId == mediaId
-                    else -> false
-                } }
+        mDisposables.add(mDatabaseClient.changesFor(mediaId)
                 .startWith(FolderChange(NoFolderId))
                 .switchMapSingle {
                     mDatabaseClient.checkPinned(mediaId).map { pinned ->
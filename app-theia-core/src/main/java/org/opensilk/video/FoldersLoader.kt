@@ -2,11 +2,123 @@ package org.opensilk.video
 
 import io.reactivex.Observable
 import io.reactivex.Single
+import io.reactivex.functions.BiFunction
 import org.opensilk.media.*
 import org.opensilk.media.database.*
-import java.util.concurrent.TimeUnit
 import javax.inject.Inject
 
+/**
+ * Number of videos in each window of [FoldersLoader.pagedChildren]
+ */
+const val CHILDREN_PAGE_SIZE = 200
+
+/**
+ * Windows of [FoldersLoader.pagedChildren] held at once, the rest are dropped
+ */
+const val CHILDREN_MAX_WINDOWS = 3
+
+/**
+ * Which way [FoldersLoader.pagedChildren] slides its windows
+ */
+enum class WindowMove {
+    NEXT,
+    PREVIOUS
+}
+
+/**
+ * The children held by [FoldersLoader.pagedChildren]: [items] are windows [first] onwards,
+ * [hasPrevious] and [hasMore] tell if there are windows before and after them.
+ */
+data class ChildrenWindows(val items: List<MediaRef>, val first: Int,
+                           val hasPrevious: Boolean, val hasMore: Boolean)
+
+/**
+ * Keeps at most [maxWindows] consecutive windows of a folder. Only the key each window
+ * starts after is remembered for windows that were dropped, so memory follows the
+ * windows held and not how far the list was scrolled. Not thread safe, calls must
+ * not overlap.
+ *
+ * @param load loads window index after the key, window 0 also has the sub folders
+ */
+internal class ChildrenWindowSet(
+        private val maxWindows: Int,
+        private val load: (index: Int, after: PageKey?) -> Page<MediaRef>
+) {
+    //key each window reached so far starts after, window 0 starts at the beginning
+    private val mStarts = arrayListOf<PageKey?>(null)
+    private val mWindows = ArrayList<List<MediaRef>>()
+    private var mFirst = 0
+    private var mHasMore = false
+
+    /**
+     * Reloads the windows held, or the first window if none are
+     */
+    fun reload(): ChildrenWindows {
+        val count = maxOf(1, mWindows.size)
+        mWindows.clear()
+        while (append(mFirst + mWindows.size) && mWindows.size < count) {
+            //keep going
+        }
+        if (mFirst > 0 && mWindows.all { it.isEmpty() }) {
+            //everything from here on is gone
+            mFirst = 0
+            mWindows.clear()
+            append(0)
+        }
+        return snapshot()
+    }
+
+    /**
+     * Slides one window, if there is one that way
+     */
+    fun move(move: WindowMove): ChildrenWindows = when (move) {
+        WindowMove.NEXT -> if (mHasMore) next() else snapshot()
+        WindowMove.PREVIOUS -> if (mFirst > 0) previous() else snapshot()
+    }
+
+    private fun next(): ChildrenWindows {
+        append(mFirst + mWindows.size)
+        if (mWindows.size > maxWindows) {
+            mWindows.removeAt(0)
+            mFirst++
+        }
+        return snapshot()
+    }
+
+    private fun previous(): ChildrenWindows {
+        mFirst--
+        //a change moving the boundaries queues a reload, which realigns the rest
+        mWindows.add(0, load(mFirst, mStarts[mFirst]).items)
+        if (mWindows.size > maxWindows) {
+            mWindows.removeAt(mWindows.size - 1)
+            mHasMore = true
+        }
+        return snapshot()
+    }
+
+    /**
+     * Loads window [index] after the last one held
+     *
+     * @return true if there is a window after it
+     */
+    private fun append(index: Int): Boolean {
+        val page = load(index, mStarts[index])
+        mWindows.add(page.items)
+        //keys past this window are stale, they are found again on the way down
+        while (mStarts.size > index + 1) {
+            mStarts.removeAt(mStarts.size - 1)
+        }
+        if (page.next != null) {
+            mStarts.add(page.next)
+        }
+        mHasMore = page.next != null
+        return mHasMore
+    }
+
+    private fun snapshot() = ChildrenWindows(mWindows.flatten(), mFirst, mFirst > 0, mHasMore)
+
+}
+
 /**
  * The loader for the folder activity. This pulls folders and videos from
  * the database, inserted by the [FolderPrefetchLoader]. We initiate reloads whenever any
@@ -25,8 +137,6 @@ class FoldersLoader
         val items = directChildrenSingle(deviceId)
         return changesForDevice(deviceId)
                 .mergeWith(changesForDeviceChildren(deviceId))
-                //protect flood, but remain responsive
-                .sample(1, TimeUnit.SECONDS, AppSchedulers.background)
                 .startWith(Change.SELF)
                 .switchMapSingle { _ ->
                     items.subscribeOn(AppSchedulers.diskIo)
@@ -40,14 +150,61 @@ class FoldersLoader
         val items = directChildrenSingle(folderId)
         return changesForFolder(folderId)
                 .mergeWith(changesForFolderChildren(folderId))
-                //protect flood, but remain responsive
-                .sample(1, TimeUnit.SECONDS, AppSchedulers.background)
                 .startWith(Change.SELF)
                 .switchMapSingle { _ ->
                     items.subscribeOn(AppSchedulers.diskIo)
                 }
     }
 
+    /**
+     * Retrieve direct children a window at a time, for containers too large to hold at once.
+     * The first window has the sub folders and the first [pageSize] videos, each of [moves]
+     * loads the window after or before those held, dropping one from the other end once
+     * [maxWindows] are held. Changes under the parent reload only the windows held, so a
+     * scrolled list keeps its place. This observable never completes
+     */
+    fun pagedChildren(parentId: MediaId, moves: Observable<WindowMove>,
+                      pageSize: Int = CHILDREN_PAGE_SIZE,
+                      maxWindows: Int = CHILDREN_MAX_WINDOWS): Observable<ChildrenWindows> = Observable.defer {
+        val windows = ChildrenWindowSet(maxWindows, { index, after ->
+            (if (index == 0) firstPage(parentId, pageSize) else videosPage(parentId, after, pageSize))
+                    .blockingGet()
+        })
+        val reloads = changesFor(parentId)
+                .mergeWith(changesForChildren(parentId))
+                .startWith(Change.SELF)
+                .map { _ -> { windows.reload() } }
+        //one at a time so the windows are never touched by two steps at once
+        reloads.mergeWith(moves.map { move -> { windows.move(move) } }).concatMap { step ->
+            Single.fromCallable<ChildrenWindows> { step() }.subscribeOn(AppSchedulers.diskIo).toObservable()
+        }
+    }
+
+    /**
+     * Sub folders and the first videos, runs on the calling thread
+     */
+    private fun firstPage(parentId: MediaId, pageSize: Int): Single<Page<MediaRef>> {
+        return when (parentId) {
+            is UpnpContainerId -> mDatabaseClient.getUpnpFoldersUnder(parentId)
+            is DocDirectoryId -> mDatabaseClient.getDocDirectoryUnder(parentId)
+            is StorageContainerId -> mDatabaseClient.getStorageFoldersUnder(parentId)
+            else -> TODO("$parentId")
+        }.map<MediaRef> { it }.toList().zipWith(videosPage(parentId, null, pageSize),
+                BiFunction { folders, videos -> Page(folders + videos.items, videos.next) })
+    }
+
+    /**
+     * Videos after [after], runs on the calling thread
+     */
+    private fun videosPage(parentId: MediaId, after: PageKey?, pageSize: Int): Single<Page<MediaRef>> {
+        return when (parentId) {
+            is UpnpContainerId -> mDatabaseClient.getUpnpVideosUnder(parentId, after, pageSize)
+            is DocDirectoryId -> mDatabaseClient.getDocVideosUnder(parentId, after, pageSize)
+            is StorageContainerId -> mDatabaseClient.getStorageVideosUnder(parentId, after, pageSize)
+            else -> TODO("$parentId")
+        }.map<Page<MediaRef>> { it }
+    }
+
     fun directChildrenSingle(parentId: MediaId): Single<out List<MediaRef>> = when (parentId) {
         is UpnpDeviceId -> upnpDisk(parentId)
         is UpnpFolderId -> upnpDisk(parentId)
@@ -62,58 +219,28 @@ class FoldersLoader
         CHILDREN
     }
 
+    private fun changesFor(parentId: MediaId): Observable<Change> {
+        return mDatabaseClient.changesFor(parentId).map { Change.SELF }
+    }
+
+    private fun changesForChildren(parentId: MediaId): Observable<Change> {
+        return mDatabaseClient.changesUnder(parentId).map { Change.CHILDREN }
+    }
+
     private fun changesForFolder(folderId: FolderId): Observable<Change> {
-        return mDatabaseClient.changesObservable
-                .filter { it is FolderChange && it.folderId == folderId }
-                .map { Change.SELF }
+        return mDatabaseClient.changesFor(folderId).map { Change.SELF }
     }
 
     private fun changesForFolderChildren(folderId: FolderId): Observable<Change> {
-        return mDatabaseClient.changesObservable
-                .filter { when (folderId) {
-                    is UpnpFolderId -> when (it) {
-                        is UpnpFolderChange -> it.folderId.parentId == folderId.containerId
-                        is UpnpVideoChange -> it.videoId.parentId == folderId.containerId
-                        else -> false
-                    }
-                    is DocDirectoryId -> when (it) {
-                        is DocDirectoryChange -> it.folderId.parentId == folderId.documentId
-                        is DocVideoChange -> it.videoId.parentId == folderId.documentId
-                        else -> false
-                    }
-                    is StorageFolderId -> when (it) {
-                        is StorageFolderChange -> it.folderId.parent == folderId.path
-                        is StorageVideoChange -> it.videoId.parent == folderId.path
-                        else -> false
-                    }
-                    else -> TODO()
-                } }.map { Change.CHILDREN }
+        return mDatabaseClient.changesUnder(folderId).map { Change.CHILDREN }
     }
 
     private fun changesForDevice(deviceId: MediaDeviceId): Observable<Change> {
-        return mDatabaseClient.changesObservable
-                .filter { when (deviceId) {
-                    is UpnpDeviceId -> it is UpnpDeviceChange
-                    is StorageDeviceId -> it is StorageDeviceChange
-                    else -> false
-                } }.map { Change.SELF }
+        return mDatabaseClient.changesFor(deviceId).map { Change.SELF }
     }
 
     private fun changesForDeviceChildren(deviceId: MediaDeviceId): Observable<Change> {
-        return mDatabaseClient.changesObservable
-                .filter { when (deviceId) {
-                    is UpnpDeviceId -> when (it) {
-                        is UpnpFolderChange -> it.folderId.parentId == deviceId.containerId
-                        is UpnpVideoChange -> it.videoId.parentId == deviceId.containerId
-                        else -> false
-                    }
-                    is StorageDeviceId -> when (it) {
-                        is StorageFolderChange -> it.folderId.parent == deviceId.path
-                        is StorageVideoChange -> it.videoId.parent == deviceId.path
-                        else -> false
-                    }
-                    else -> TODO()
-                } }.map { Change.CHILDREN }
+        return mDatabaseClient.changesUnder(deviceId).map { Change.CHILDREN }
     }
 
     private fun upnpDisk(folderId: UpnpContainerId): Single<List<UpnpRef>> {
@@ -24,6 +24,7 @@ class ObserverHolderService : Service() {
     @Inject lateinit var mUpnpDevicesObserver: UpnpDevicesObserver
     @Inject lateinit var mStorageDevicesObserver: StorageDevicesObserver
     @Inject lateinit var mUsbDevicesObserver: UsbDevicesObserver
+    @Inject lateinit var mAppJobScheduler: AppJobScheduler
 
     override fun onCreate() {
         AndroidInjection.inject(this)
@@ -31,6 +32,7 @@ class ObserverHolderService : Service() {
         lifecycle.addObserver(mUpnpDevicesObserver)
         lifecycle.addObserver(mStorageDevicesObserver)
         lifecycle.addObserver(mUsbDevicesObserver)
+        mAppJobScheduler.scheduleMaintenance()
     }
 
     override fun onBind(intent: Intent?): IBinder? = null
@@ -6,7 +6,6 @@ import org.opensilk.media.FolderRef
 import org.opensilk.media.MediaDeviceRef
 import org.opensilk.media.MediaRef
 import org.opensilk.media.database.DeviceChange
-import org.opensilk.media.database.FolderChange
 import org.opensilk.media.database.MediaDAO
 import java.util.concurrent.TimeUnit
 import javax.inject.Inject
@@ -20,8 +19,8 @@ class PinnedLoader
 ){
 
     fun pinnedContainers(): Observable<List<MediaRef>> =
-            mDatabaseClient.changesObservable
-                    .filter { it is DeviceChange || it is FolderChange }
+            mDatabaseClient.deviceChanges
+                    .mergeWith(mDatabaseClient.folderChanges)
                     //comes straight from db, delay longer
                     .sample(3, TimeUnit.SECONDS, AppSchedulers.background)
                     .startWith(DeviceChange())
@@ -0,0 +1,313 @@
+package org.opensilk.video
+
+import dagger.Binds
+import dagger.Module
+import io.reactivex.Completable
+import io.reactivex.Observable
+import io.reactivex.Single
+import org.opensilk.media.*
+import org.opensilk.media.database.MediaDAO
+import org.opensilk.media.loader.cds.UpnpBrowseLoader
+import timber.log.Timber
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.ReentrantLock
+import javax.inject.Inject
+import kotlin.concurrent.withLock
+
+/**
+ * SystemUpdateIDs are unsigned, this never matches one
+ */
+private const val UNKNOWN_UPDATE_ID = -1L
+
+/**
+ * Devices with a crawl running
+ */
+private val CRAWLING = Collections.newSetFromMap(ConcurrentHashMap<String, Boolean>())
+
+/**
+ * Bounds on a single crawl
+ *
+ * @param maxDepth containers deeper than this below the root are stored but not browsed
+ * @param maxItems the crawl stops once it has stored this many items, the container
+ *                 crossing it is still stored whole
+ * @param concurrency containers browsed at once on the device
+ * @param queueCapacity containers waiting to be browsed, those found while it is full
+ *                      are left for the next crawl
+ * @param batchSize items collected before they are written
+ */
+data class UpnpCrawlLimits(
+        val maxDepth: Int = 16,
+        val maxItems: Int = 250_000,
+        val concurrency: Int = 2,
+        val queueCapacity: Int = 10_000,
+        val batchSize: Int = 1000
+)
+
+/**
+ * How a crawl went
+ *
+ * @param browsed containers browsed on the server
+ * @param resumed containers read back from an earlier crawl instead
+ * @param items items stored by this crawl
+ * @param complete false if a limit or an error left containers unvisited
+ */
+data class UpnpCrawlResult(
+        val deviceId: UpnpDeviceId,
+        val browsed: Int,
+        val resumed: Int,
+        val items: Int,
+        val complete: Boolean
+)
+
+/**
+ * Where a crawl keeps what it finds
+ */
+interface UpnpCrawlSink {
+    /**
+     * Child folders of [containerId] if its children were stored as of [updateId]
+     */
+    fun storedFolders(containerId: UpnpContainerId, updateId: Long): List<UpnpFolderRef>?
+
+    /**
+     * Stores the children of each container, recording them as current as of [updateId]
+     * if not null. The crawl resumes from what this records.
+     */
+    fun store(children: Map<UpnpContainerId, List<MediaRef>>, updateId: Long?): Boolean
+}
+
+/**
+ * Stores crawl results alongside the folders the user browses
+ */
+class MediaDAOCrawlSink @Inject constructor(
+        private val mDatabaseClient: MediaDAO
+) : UpnpCrawlSink {
+
+    override fun storedFolders(containerId: UpnpContainerId, updateId: Long): List<UpnpFolderRef>? {
+        if (mDatabaseClient.getUpnpBrowseUpdateId(containerId).blockingGet() != updateId) {
+            return null
+        }
+        return mDatabaseClient.getUpnpFoldersUnder(containerId).toList().blockingGet()
+    }
+
+    override fun store(children: Map<UpnpContainerId, List<MediaRef>>, updateId: Long?): Boolean {
+        if (!mDatabaseClient.replaceUpnpChildren(children, updateId)) {
+            return false
+        }
+        mDatabaseClient.batchChanges {
+            children.keys.forEach { mDatabaseClient.postChangeFor(it) }
+        }
+        return true
+    }
+}
+
+@Module
+abstract class UpnpCrawlerModule {
+    @Binds
+    abstract fun crawlSink(impl: MediaDAOCrawlSink): UpnpCrawlSink
+}
+
+/**
+ * Walks every container of a device, storing the children of each, so content is
+ * known before the user opens its folder.
+ *
+ * Containers are checkpointed with the SystemUpdateID they were browsed at, the same
+ * state [FolderPrefetchLoader] keeps. A crawl interrupted and started again reads
+ * the containers already stored back from the database and only browses the rest,
+ * as does a later crawl after the server reported which containers changed.
+ * Servers that don't report a SystemUpdateID are browsed in full every time.
+ *
+ * [AppJobService] runs a crawl whenever [UpnpDevicesObserver] finds a device.
+ *
+ * Created by drew on 10/17/17.
+ */
+class UpnpCrawler @Inject constructor(
+        private val mBrowseLoader: UpnpBrowseLoader,
+        private val mDevicesObserver: UpnpDevicesObserver,
+        private val mSink: UpnpCrawlSink
+) {
+
+    /**
+     * Crawls [deviceId], errors if it is already being crawled
+     */
+    fun crawl(deviceId: UpnpDeviceId, limits: UpnpCrawlLimits = UpnpCrawlLimits()): Single<UpnpCrawlResult> =
+            mDevicesObserver.systemUpdateId(deviceId)
+                    .onErrorReturnItem(UNKNOWN_UPDATE_ID)
+                    .flatMap { updateId ->
+                        if (!CRAWLING.add(deviceId.deviceId)) {
+                            return@flatMap Single.error<UpnpCrawlResult>(
+                                    IllegalStateException("Already crawling $deviceId"))
+                        }
+                        val crawl = Crawl(deviceId, updateId, limits)
+                        Observable.range(0, limits.concurrency).flatMapCompletable({ _ ->
+                            Completable.fromAction { crawl.work() }.subscribeOn(AppSchedulers.networkIo)
+                        }).toSingle {
+                            crawl.finish()
+                        }.doOnEvent { _, _ ->
+                            //before the result is delivered so the device can be crawled again
+                            CRAWLING.remove(deviceId.deviceId)
+                        }.doOnDispose {
+                            crawl.stop()
+                            CRAWLING.remove(deviceId.deviceId)
+                        }
+                    }
+
+    private data class Pending(val containerId: UpnpContainerId, val depth: Int)
+
+    private inner class Crawl(
+            val deviceId: UpnpDeviceId,
+            val updateId: Long,
+            val limits: UpnpCrawlLimits
+    ) {
+        private val mLock = ReentrantLock()
+        private val mChanged = mLock.newCondition()
+        //taken from the end, depth first keeps it short
+        private val mQueue = ArrayDeque<Pending>()
+        private val mVisited = HashSet<String>()
+        private var mActive = 0
+        @Volatile private var mStopped = false
+        private var mComplete = true
+        private var mBrowsed = 0
+        private var mResumed = 0
+        private var mItems = 0
+
+        private val mBatchLock = ReentrantLock()
+        private var mBatch = LinkedHashMap<UpnpContainerId, List<MediaRef>>()
+        private var mBatchItems = 0
+
+        init {
+            mVisited.add(deviceId.containerId)
+            mQueue.add(Pending(deviceId, 0))
+        }
+
+        fun work() {
+            while (true) {
+                val pending = take() ?: return
+                val folders = try {
+                    visit(pending)
+                } catch (e: Exception) {
+                    //interrupted browses are wrapped
+                    if (!mStopped) {
+                        Timber.w(e, "Unable to crawl ${pending.containerId}")
+                    }
+                    null
+                }
+                done(pending, folders)
+            }
+        }
+
+        fun stop() = mLock.withLock {
+            mStopped = true
+            mChanged.signalAll()
+        }
+
+        fun finish(): UpnpCrawlResult {
+            flush(force = true)
+            return mLock.withLock {
+                UpnpCrawlResult(deviceId, mBrowsed, mResumed, mItems,
+                        mComplete && !mStopped && mQueue.isEmpty())
+            }
+        }
+
+        /**
+         * Next container to visit, null once there are none left and none being
+         * visited that could add more
+         */
+        private fun take(): Pending? = mLock.withLock {
+            try {
+                while (mQueue.isEmpty() && mActive > 0 && !mStopped) {
+                    mChanged.await()
+                }
+            } catch (e: InterruptedException) {
+                mStopped = true
+            }
+            if (mQueue.isEmpty() || mStopped) {
+                mChanged.signalAll()
+                return null
+            }
+            mActive++
+            return mQueue.removeLast()
+        }
+
+        /**
+         * Queues the unvisited [folders] found in [pending]
+         */
+        private fun done(pending: Pending, folders: List<UpnpFolderRef>?) = mLock.withLock {
+            mActive--
+            if (folders == null) {
+                mComplete = false
+            } else if (mItems >= limits.maxItems) {
+                mStopped = true
+            } else {
+                for (folder in folders) {
+                    if (!mVisited.add(folder.id.containerId)) {
+                        //seen through another parent, or a cycle
+                        continue
+                    }
+                    if (pending.depth + 1 > limits.maxDepth || mQueue.size >= limits.queueCapacity) {
+                        mComplete = false
+                        continue
+                    }
+                    mQueue.add(Pending(folder.id, pending.depth + 1))
+                }
+            }
+            mChanged.signalAll()
+        }
+
+        /**
+         * @return child folders of [pending], or null if it couldn't be stored
+         */
+        private fun visit(pending: Pending): List<UpnpFolderRef>? {
+            val containerId = pending.containerId
+            if (updateId != UNKNOWN_UPDATE_ID) {
+                val stored = mSink.storedFolders(containerId, updateId)
+                if (stored != null) {
+                    mLock.withLock { mResumed++ }
+                    return stored
+                }
+            }
+            val children = mBrowseLoader.directChildren(upnpFolderId = containerId,
+                    wantVideoItems = true).blockingGet()
+            val folders = children.filterIsInstance<UpnpFolderRef>()
+            mLock.withLock {
+                mBrowsed++
+                mItems += children.size - folders.size
+            }
+            if (!add(containerId, children)) {
+                return null
+            }
+            return folders
+        }
+
+        /**
+         * Adds [children] to the batch, writing it out once full
+         */
+        private fun add(containerId: UpnpContainerId, children: List<MediaRef>): Boolean {
+            mBatchLock.withLock {
+                mBatch.put(containerId, children)
+                mBatchItems += children.size
+            }
+            return flush(force = false)
+        }
+
+        private fun flush(force: Boolean): Boolean {
+            mBatchLock.withLock {
+                if (mBatch.isEmpty() || (!force && mBatchItems < limits.batchSize)) {
+                    return true
+                }
+                val batch = mBatch
+                mBatch = LinkedHashMap()
+                mBatchItems = 0
+                Timber.d("Storing ${batch.size} containers of $deviceId")
+                //written while holding the lock so batches land in order
+                val stored = mSink.store(batch, if (updateId != UNKNOWN_UPDATE_ID) updateId else null)
+                if (!stored) {
+                    Timber.w("Failed to store ${batch.size} containers of $deviceId")
+                    mLock.withLock { mComplete = false }
+                }
+                return stored
+            }
+        }
+    }
+
+}
@@ -17,6 +17,7 @@ import org.fourthline.cling.model.message.header.UDAServiceTypeHeader
 import org.fourthline.cling.model.meta.Device
 import org.fourthline.cling.model.meta.Service
 import org.fourthline.cling.model.types.ServiceId
+import org.fourthline.cling.model.types.UDN
 import org.fourthline.cling.registry.DefaultRegistryListener
 import org.fourthline.cling.registry.Registry
 import org.opensilk.media.UpnpDeviceId
@@ -27,16 +28,28 @@ import org.opensilk.upnp.cds.browser.CDSUpnpService
 import org.opensilk.upnp.cds.browser.CDSserviceType
 import timber.log.Timber
 import java.lang.ref.WeakReference
+import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 import javax.inject.Singleton
 
 private val GRACE_PERIOD = 600_000L //10min
 
+/**
+ * Container ids of a ContainerUpdateIDs value, which pairs each id with its
+ * update id, all separated by commas. Commas inside ids are escaped.
+ */
+internal fun parseContainerUpdateIds(value: String): List<String> =
+        value.split(Regex("(?<!\\\\),"))
+                .filterIndexed { ii, _ -> ii % 2 == 0 }
+                .map { it.replace("\\,", ",") }
+                .filter { it.isNotEmpty() }
+
 @Singleton
 class UpnpDevicesObserver
 @Inject constructor(
         private val mUpnpService: CDSUpnpService,
-        private val mDatabaseClient: MediaDAO
+        private val mDatabaseClient: MediaDAO,
+        private val mAppJobScheduler: AppJobScheduler
 ) : DefaultRegistryListener(), LifecycleObserver {
 
     @OnLifecycleEvent(Lifecycle.Event.ON_START)
@@ -78,6 +91,8 @@ class UpnpDevicesObserver
             Timber.d("Found new CDS ${metaDevice.meta.title}")
             mDatabaseClient.addUpnpDevice(metaDevice)
             subscribeEvents(service)
+            //index the whole server in the background
+            mAppJobScheduler.scheduleCrawl(metaDevice.id)
         }
     }
 
@@ -91,6 +106,25 @@ class UpnpDevicesObserver
         }
     }
 
+    /**
+     * SystemUpdateID of devices we are receiving events from
+     */
+    private val mEventedUpdateIds = ConcurrentHashMap<String, Long>()
+
+    /**
+     * The current SystemUpdateID of [deviceId], from its events when subscribed
+     * else asked of the device
+     */
+    fun systemUpdateId(deviceId: UpnpDeviceId): Single<Long> {
+        val evented = mEventedUpdateIds[deviceId.deviceId]
+        if (evented != null) {
+            return Single.just(evented)
+        }
+        val service = mUpnpService.registry.getDevice(UDN.valueOf(deviceId.deviceId), false)
+                ?.findService(CDSserviceType) ?: return Single.error(NullPointerException())
+        return updateId(service)
+    }
+
     /**
      * Fetches the SystemUpdateId from the CDS
      */
@@ -129,23 +163,38 @@ class UpnpDevicesObserver
                 for ((key, value) in values) {
                     Timber.d("${device.details.friendlyName}: $key: $value")
                 }
+                val deviceId = UpnpDeviceId(device.identity.udn.identifierString)
+                //the initial event only tells us the current values, not what changed
+                val initial = subscription.currentSequence?.value == 0L
+                val changedIds = values["ContainerUpdateIDs"]?.value?.toString()?.let {
+                    parseContainerUpdateIds(it)
+                }
                 if (values.containsKey("SystemUpdateID")) {
                     handleSystemUpdateId(
                             values["SystemUpdateID"]?.value?.toString()?.toLong(),
-                            UpnpDeviceId(device.identity.udn.identifierString))
+                            if (initial) null else changedIds,
+                            deviceId)
+                } else if (changedIds != null && !initial) {
+                    mDatabaseClient.clearUpnpBrowseUpdateIds(deviceId, changedIds)
                 }
             }
 
             override fun ended(subscription: GENASubscription<out Service<*, *>>,
                                reason: CancelReason?, responseStatus: UpnpResponse?) {
+                mEventedUpdateIds.remove(subscription.service.device.identity.udn.identifierString)
             }
 
             override fun eventsMissed(subscription: GENASubscription<out Service<*, *>>,
                                       numberOfMissedEvents: Int) {
+                //we can't know which containers changed
+                val deviceId = subscription.service.device.identity.udn.identifierString
+                mEventedUpdateIds.remove(deviceId)
+                mDatabaseClient.clearUpnpBrowseUpdateIds(UpnpDeviceId(deviceId))
             }
 
             override fun failed(subscription: GENASubscription<out Service<*, *>>,
                                 responseStatus: UpnpResponse?, exception: Exception?, defaultMsg: String?) {
+                mEventedUpdateIds.remove(subscription.service.device.identity.udn.identifierString)
             }
         }
         mUpnpService.controlPoint.execute(callback)
@@ -158,6 +207,7 @@ class UpnpDevicesObserver
         synchronized(mSubscriptions) {
             mSubscriptions.remove(service.serviceId)?.end()
         }
+        mEventedUpdateIds.remove(service.device.identity.udn.identifierString)
     }
 
     fun unsubscribeAllEvents() {
@@ -167,19 +217,27 @@ class UpnpDevicesObserver
             }
             mSubscriptions.clear()
         }
+        mEventedUpdateIds.clear()
     }
 
     /**
-     * compares new updateId with old value, and updates if changed
+     * compares new updateId with old value, and updates if changed.
+     * When the server also sent [changedIds] every other container browsed
+     * as of the old value is still current and carried over to the new one.
      */
-    private fun handleSystemUpdateId(updateId: Long?, deviceId: UpnpDeviceId) {
+    private fun handleSystemUpdateId(updateId: Long?, changedIds: List<String>?, deviceId: UpnpDeviceId) {
         if (updateId == null) return
         mDatabaseClient.getUpnpDeviceSystemUpdateId(deviceId)
                 .subscribeIgnoreError(Consumer { oldId ->
                     if (oldId != updateId) {
+                        if (changedIds != null) {
+                            mDatabaseClient.advanceUpnpBrowseUpdateIds(deviceId, oldId, updateId, changedIds)
+                        }
                         mDatabaseClient.setUpnpDeviceSystemUpdateId(deviceId, updateId)
                         mDatabaseClient.postChangeFor(deviceId)
                     }
+                    //only trusted once the browse states have caught up
+                    mEventedUpdateIds.put(deviceId.deviceId, updateId)
                 })
     }
 
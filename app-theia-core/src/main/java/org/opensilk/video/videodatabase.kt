@@ -10,7 +10,9 @@ import dagger.Module
 import dagger.android.AndroidInjection
 import dagger.android.ContributesAndroidInjector
 import io.reactivex.Maybe
+import io.reactivex.Observable
 import io.reactivex.Single
+import io.reactivex.subjects.PublishSubject
 import org.opensilk.dagger2.ForApp
 import org.opensilk.media.database.ApiHelper
 import org.opensilk.tvdb.api.model.Token
@@ -20,6 +22,10 @@ import javax.inject.Singleton
 
 const private val VERSION = 2
 
+const val CONFIG_TV_LAST_UPDATE = "last_update"
+const val CONFIG_TV_TOKEN = "token"
+const val CONFIG_MOVIE_IMAGE_BASE_URL = "image_base_url"
+
 class VideoDatabaseMalfuction: Exception()
 
 @Module
@@ -41,12 +47,23 @@ class VideoAppDAO
         @Named("tvdb_banner_root") private val mTVDbBannerRoot: String
 ) : ApiHelper {
 
+    private val mTVDbBannerRootUri = Uri.parse(mTVDbBannerRoot)
+    private val mTvConfig = ConfigTable(mResolver, mUris.tvConfig())
+    private val mMovieConfig = ConfigTable(mResolver, mUris.movieConfig())
+    private val mConfigChanges = PublishSubject.create<String>().toSerialized()
+
+    /**
+     * Keys of the config values as they change
+     */
+    val configChanges: Observable<String>
+        get() = mConfigChanges.hide()
+
     override fun tvImagePosterUri(path: String): Uri {
-        return Uri.parse(mTVDbBannerRoot).buildUpon().appendPath(path).build()
+        return mTVDbBannerRootUri.buildUpon().appendPath(path).build()
     }
 
     override fun tvImageBackdropUri(path: String): Uri {
-        return Uri.parse(mTVDbBannerRoot).buildUpon().appendPath(path).build()
+        return mTVDbBannerRootUri.buildUpon().appendPath(path).build()
     }
 
     override fun movieImagePosterUri(path: String): Uri {
@@ -57,63 +74,102 @@ class VideoAppDAO
         return Uri.parse("${getMovieImageBaseUrl()}w1280$path")
     }
 
+    override val uriChanges: Observable<out Any>
+        get() = configChanges.filter { it == CONFIG_MOVIE_IMAGE_BASE_URL }
+
+    private fun putConfig(table: ConfigTable, key: String, value: String): Boolean {
+        if (table[key] == value) {
+            return true
+        }
+        val stored = table.put(key, value)
+        if (stored) {
+            mConfigChanges.onNext(key)
+        }
+        return stored
+    }
+
     fun setTvLastUpdate(lastUpdate: Long) {
-        val cv = ContentValues()
-        cv.put("key", "last_update")
-        cv.put("value", lastUpdate)
-        mResolver.insert(mUris.tvConfig(), cv)
+        putConfig(mTvConfig, CONFIG_TV_LAST_UPDATE, lastUpdate.toString())
     }
 
     fun getTvLastUpdate(): Maybe<Long> {
         return Maybe.create { s ->
-            mResolver.query(mUris.tvConfig(), arrayOf("value"),
-                    "key='last_update'", null, null, null)?.use { c ->
-                if (c.moveToFirst()) {
-                    s.onSuccess(c.getString(0).toLong())
-                } else {
-                    s.onComplete()
-                }
-            } ?: s.onError(VideoDatabaseMalfuction())
+            val lastUpdate = mTvConfig[CONFIG_TV_LAST_UPDATE]
+            if (lastUpdate != null) {
+                s.onSuccess(lastUpdate.toLong())
+            } else {
+                s.onComplete()
+            }
         }
     }
 
     fun setTvToken(token: Token) {
-        val cv = ContentValues()
-        cv.put("key", "token")
-        cv.put("value", token.token)
-        mResolver.insert(mUris.tvConfig(), cv)
+        putConfig(mTvConfig, CONFIG_TV_TOKEN, token.token)
     }
 
     fun getTvToken(): Single<Token> {
         return Single.create { s ->
-            mResolver.query(mUris.tvConfig(), arrayOf("value"),
-                    "key='token'", null, null, null)?.use { c ->
-                if (c.moveToFirst()) {
-                    s.onSuccess(Token(c.getString(0)))
-                } else {
-                    s.onError(Exception("Token not found"))
-                }
-            } ?: s.onError(VideoDatabaseMalfuction())
+            val token = mTvConfig[CONFIG_TV_TOKEN]
+            if (token != null) {
+                s.onSuccess(Token(token))
+            } else {
+                s.onError(Exception("Token not found"))
+            }
         }
     }
 
-    @Synchronized //TODO cache this value
     fun setMovieImageBaseUrl(imageBaseUrl: String): Boolean {
-        val values = ContentValues()
-        values.put("key", "image_base_url")
-        values.put("value", imageBaseUrl)
-        return mResolver.insert(mUris.movieConfig(), values) != null
+        return putConfig(mMovieConfig, CONFIG_MOVIE_IMAGE_BASE_URL, imageBaseUrl)
     }
 
-    @Synchronized //TODO cache this value
+    /**
+     * Called for every movie row converted, served from memory after the first call
+     */
     fun getMovieImageBaseUrl(): String {
-        return mResolver.query(mUris.movieConfig(), arrayOf("value"),
-                "key='image_base_url'", null, null, null)?.use { c ->
-            if (c.moveToFirst()) {
-                return@use c.getString(0)
-            } else {
-                return@use ""
+        return mMovieConfig[CONFIG_MOVIE_IMAGE_BASE_URL] ?: ""
+    }
+
+}
+
+/**
+ * Write through cache of a key/value config table. The table is read on first use,
+ * after that reads come from memory without locking and writes go to both.
+ */
+internal class ConfigTable(
+        private val mResolver: ContentResolver,
+        private val mUri: Uri
+) {
+
+    @Volatile private var mValues: Map<String, String>? = null
+
+    operator fun get(key: String): String? = values()[key]
+
+    @Synchronized
+    fun put(key: String, value: String): Boolean {
+        val cv = ContentValues()
+        cv.put("key", key)
+        cv.put("value", value)
+        val stored = mResolver.insert(mUri, cv) != null
+        if (stored) {
+            //copy on write so readers never see a map being changed
+            mValues = values() + (key to value)
+        }
+        return stored
+    }
+
+    private fun values(): Map<String, String> = mValues ?: synchronized(this) {
+        mValues ?: load().also { mValues = it }
+    }
+
+    private fun load(): Map<String, String> {
+        return mResolver.query(mUri, arrayOf("key", "value"), null, null, null, null)?.use { c ->
+            val values = HashMap<String, String>()
+            while (c.moveToNext()) {
+                if (!c.isNull(1)) {
+                    values.put(c.getString(0), c.getString(1))
+                }
             }
+            return@use values
         } ?: throw VideoDatabaseMalfuction()
     }
 
@@ -0,0 +1,110 @@
+package org.opensilk.video
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opensilk.media.MediaRef
+import org.opensilk.media.UpnpFolderId
+import org.opensilk.media.UpnpFolderMeta
+import org.opensilk.media.UpnpFolderRef
+import org.opensilk.media.database.Page
+import org.opensilk.media.database.PageKey
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * Windows held by [ChildrenWindowSet] over a fake folder keyed by position
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class)
+class ChildrenWindowSetTest {
+
+    private val PAGE_SIZE = 10
+
+    private var mChildren: List<MediaRef> = children(45)
+    private val mLoads = ArrayList<Int>()
+
+    private fun children(count: Int): List<MediaRef> = (0 until count).map { ii ->
+        UpnpFolderRef(UpnpFolderId(deviceId = "foo0", parentId = "1", containerId = "c$ii"),
+                UpnpFolderMeta(title = "child %03d".format(ii)))
+    }
+
+    private fun windows(maxWindows: Int) = ChildrenWindowSet(maxWindows, { index, after ->
+        mLoads.add(index)
+        val start = after?.let { it.rowId.toInt() + 1 } ?: 0
+        val items = mChildren.drop(start).take(PAGE_SIZE)
+        val last = start + items.size - 1
+        Page(items, if (last < mChildren.size - 1) PageKey(items.last().meta.title, last.toLong()) else null)
+    })
+
+    @Test
+    fun holds_at_most_max_windows_sliding_down() {
+        val windows = windows(2)
+        windows.reload()
+        windows.move(WindowMove.NEXT)
+        val last = windows.move(WindowMove.NEXT)
+
+        assertThat(last.first).isEqualTo(1)
+        assertThat(last.hasPrevious).isTrue()
+        assertThat(last.hasMore).isTrue()
+        assertThat(last.items).isEqualTo(mChildren.subList(10, 30))
+    }
+
+    @Test
+    fun slides_back_up_dropping_the_last_window() {
+        val windows = windows(2)
+        windows.reload()
+        windows.move(WindowMove.NEXT)
+        windows.move(WindowMove.NEXT)
+        windows.move(WindowMove.NEXT)
+        val back = windows.move(WindowMove.PREVIOUS)
+
+        assertThat(back.first).isEqualTo(1)
+        assertThat(back.hasMore).isTrue()
+        assertThat(back.items).isEqualTo(mChildren.subList(10, 30))
+    }
+
+    @Test
+    fun moves_past_either_end_load_nothing() {
+        val windows = windows(3)
+        val first = windows.reload()
+        mLoads.clear()
+
+        assertThat(windows.move(WindowMove.PREVIOUS)).isEqualTo(first)
+        (0 until 4).forEach { windows.move(WindowMove.NEXT) }
+        val end = windows.move(WindowMove.NEXT)
+
+        assertThat(end.hasMore).isFalse()
+        assertThat(end.items).isEqualTo(mChildren.subList(20, 45))
+        assertThat(mLoads).containsExactly(1, 2, 3, 4)
+    }
+
+    @Test
+    fun reload_reads_only_the_windows_held() {
+        val windows = windows(2)
+        windows.reload()
+        (0 until 3).forEach { windows.move(WindowMove.NEXT) }
+        mLoads.clear()
+        mChildren = children(50)
+        val reloaded = windows.reload()
+
+        assertThat(mLoads).containsExactly(2, 3)
+        assertThat(reloaded.first).isEqualTo(2)
+        assertThat(reloaded.items).isEqualTo(mChildren.subList(20, 40))
+    }
+
+    @Test
+    fun reload_starts_over_when_the_held_windows_are_gone() {
+        val windows = windows(2)
+        windows.reload()
+        (0 until 3).forEach { windows.move(WindowMove.NEXT) }
+        mChildren = children(5)
+        val reloaded = windows.reload()
+
+        assertThat(reloaded.first).isEqualTo(0)
+        assertThat(reloaded.hasPrevious).isFalse()
+        assertThat(reloaded.hasMore).isFalse()
+        assertThat(reloaded.items).isEqualTo(mChildren)
+    }
+
+}
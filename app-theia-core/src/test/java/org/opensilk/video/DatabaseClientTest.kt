@@ -67,4 +67,18 @@ class DatabaseClientTest {
         mClient.setMovieImageBaseUrl(url)
         assertThat(mClient.getMovieImageBaseUrl()).isEqualTo(url)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun config_writes_through_and_notifies() {
+        val changes = mClient.configChanges.test()
+        val url = "http://foo.com/foo"
+        mClient.setMovieImageBaseUrl(url)
+        mClient.setMovieImageBaseUrl(url)
+        mClient.setTvToken(Token("foounoetu"))
+        changes.assertValues(CONFIG_MOVIE_IMAGE_BASE_URL, CONFIG_TV_TOKEN)
+        //a fresh dao reads what the first one wrote
+        val other = VideoAppDAO(mResolver, VideoAppDBUris("foo.authority"), TVDB_BANNER_ROOT)
+        assertThat(other.getMovieImageBaseUrl()).isEqualTo(url)
+        assertThat(other.movieImagePosterUri("/a.jpg").toString()).isEqualTo("${url}w342/a.jpg")
+    }
+}
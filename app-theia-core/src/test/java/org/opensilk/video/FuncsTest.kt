@@ -198,4 +198,11 @@ class FuncsTest {
                 .isEqualTo("2016")
     }
 
-}
\ No newline at end of file
+    @Test
+    fun testParseContainerUpdateIds() {
+        assertThat(parseContainerUpdateIds("")).isEmpty()
+        assertThat(parseContainerUpdateIds("64\$1,12,64\$2,3")).containsExactly("64\$1", "64\$2")
+        assertThat(parseContainerUpdateIds("a\\,b,7")).containsExactly("a,b")
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.opensilk.video
+
+import io.reactivex.Single
+import org.opensilk.media.*
+import org.opensilk.media.loader.cds.UpnpBrowseLoader
+import org.opensilk.media.testdata.syntheticUpnpVideos
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+internal const val UPDATE_ID = 7L
+internal const val GROUPS = 10
+
+/**
+ * A made up server for [UpnpCrawler]: the root holds [GROUPS] group containers, each holding
+ * folders of videos. The first group also lists the second, and the first folder
+ * lists the first group, so the tree has a diamond and a cycle.
+ */
+internal class SyntheticServer(
+        count: Int,
+        perFolder: Int,
+        val latencyMs: Long = 0
+) : UpnpBrowseLoader {
+    val mChildren = HashMap<String, List<MediaRef>>()
+    val mBrowses = ConcurrentHashMap<String, AtomicInteger>()
+    val mFailing = HashSet<String>()
+
+    init {
+        val folders = (0 until count / perFolder).map { folder("f$it", "g${it % GROUPS}") }
+        val groups = (0 until GROUPS).map { folder("g$it", UPNP_ROOT_ID) }
+        mChildren.put(UPNP_ROOT_ID, groups)
+        groups.forEach { group ->
+            mChildren.put(group.id.containerId, folders.filter { it.id.parentId == group.id.containerId })
+        }
+        //folder 0 shares the root's container id so folders are prefixed
+        syntheticUpnpVideos(count, perFolder).groupBy { "f${it.id.parentId}" }.forEach { (id, videos) ->
+            mChildren.put(id, videos.map { it.copy(id = it.id.copy(parentId = id)) })
+        }
+        mChildren.put("g0", mChildren["g0"]!! + groups[1])
+        mChildren.put("f0", mChildren["f0"]!! + groups[0])
+    }
+
+    private fun folder(id: String, parentId: String) =
+            UpnpFolderRef(UpnpFolderId("foo0", parentId, id), UpnpFolderMeta(title = id))
+
+    override fun directChildren(upnpFolderId: UpnpContainerId, wantVideoItems: Boolean,
+                                wantAudioItems: Boolean): Single<out List<MediaRef>> = Single.fromCallable {
+        mBrowses.getOrPut(upnpFolderId.containerId, { AtomicInteger() }).incrementAndGet()
+        if (latencyMs > 0) {
+            Thread.sleep(latencyMs)
+        }
+        if (mFailing.contains(upnpFolderId.containerId)) {
+            throw Exception("Browse failed")
+        }
+        mChildren[upnpFolderId.containerId] ?: emptyList()
+    }
+}
+
+/**
+ * Keeps what [UpnpCrawler] stores in memory
+ */
+internal class MemorySink : UpnpCrawlSink {
+    val mChildren = ConcurrentHashMap<String, List<MediaRef>>()
+    val mStates = ConcurrentHashMap<String, Long>()
+    val mBatches = AtomicInteger()
+
+    override fun storedFolders(containerId: UpnpContainerId, updateId: Long): List<UpnpFolderRef>? {
+        if (mStates[containerId.containerId] != updateId) {
+            return null
+        }
+        return mChildren[containerId.containerId]?.filterIsInstance<UpnpFolderRef>()
+    }
+
+    override fun store(children: Map<UpnpContainerId, List<MediaRef>>, updateId: Long?): Boolean {
+        mBatches.incrementAndGet()
+        children.forEach { (id, list) ->
+            mChildren.put(id.containerId, list)
+            if (updateId != null) {
+                mStates.put(id.containerId, updateId)
+            }
+        }
+        return true
+    }
+}
@@ -0,0 +1,74 @@
+package org.opensilk.video
+
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.whenever
+import io.reactivex.Single
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opensilk.media.UpnpDeviceId
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * Crawls a [SyntheticServer] of [ITEMS] videos with a little latency on every browse.
+ * Only runs with ./gradlew test -Pbenchmarks
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class, application = TestApp::class)
+class UpnpCrawlBenchmark {
+
+    private val mDeviceId = UpnpDeviceId("foo0")
+    private lateinit var mDevicesObserver: UpnpDevicesObserver
+
+    @Before
+    fun setup() {
+        mDevicesObserver = mock()
+        whenever(mDevicesObserver.systemUpdateId(any())).thenReturn(Single.just(UPDATE_ID))
+    }
+
+    @Test
+    fun crawl() {
+        val sequential = crawl(1)
+        val parallel = crawl(CONCURRENCY)
+
+        val server = SyntheticServer(ITEMS, PER_FOLDER, BROWSE_LATENCY_MS)
+        val crawler = UpnpCrawler(server, mDevicesObserver, MemorySink())
+        crawler.crawl(mDeviceId, UpnpCrawlLimits(concurrency = CONCURRENCY)).blockingGet()
+        val start = System.nanoTime()
+        val resumed = crawler.crawl(mDeviceId, UpnpCrawlLimits(concurrency = CONCURRENCY))
+                .blockingGet()
+        val resumeMs = (System.nanoTime() - start) / 1000000
+        assertThat(resumed.browsed).isEqualTo(0)
+
+        println("crawl $ITEMS items, ${BROWSE_LATENCY_MS}ms per browse: " +
+                "concurrency=1 ${sequential}ms concurrency=$CONCURRENCY ${parallel}ms " +
+                "from checkpoint ${resumeMs}ms")
+        assertThat(parallel).isLessThan(sequential)
+        //nothing changed so nothing is browsed
+        assertThat(resumeMs).isLessThan(parallel)
+    }
+
+    /**
+     * @return millis to crawl the tree
+     */
+    private fun crawl(concurrency: Int): Long {
+        val server = SyntheticServer(ITEMS, PER_FOLDER, BROWSE_LATENCY_MS)
+        val start = System.nanoTime()
+        val result = UpnpCrawler(server, mDevicesObserver, MemorySink())
+                .crawl(mDeviceId, UpnpCrawlLimits(concurrency = concurrency)).blockingGet()
+        val millis = (System.nanoTime() - start) / 1000000
+        assertThat(result.items).isEqualTo(ITEMS)
+        assertThat(result.complete).isTrue()
+        return millis
+    }
+
+    companion object {
+        const val ITEMS = 100_000
+        const val PER_FOLDER = 100
+        const val CONCURRENCY = 4
+        const val BROWSE_LATENCY_MS = 2L
+    }
+}
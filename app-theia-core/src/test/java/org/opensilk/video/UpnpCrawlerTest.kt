@@ -0,0 +1,124 @@
+package org.opensilk.video
+
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.whenever
+import io.reactivex.Single
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opensilk.media.*
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * Crawls a [SyntheticServer], asserting what was browsed and stored
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class, application = TestApp::class)
+class UpnpCrawlerTest {
+
+    private val mDeviceId = UpnpDeviceId("foo0")
+    private lateinit var mDevicesObserver: UpnpDevicesObserver
+
+    @Before
+    fun setup() {
+        mDevicesObserver = mock()
+        whenever(mDevicesObserver.systemUpdateId(any())).thenReturn(Single.just(UPDATE_ID))
+    }
+
+    @Test
+    fun crawl_visits_every_container_once() {
+        val server = SyntheticServer(2000, 100)
+        val sink = MemorySink()
+        val result = UpnpCrawler(server, mDevicesObserver, sink)
+                .crawl(mDeviceId, UpnpCrawlLimits(concurrency = 3, batchSize = 250)).blockingGet()
+
+        assertThat(result).isEqualTo(UpnpCrawlResult(mDeviceId, browsed = 1 + GROUPS + 20,
+                resumed = 0, items = 2000, complete = true))
+        assertThat(server.mBrowses.values.map { it.get() }).containsOnly(1)
+        assertThat(sink.mChildren).hasSize(1 + GROUPS + 20)
+        assertThat(sink.mStates.values).containsOnly(UPDATE_ID)
+        assertThat(sink.mBatches.get()).isLessThan(result.browsed)
+    }
+
+    @Test
+    fun limits_leave_crawl_incomplete() {
+        val server = SyntheticServer(2000, 100)
+        val shallow = UpnpCrawler(server, mDevicesObserver, MemorySink())
+                .crawl(mDeviceId, UpnpCrawlLimits(maxDepth = 1)).blockingGet()
+        assertThat(shallow.browsed).isEqualTo(1 + GROUPS)
+        assertThat(shallow.items).isEqualTo(0)
+        assertThat(shallow.complete).isFalse()
+
+        val capped = UpnpCrawler(server, mDevicesObserver, MemorySink())
+                .crawl(mDeviceId, UpnpCrawlLimits(maxItems = 250, concurrency = 1)).blockingGet()
+        //folders are stored whole
+        assertThat(capped.items).isEqualTo(300)
+        assertThat(capped.complete).isFalse()
+
+        val queued = UpnpCrawler(server, mDevicesObserver, MemorySink())
+                .crawl(mDeviceId, UpnpCrawlLimits(queueCapacity = 1, concurrency = 1)).blockingGet()
+        assertThat(queued.items).isLessThan(2000)
+        assertThat(queued.complete).isFalse()
+    }
+
+    @Test
+    fun interrupted_crawl_resumes_from_checkpoint() {
+        val server = SyntheticServer(2000, 100)
+        val sink = MemorySink()
+        val crawler = UpnpCrawler(server, mDevicesObserver, sink)
+        val first = crawler.crawl(mDeviceId, UpnpCrawlLimits(maxItems = 500, concurrency = 1,
+                batchSize = 1)).blockingGet()
+        assertThat(first.complete).isFalse()
+
+        val second = crawler.crawl(mDeviceId).blockingGet()
+        assertThat(second.complete).isTrue()
+        assertThat(second.resumed).isEqualTo(first.browsed)
+        assertThat(first.items + second.items).isEqualTo(2000)
+        assertThat(server.mBrowses.values.map { it.get() }).containsOnly(1)
+    }
+
+    @Test
+    fun servers_without_update_id_are_crawled_in_full() {
+        whenever(mDevicesObserver.systemUpdateId(any())).thenReturn(Single.error(NullPointerException()))
+        val server = SyntheticServer(1000, 100)
+        val sink = MemorySink()
+        val crawler = UpnpCrawler(server, mDevicesObserver, sink)
+        assertThat(crawler.crawl(mDeviceId).blockingGet().complete).isTrue()
+        assertThat(sink.mStates).isEmpty()
+
+        val again = crawler.crawl(mDeviceId).blockingGet()
+        assertThat(again.resumed).isEqualTo(0)
+        assertThat(server.mBrowses.values.map { it.get() }).containsOnly(2)
+    }
+
+    @Test
+    fun failed_container_does_not_stop_crawl() {
+        val server = SyntheticServer(1000, 100)
+        server.mFailing.add("f3")
+        val sink = MemorySink()
+        val result = UpnpCrawler(server, mDevicesObserver, sink).crawl(mDeviceId).blockingGet()
+        assertThat(result.complete).isFalse()
+        assertThat(result.items).isEqualTo(900)
+        assertThat(sink.mChildren).doesNotContainKey("f3")
+    }
+
+    @Test
+    fun unchanged_server_is_resumed_without_browsing() {
+        val server = SyntheticServer(2000, 100)
+        val sink = MemorySink()
+        val crawler = UpnpCrawler(server, mDevicesObserver, sink)
+        val first = crawler.crawl(mDeviceId, UpnpCrawlLimits(batchSize = 250)).blockingGet()
+        val batches = sink.mBatches.get()
+
+        val again = crawler.crawl(mDeviceId).blockingGet()
+        assertThat(again).isEqualTo(UpnpCrawlResult(mDeviceId, browsed = 0,
+                resumed = first.browsed, items = 0, complete = true))
+        assertThat(server.mBrowses.values.map { it.get() }).containsOnly(1)
+        //nothing browsed so nothing written
+        assertThat(sink.mBatches.get()).isEqualTo(batches)
+    }
+
+}
@@ -6,6 +6,7 @@ import android.os.Bundle
 import android.support.design.widget.Snackbar
 import android.support.v4.widget.SwipeRefreshLayout
 import android.support.v7.util.DiffUtil
+import android.support.v7.widget.LinearLayoutManager
 import android.support.v7.widget.RecyclerView
 import android.support.v7.widget.Toolbar
 import android.transition.Slide
@@ -111,6 +112,18 @@ class FolderFragment: RecyclerFragment(),
     override fun onViewCreated(view: View?, savedInstanceState: Bundle?) {
         super.onViewCreated(view, savedInstanceState)
         mBinding.recycler.adapter = mAdapter
+        mBinding.recycler.addOnScrollListener(object : RecyclerView.OnScrollListener() {
+            override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
+                //fetch the next or previous window before the list runs out
+                val layoutManager = recyclerView.layoutManager as LinearLayoutManager
+                if (dy > 0 && layoutManager.findLastVisibleItemPosition() >=
+                        layoutManager.itemCount - LOAD_MORE_DISTANCE) {
+                    mViewModel.loadMoreChildren()
+                } else if (dy < 0 && layoutManager.findFirstVisibleItemPosition() <= LOAD_MORE_DISTANCE) {
+                    mViewModel.loadPreviousChildren()
+                }
+            }
+        })
         mBinding.toolbar.setOnMenuItemClickListener(this)
         mBinding.swipeRefresh.setOnRefreshListener(this)
         //restore any state
@@ -126,7 +139,7 @@ class FolderFragment: RecyclerFragment(),
     }
 
     override fun onRefresh() {
-        mViewModel.runPrefetch()
+        mViewModel.runPrefetch(force = true)
     }
 
     override fun onMenuItemClick(item: MenuItem): Boolean {
@@ -197,3 +210,8 @@ class FolderAdapter @Inject constructor(): RecyclerView.Adapter<ListItemViewHold
 
     override fun getItemCount(): Int = mList.size
 }
+
+/**
+ * Rows from the end of the list at which the next window is requested
+ */
+private const val LOAD_MORE_DISTANCE = 20
@@ -119,6 +119,15 @@ class FolderFragment: VerticalGridSupportFragment(), LifecycleRegistryOwner {
 
         adapter = mFolderAdapter
         onItemViewClickedListener = activity as OnItemViewClickedListener
+        setOnItemViewSelectedListener { _, item, _, _ ->
+            //fetch the next or previous window before the selection reaches either end
+            val size = mFolderAdapter.size()
+            if ((maxOf(0, size - LOAD_MORE_DISTANCE) until size).any { mFolderAdapter.get(it) == item }) {
+                mViewModel.loadMoreChildren()
+            } else if ((0 until minOf(size, LOAD_MORE_DISTANCE)).any { mFolderAdapter.get(it) == item }) {
+                mViewModel.loadPreviousChildren()
+            }
+        }
 
     }
 
@@ -246,4 +255,9 @@ class FolderTitleView(context: Context, attrs: AttributeSet) :
                 this@FolderTitleView.getSearchAffordanceView()
     }
 
-}
\ No newline at end of file
+}
+
+/**
+ * Rows from the end of the list at which the next window is requested
+ */
+private const val LOAD_MORE_DISTANCE = 20
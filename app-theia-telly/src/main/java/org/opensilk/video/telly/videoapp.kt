@@ -44,6 +44,7 @@ import javax.inject.Singleton
         VideoAppProviderModule::class,
         LookupConfigModule::class,
         UpnpBrowseLoaderModule::class,
+        UpnpCrawlerModule::class,
         DocumentLoaderModule::class,
         StorageLoaderModule::class,
         ViewModelModule::class,
@@ -25,6 +25,7 @@ import javax.inject.Singleton
                 MediaProviderModule::class,
                 VideoAppProviderModule::class,
                 LookupConfigModule::class,
+                UpnpCrawlerModule::class,
                 ViewModelModule::class,
                 VideoGlideLibraryModule::class,
                 HomeScreenModule::class,
@@ -0,0 +1,109 @@
+package org.opensilk.media.database
+
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import android.support.test.InstrumentationRegistry
+import android.support.test.runner.AndroidJUnit4
+import android.util.Log
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
+
+/**
+ * Measures folder read latency while a prefetch style write load runs, with and
+ * without write ahead logging. Robolectric only has a single connection so this
+ * has to run on a device.
+ *
+ * Results are logged under the "MediaDBBenchmark" tag.
+ */
+@RunWith(AndroidJUnit4::class)
+class MediaDBConcurrencyBenchmark {
+
+    @Test
+    fun readLatencyUnderPrefetchLoad() {
+        val rollback = measure(wal = false)
+        val wal = measure(wal = true)
+        Log.i(TAG, "rollback journal: $rollback")
+        Log.i(TAG, "write ahead log:  $wal")
+        assertThat(wal.count).isEqualTo(READS)
+    }
+
+    private fun measure(wal: Boolean): Stats {
+        val context = InstrumentationRegistry.getTargetContext()
+        context.deleteDatabase("media.sqlite")
+        val mediaDB = MediaDB(context)
+        mediaDB.setWriteAheadLoggingEnabled(wal)
+        val db = mediaDB.writableDatabase
+        refresh(db)
+
+        val running = AtomicBoolean(true)
+        val writer = thread(name = "prefetch") {
+            while (running.get()) {
+                refresh(db)
+            }
+        }
+        val timings = LongArray(READS)
+        for (ii in 0 until READS) {
+            val start = System.nanoTime()
+            mediaDB.readableDatabase.query("upnp_video", arrayOf("item_id", "_display_name"),
+                    "device_id=? AND parent_id=? AND hidden=0", arrayOf(DEVICE, PARENT),
+                    null, null, "_display_name").use { c ->
+                while (c.moveToNext()) {
+                    c.getString(0)
+                }
+            }
+            timings[ii] = System.nanoTime() - start
+        }
+        running.set(false)
+        writer.join()
+        mediaDB.close()
+        context.deleteDatabase("media.sqlite")
+        return Stats(timings)
+    }
+
+    /**
+     * Same shape of write as a folder refresh, hide all the children then upsert them in one transaction
+     */
+    private fun refresh(db: SQLiteDatabase) {
+        db.beginTransaction()
+        try {
+            db.update("upnp_video", contentValues("hidden", 1), "device_id=? AND parent_id=?",
+                    arrayOf(DEVICE, PARENT))
+            val cv = ContentValues()
+            for (ii in 0 until CHILDREN) {
+                cv.put("device_id", DEVICE)
+                cv.put("parent_id", PARENT)
+                cv.put("item_id", "$PARENT.$ii")
+                cv.put("_display_name", "Video $ii")
+                cv.put("mime_type", "video/mp4")
+                cv.put("media_uri", "http://foo.com/media/$ii.mp4")
+                cv.put("date_added", System.currentTimeMillis())
+                cv.put("hidden", 0)
+                db.insertWithOnConflict("upnp_video", null, cv, SQLiteDatabase.CONFLICT_REPLACE)
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    class Stats(timings: LongArray) {
+        private val sorted = timings.sortedArray()
+        val count = sorted.size
+        private fun percentile(p: Int) = sorted[minOf(count - 1, count * p / 100)] / 1000000.0
+
+        override fun toString(): String =
+                "reads=$count p50=${percentile(50)}ms p95=${percentile(95)}ms max=${percentile(100)}ms"
+    }
+
+    companion object {
+        const val TAG = "MediaDBBenchmark"
+        const val READS = 200
+        const val CHILDREN = 2000
+        const val DEVICE = "bench0"
+        const val PARENT = "1"
+    }
+
+}
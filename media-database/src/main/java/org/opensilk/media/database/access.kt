@@ -0,0 +1,141 @@
+package org.opensilk.media.database
+
+import android.content.ContentProviderOperation
+import android.content.ContentProviderResult
+import android.content.ContentResolver
+import android.content.ContentValues
+import android.database.Cursor
+import android.net.Uri
+import android.os.Bundle
+import android.os.CancellationSignal
+import android.util.LruCache
+
+/**
+ * Distinct uri, projection, selection and order combinations [LocalMediaAccess] keeps the sql of
+ */
+private const val QUERY_CACHE_SIZE = 64
+
+/**
+ * The subset of [ContentResolver] the [MediaDAO] uses to reach the [MediaProvider]
+ */
+internal interface MediaAccess {
+    fun query(uri: Uri, projection: Array<out String>?, selection: String?,
+              selectionArgs: Array<out String>?, sortOrder: String?,
+              cancellationSignal: CancellationSignal?): Cursor?
+    fun insert(uri: Uri, values: ContentValues): Uri?
+    fun update(uri: Uri, values: ContentValues, selection: String?, selectionArgs: Array<out String>?): Int
+    fun delete(uri: Uri, selection: String?, selectionArgs: Array<out String>?): Int
+    fun bulkInsert(uri: Uri, values: Array<ContentValues>): Int
+    fun applyBatch(operations: ArrayList<ContentProviderOperation>): Array<ContentProviderResult>
+    fun call(method: String, arg: String?, extras: Bundle?): Bundle?
+
+    companion object {
+        /**
+         * Calls the provider directly when it lives in our process, otherwise goes through the resolver
+         */
+        fun forResolver(resolver: ContentResolver, authority: String): MediaAccess {
+            val client = resolver.acquireContentProviderClient(authority)
+            //the local provider outlives the client so it is released straight away
+            val provider = try {
+                client?.localContentProvider as? MediaProvider
+            } finally {
+                client?.release()
+            }
+            return if (provider != null) {
+                LocalMediaAccess(provider)
+            } else {
+                ResolverMediaAccess(resolver, authority)
+            }
+        }
+    }
+}
+
+/**
+ * Goes through the [ContentResolver], for when the provider is in another process
+ */
+internal class ResolverMediaAccess(
+        private val mResolver: ContentResolver,
+        private val mAuthority: String
+) : MediaAccess {
+
+    override fun query(uri: Uri, projection: Array<out String>?, selection: String?,
+                       selectionArgs: Array<out String>?, sortOrder: String?,
+                       cancellationSignal: CancellationSignal?): Cursor? =
+            mResolver.query(uri, projection, selection, selectionArgs, sortOrder, cancellationSignal)
+
+    override fun insert(uri: Uri, values: ContentValues): Uri? =
+            mResolver.insert(uri, values)
+
+    override fun update(uri: Uri, values: ContentValues, selection: String?,
+                        selectionArgs: Array<out String>?): Int =
+            mResolver.update(uri, values, selection, selectionArgs)
+
+    override fun delete(uri: Uri, selection: String?, selectionArgs: Array<out String>?): Int =
+            mResolver.delete(uri, selection, selectionArgs)
+
+    override fun bulkInsert(uri: Uri, values: Array<ContentValues>): Int =
+            mResolver.bulkInsert(uri, values)
+
+    override fun applyBatch(operations: ArrayList<ContentProviderOperation>): Array<ContentProviderResult> =
+            mResolver.applyBatch(mAuthority, operations)
+
+    override fun call(method: String, arg: String?, extras: Bundle?): Bundle? =
+            mResolver.call(Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT)
+                    .authority(mAuthority).build(), method, arg, extras)
+}
+
+/**
+ * Reads straight from the in process [MediaProvider]'s [MediaDB]. The sql of each distinct
+ * query is built once, so repeat reads skip the uri matching and query building as well as the
+ * resolver, and hit the database's compiled statement cache with the same string every time.
+ * Writes still go through the provider so they keep its upserts and transactions. The provider
+ * stays registered for external clients.
+ */
+internal class LocalMediaAccess(
+        private val mProvider: MediaProvider
+) : MediaAccess {
+
+    private data class QueryKey(val uri: Uri, val projection: List<String>?,
+                                val selection: String?, val sortOrder: String?)
+
+    private val mQueries = LruCache<QueryKey, String>(QUERY_CACHE_SIZE)
+
+    /**
+     * Number of queries that reused sql built earlier
+     */
+    val queryCacheHits: Int
+        get() = mQueries.hitCount()
+
+    override fun query(uri: Uri, projection: Array<out String>?, selection: String?,
+                       selectionArgs: Array<out String>?, sortOrder: String?,
+                       cancellationSignal: CancellationSignal?): Cursor? {
+        if (mProvider.mStats.enabled) {
+            //keep the timings and slow query plans
+            return mProvider.query(uri, projection, selection, selectionArgs, sortOrder, cancellationSignal)
+        }
+        val key = QueryKey(uri, projection?.asList(), selection, sortOrder)
+        val sql = mQueries.get(key) ?: mProvider.querySql(uri, projection, selection, sortOrder).also {
+            mQueries.put(key, it)
+        }
+        return mProvider.mMediaDB.readableDatabase.rawQuery(sql, selectionArgs, cancellationSignal)
+    }
+
+    override fun insert(uri: Uri, values: ContentValues): Uri? =
+            mProvider.insert(uri, values)
+
+    override fun update(uri: Uri, values: ContentValues, selection: String?,
+                        selectionArgs: Array<out String>?): Int =
+            mProvider.update(uri, values, selection, selectionArgs)
+
+    override fun delete(uri: Uri, selection: String?, selectionArgs: Array<out String>?): Int =
+            mProvider.delete(uri, selection, selectionArgs)
+
+    override fun bulkInsert(uri: Uri, values: Array<ContentValues>): Int =
+            mProvider.bulkInsert(uri, values)
+
+    override fun applyBatch(operations: ArrayList<ContentProviderOperation>): Array<ContentProviderResult> =
+            mProvider.applyBatch(operations)
+
+    override fun call(method: String, arg: String?, extras: Bundle?): Bundle? =
+            mProvider.call(method, arg, extras)
+}
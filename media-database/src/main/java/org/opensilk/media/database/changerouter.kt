@@ -0,0 +1,104 @@
+package org.opensilk.media.database
+
+import io.reactivex.Observable
+import io.reactivex.subjects.PublishSubject
+import io.reactivex.subjects.Subject
+import org.opensilk.media.*
+
+/**
+ * Routing key for changes to the direct children of a container
+ */
+internal data class ChildrenOf(val kind: String, val root: String, val parent: String)
+
+internal fun childrenOf(containerId: MediaId): ChildrenOf = when (containerId) {
+    is UpnpContainerId -> ChildrenOf("upnp", containerId.deviceId, containerId.containerId)
+    is DocDirectoryId -> ChildrenOf("doc", containerId.treeUri.toString(), containerId.documentId)
+    is StorageContainerId -> ChildrenOf("storage", containerId.uuid, containerId.path)
+    else -> TODO("$containerId")
+}
+
+/**
+ * The keys a change is delivered to: its type, the item itself and the children of its parent
+ */
+internal fun DatabaseChange.routes(): List<Any> = when (this) {
+    is UpnpDeviceChange -> listOf(DeviceChange::class.java, deviceId)
+    is StorageDeviceChange -> listOf(DeviceChange::class.java, deviceId)
+    is DeviceChange -> listOf(DeviceChange::class.java)
+    is UpnpFolderChange -> listOf(FolderChange::class.java, folderId,
+            ChildrenOf("upnp", folderId.deviceId, folderId.parentId))
+    is DocDirectoryChange -> listOf(FolderChange::class.java, folderId,
+            ChildrenOf("doc", folderId.treeUri.toString(), folderId.parentId))
+    is StorageFolderChange -> listOf(FolderChange::class.java, folderId,
+            ChildrenOf("storage", folderId.uuid, folderId.parent))
+    is FolderChange -> listOf(FolderChange::class.java, folderId)
+    is UpnpVideoChange -> listOf(VideoChange::class.java, videoId,
+            ChildrenOf("upnp", videoId.deviceId, videoId.parentId))
+    is DocVideoChange -> listOf(VideoChange::class.java, videoId,
+            ChildrenOf("doc", videoId.treeUri.toString(), videoId.parentId))
+    is StorageVideoChange -> listOf(VideoChange::class.java, videoId,
+            ChildrenOf("storage", videoId.uuid, videoId.parent))
+    is VideoChange -> listOf(VideoChange::class.java, videoId)
+    is ChangeSet -> changes.flatMap { it.routes() }.distinct()
+}
+
+/**
+ * Delivers each [DatabaseChange] only to the observers of the keys it touches,
+ * so the cost of a change does not grow with the number of unrelated observers.
+ *
+ * Topics are created on first subscription and dropped when the last observer leaves.
+ */
+internal class ChangeRouter {
+
+    private class Topic {
+        val subject: Subject<DatabaseChange> = PublishSubject.create<DatabaseChange>().toSerialized()
+        var refs = 0
+    }
+
+    private val mTopics = HashMap<Any, Topic>()
+    //guarded by mTopics
+    private var mDeliveries = 0L
+
+    fun observe(key: Any): Observable<DatabaseChange> = Observable.create { s ->
+        val topic = synchronized(mTopics) {
+            mTopics.getOrPut(key, { Topic() }).apply { refs++ }
+        }
+        val disposable = topic.subject.subscribe({ s.onNext(it) })
+        s.setCancellable {
+            disposable.dispose()
+            synchronized(mTopics) {
+                if (--topic.refs == 0) {
+                    mTopics.remove(key)
+                }
+            }
+        }
+    }
+
+    fun route(change: DatabaseChange) {
+        if (change is ChangeSet) {
+            //each topic gets one set holding only the changes it cares about
+            val byKey = LinkedHashMap<Any, MutableSet<DatabaseChange>>()
+            change.changes.forEach { c ->
+                c.routes().forEach { key -> byKey.getOrPut(key, { LinkedHashSet() }).add(c) }
+            }
+            byKey.forEach { (key, changes) ->
+                deliver(key, if (changes.size == 1) changes.first() else ChangeSet(changes))
+            }
+        } else {
+            change.routes().forEach { key -> deliver(key, change) }
+        }
+    }
+
+    private fun deliver(key: Any, change: DatabaseChange) {
+        synchronized(mTopics) { mTopics[key]?.also { mDeliveries++ } }?.subject?.onNext(change)
+    }
+
+    val topicCount: Int
+        get() = synchronized(mTopics) { mTopics.size }
+
+    /**
+     * Number of times a change was handed to a topic
+     */
+    val deliveries: Long
+        get() = synchronized(mTopics) { mDeliveries }
+
+}
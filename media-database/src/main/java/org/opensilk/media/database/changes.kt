@@ -11,21 +11,26 @@ sealed class DatabaseChange
  * Represents a change in media devices
  */
 open class DeviceChange(open val deviceId: MediaDeviceId = NoMediaDeviceId): DatabaseChange()
-class UpnpDeviceChange(override val deviceId: UpnpDeviceId): DeviceChange()
-class StorageDeviceChange(override val deviceId: StorageDeviceId): DeviceChange()
+data class UpnpDeviceChange(override val deviceId: UpnpDeviceId): DeviceChange()
+data class StorageDeviceChange(override val deviceId: StorageDeviceId): DeviceChange()
 
 /**
  * Represents a change in a video ref
  */
 open class VideoChange(open val videoId: VideoId): DatabaseChange()
-class UpnpVideoChange(override val videoId: UpnpVideoId): VideoChange(videoId)
-class DocVideoChange(override val videoId: DocVideoId): VideoChange(videoId)
-class StorageVideoChange(override val videoId: StorageVideoId): VideoChange(videoId)
+data class UpnpVideoChange(override val videoId: UpnpVideoId): VideoChange(videoId)
+data class DocVideoChange(override val videoId: DocVideoId): VideoChange(videoId)
+data class StorageVideoChange(override val videoId: StorageVideoId): VideoChange(videoId)
 
 /**
  * Represent a change in a folder ref
  */
 open class FolderChange(open val folderId: FolderId): DatabaseChange()
-class UpnpFolderChange(override val folderId: UpnpFolderId): FolderChange(folderId)
-class DocDirectoryChange(override val folderId: DocDirectoryId): FolderChange(folderId)
-class StorageFolderChange(override val folderId: StorageFolderId): FolderChange(folderId)
+data class UpnpFolderChange(override val folderId: UpnpFolderId): FolderChange(folderId)
+data class DocDirectoryChange(override val folderId: DocDirectoryId): FolderChange(folderId)
+data class StorageFolderChange(override val folderId: StorageFolderId): FolderChange(folderId)
+
+/**
+ * A batch of changes posted together, each change appears only once
+ */
+class ChangeSet(val changes: Set<DatabaseChange>): DatabaseChange()
@@ -1,29 +1,62 @@
 package org.opensilk.media.database
 
+import android.content.ContentProviderOperation
+import android.content.ContentProviderResult
 import android.content.ContentResolver
 import android.content.ContentValues
+import android.content.OperationApplicationException
 import android.database.Cursor
+import android.database.MatrixCursor
 import android.net.Uri
+import android.os.CancellationSignal
 import android.os.OperationCanceledException
+import android.os.RemoteException
 import android.provider.DocumentsContract
+import android.util.LruCache
+import io.reactivex.BackpressureStrategy
+import io.reactivex.Flowable
 import io.reactivex.Maybe
 import io.reactivex.Observable
 import io.reactivex.Single
+import io.reactivex.functions.BiConsumer
 import io.reactivex.functions.Consumer
 import io.reactivex.schedulers.Schedulers
 import io.reactivex.subjects.BehaviorSubject
 import org.opensilk.media.*
 import org.opensilk.reactivex2.cancellationSignal
-import org.opensilk.reactivex2.subscribeIgnoreError
 import timber.log.Timber
+import java.util.concurrent.Callable
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 import javax.inject.Inject
 import javax.inject.Singleton
 
+/**
+ * How long changes are held so bursts are posted as one [ChangeSet]
+ */
+private const val CHANGE_WINDOW_MS = 50L
+
+/**
+ * Number of refs held by the [MediaDAO] ref cache
+ */
+private const val REF_CACHE_SIZE = 256
+
+/**
+ * Ids resolved per query by [MediaDAO.getMediaRefs], three args each stays under sqlite's 999 variables
+ */
+private const val MULTI_GET_CHUNK = 300
+
 interface ApiHelper {
     fun tvImagePosterUri(path: String): Uri
     fun tvImageBackdropUri(path: String): Uri
     fun movieImagePosterUri(path: String): Uri
     fun movieImageBackdropUri(path: String): Uri
+
+    /**
+     * Emits when the uris above would now be built differently
+     */
+    val uriChanges: Observable<out Any>
+        get() = Observable.never()
 }
 
 /**
@@ -31,30 +64,115 @@ interface ApiHelper {
  */
 @Singleton
 class MediaDAO
-@Inject constructor(
-        private val mResolver: ContentResolver,
+internal constructor(
+        private val mAccess: MediaAccess,
         private val mUris: MediaDBUris,
         private val mApiHelper: ApiHelper
 ) {
 
+    @Inject constructor(resolver: ContentResolver, uris: MediaDBUris, apiHelper: ApiHelper):
+            this(MediaAccess.forResolver(resolver, uris.authority), uris, CachingApiHelper(apiHelper))
+
     private val mChangesSubject = BehaviorSubject.create<DatabaseChange>()
     private val mChangesScheduler = Schedulers.single()
 
+    private val mChangeRouter = ChangeRouter()
+
     val changesObservable: Observable<DatabaseChange>
         get() = mChangesSubject.hide()
 
+    /**
+     * Changes to [mediaId] itself
+     */
+    fun changesFor(mediaId: MediaId): Observable<DatabaseChange> =
+            mChangeRouter.observe(mediaId)
+
+    /**
+     * Changes to the direct children of [containerId]
+     */
+    fun changesUnder(containerId: MediaId): Observable<DatabaseChange> =
+            mChangeRouter.observe(childrenOf(containerId))
+
+    /**
+     * Changes to any media device
+     */
+    val deviceChanges: Observable<DatabaseChange>
+        get() = mChangeRouter.observe(DeviceChange::class.java)
+
+    /**
+     * Changes to any folder
+     */
+    val folderChanges: Observable<DatabaseChange>
+        get() = mChangeRouter.observe(FolderChange::class.java)
+
+    private val mBatch = ThreadLocal<MutableSet<DatabaseChange>>()
+    private val mPending = LinkedHashSet<DatabaseChange>()
+
+    /**
+     * Changes are held for a short window and posted together, duplicates are dropped.
+     * Changes made inside [batchChanges] are held until the block returns.
+     */
     internal fun postChange(event: DatabaseChange) {
-        mChangesScheduler.scheduleDirect {
-            when (event) {
-                is FolderChange -> Timber.d("onFolderChange(${event.folderId}")
-                is VideoChange -> Timber.d("onVideoChange(${event.videoId}")
-                is DeviceChange -> Timber.d("onDeviceChange(${event.deviceId})")
-                else -> Timber.d("onChange($event)")
+        invalidateRefs(event)
+        val batch = mBatch.get()
+        if (batch != null) {
+            batch.add(event)
+        } else {
+            enqueueChanges(listOf(event))
+        }
+    }
+
+    /**
+     * Runs [block] and posts every change it makes as a single [ChangeSet]
+     */
+    fun <T> batchChanges(block: () -> T): T {
+        if (mBatch.get() != null) {
+            //already batching
+            return block()
+        }
+        val batch = LinkedHashSet<DatabaseChange>()
+        mBatch.set(batch)
+        try {
+            return block()
+        } finally {
+            mBatch.remove()
+            if (batch.isNotEmpty()) {
+                enqueueChanges(batch)
             }
-            mChangesSubject.onNext(event)
         }
     }
 
+    private fun enqueueChanges(events: Collection<DatabaseChange>) {
+        val schedule = synchronized(mPending) {
+            val wasEmpty = mPending.isEmpty()
+            mPending.addAll(events)
+            wasEmpty
+        }
+        if (schedule) {
+            mChangesScheduler.scheduleDirect({ flushChanges() }, CHANGE_WINDOW_MS, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private fun flushChanges() {
+        val events = synchronized(mPending) {
+            val events = ArrayList(mPending)
+            mPending.clear()
+            events
+        }
+        if (events.isEmpty()) {
+            return
+        }
+        val event = if (events.size == 1) events[0] else ChangeSet(LinkedHashSet(events))
+        when (event) {
+            is FolderChange -> Timber.d("onFolderChange(${event.folderId}")
+            is VideoChange -> Timber.d("onVideoChange(${event.videoId}")
+            is DeviceChange -> Timber.d("onDeviceChange(${event.deviceId})")
+            is ChangeSet -> Timber.d("onChangeSet(${event.changes.size} changes)")
+        }
+        mChangesSubject.onNext(event)
+        mChangeRouter.route(event)
+    }
+
     fun postChangeFor(mediaId: MediaId) {
         postChange(when (mediaId) {
             is UpnpDeviceId -> UpnpDeviceChange(mediaId)
@@ -74,7 +192,7 @@ class MediaDAO
                     converter: (c: Cursor) -> T): Observable<T> {
         return Observable.create { s ->
             try {
-                mResolver.query(uri, projection, selection, selectionArgs,
+                mAccess.query(uri, projection, selection, selectionArgs,
                         sortOrder, s.cancellationSignal())?.use { c ->
                     while (c.moveToNext()) {
                         s.onNext(converter(c))
@@ -92,7 +210,7 @@ class MediaDAO
                           converter: (c: Cursor) -> T): Maybe<T> {
         return Maybe.create { s ->
             try {
-                mResolver.query(uri, projection, selection, selectionArgs,
+                mAccess.query(uri, projection, selection, selectionArgs,
                         null, s.cancellationSignal())?.use { c ->
                     if (c.moveToFirst()) {
                         s.onSuccess(converter(c))
@@ -106,27 +224,352 @@ class MediaDAO
         }
     }
 
+    /**
+     * Like [doQuery] but a row is only read from the cursor when the subscriber requests it,
+     * so a slow consumer holds one cursor window instead of every row
+     */
+    private fun <T> flowQuery(uri: Uri, projection: Array<out String>?, selection: String?,
+                              selectionArgs: Array<out String>?, sortOrder: String?,
+                              converter: (c: Cursor) -> T): Flowable<T> = Flowable.defer {
+        val signal = CancellationSignal()
+        Flowable.generate<T, Cursor>(Callable {
+            try {
+                mAccess.query(uri, projection, selection, selectionArgs, sortOrder, signal)
+                        ?: throw VideoDatabaseMalfuction()
+            } catch (e: OperationCanceledException) {
+                //cancelled before the query ran, nothing to read
+                MatrixCursor(emptyArray<String>())
+            }
+        }, BiConsumer { c, s ->
+            try {
+                if (c.moveToNext()) {
+                    s.onNext(converter(c))
+                } else {
+                    s.onComplete()
+                }
+            } catch (e: OperationCanceledException) {
+                //downstream is gone, complete is dropped
+                s.onComplete()
+            }
+        }, Consumer { c ->
+            c.close()
+        }).doOnCancel {
+            signal.cancel()
+        }
+    }
+
+    /**
+     * Reads one keyset page of [pageSize] rows of [alias] after [after], see [pageSelection]
+     */
+    private fun <T> doPage(uri: Uri, projection: Array<out String>, alias: String, selection: String,
+                           selectionArgs: Array<String>, after: PageKey?, pageSize: Int,
+                           converter: (c: Cursor) -> T): Single<Page<T>> {
+        if (pageSize < 1) {
+            return Single.error(IllegalArgumentException("pageSize must be positive"))
+        }
+        return Single.create { s ->
+            try {
+                mAccess.query(uri, projection + arrayOf("$alias._display_name", "$alias.rowid"),
+                        pageSelection(alias, selection, after), pageSelectionArgs(selectionArgs, after),
+                        pageSortOrder(alias, pageSize + 1), s.cancellationSignal())?.use { c ->
+                    val items = ArrayList<T>(minOf(c.count, pageSize))
+                    var last: PageKey? = null
+                    while (items.size < pageSize && c.moveToNext()) {
+                        items.add(converter(c))
+                        last = PageKey(c.getString(projection.size), c.getLong(projection.size + 1))
+                    }
+                    s.onSuccess(Page(items, if (c.moveToNext()) last else null))
+                } ?: s.onError(VideoDatabaseMalfuction())
+            } catch (e: OperationCanceledException) {
+                //pass
+            }
+        }
+    }
+
+    /*
+     * START REF CACHE
+     */
+
+    private val mRefCache = LruCache<MediaId, MediaRef>(REF_CACHE_SIZE)
+    //guarded by mRefCache, bumped on every invalidation so in flight reads don't cache stale refs
+    private var mRefGeneration = 0L
+    private val mRefCacheHits = AtomicLong()
+    private val mRefCacheMisses = AtomicLong()
+
+    init {
+        //cached refs hold artwork uris built by the helper
+        mApiHelper.uriChanges.subscribe {
+            invalidateRefs { true }
+        }
+    }
+
+    /**
+     * Number of [getMediaRef] calls answered from the cache
+     */
+    val refCacheHits: Long
+        get() = mRefCacheHits.get()
+
+    /**
+     * Number of [getMediaRef] calls that went to the database
+     */
+    val refCacheMisses: Long
+        get() = mRefCacheMisses.get()
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <T: MediaRef> cachedRef(mediaId: MediaId, source: Maybe<out T>): Maybe<T> = Maybe.defer<T> {
+        val cached = mRefCache.get(mediaId)
+        if (cached != null) {
+            mRefCacheHits.incrementAndGet()
+            Maybe.just(cached as T)
+        } else {
+            mRefCacheMisses.incrementAndGet()
+            val generation = synchronized(mRefCache) { mRefGeneration }
+            source.doOnSuccess { ref ->
+                synchronized(mRefCache) {
+                    if (generation == mRefGeneration) {
+                        mRefCache.put(mediaId, ref)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun invalidateRef(mediaId: MediaId) {
+        synchronized(mRefCache) {
+            mRefGeneration++
+            mRefCache.remove(mediaId)
+        }
+    }
+
+    private fun invalidateRefs(predicate: (MediaId) -> Boolean) {
+        synchronized(mRefCache) {
+            mRefGeneration++
+            mRefCache.snapshot().keys.filter(predicate).forEach { mRefCache.remove(it) }
+        }
+    }
+
+    private fun invalidateRefs(event: DatabaseChange) {
+        when (event) {
+            is UpnpDeviceChange -> invalidateRef(event.deviceId)
+            is StorageDeviceChange -> invalidateRef(event.deviceId)
+            is DeviceChange -> invalidateRefs { it is MediaDeviceId }
+            is FolderChange -> invalidateRef(event.folderId)
+            is VideoChange -> invalidateRef(event.videoId)
+            is ChangeSet -> event.changes.forEach { invalidateRefs(it) }
+        }
+    }
+
+    /*
+     * END REF CACHE
+     */
+
     fun getMediaRef(mediaId: MediaId): Maybe<out MediaRef> = when (mediaId) {
-        is UpnpDeviceId -> getUpnpDevice(mediaId)
-        is StorageDeviceId -> getStorageDevice(mediaId)
+        is UpnpDeviceId -> cachedRef(mediaId, getUpnpDevice(mediaId))
+        is StorageDeviceId -> cachedRef(mediaId, getStorageDevice(mediaId))
 
         is FolderId -> getFolderRef(mediaId)
         is VideoId -> getVideoRef(mediaId)
         else -> TODO()
     }
 
-    fun getVideoRef(videoId: VideoId): Maybe<out VideoRef> = when (videoId) {
+    fun getVideoRef(videoId: VideoId): Maybe<out VideoRef> = cachedRef(videoId, when (videoId) {
         is UpnpVideoId -> getUpnpVideo(videoId)
         is DocVideoId -> getDocVideo(videoId)
         is StorageVideoId -> getStorageVideo(videoId)
         else -> TODO()
-    }
+    })
 
-    fun getFolderRef(folderId: FolderId): Maybe<out FolderRef> = when (folderId) {
+    fun getFolderRef(folderId: FolderId): Maybe<out FolderRef> = cachedRef(folderId, when (folderId) {
         is UpnpFolderId -> getUpnpFolder(folderId)
         is DocDirectoryId -> getDocDirectory(folderId)
         is StorageFolderId -> getStorageFolder(folderId)
         else -> TODO()
+    })
+
+    /**
+     * Resolves [ids] with one query per kind of id, instead of one per id.
+     * Refs are emitted in the order of [ids], ids that are not found are skipped.
+     */
+    fun getMediaRefs(ids: List<MediaId>): Observable<MediaRef> = Observable.fromCallable {
+        val found = HashMap<MediaId, MediaRef>()
+        val missing = ArrayList<MediaId>()
+        ids.distinct().forEach { id ->
+            val cached = mRefCache.get(id)
+            if (cached != null) {
+                mRefCacheHits.incrementAndGet()
+                found[id] = cached
+            } else {
+                mRefCacheMisses.incrementAndGet()
+                missing.add(id)
+            }
+        }
+        val generation = synchronized(mRefCache) { mRefGeneration }
+        missing.groupBy { it.javaClass }.values.forEach { group ->
+            group.chunked(MULTI_GET_CHUNK).forEach { chunk ->
+                getMediaRefChunk(chunk).forEach { ref -> found[ref.id] = ref }
+            }
+        }
+        synchronized(mRefCache) {
+            if (generation == mRefGeneration) {
+                missing.forEach { id -> found[id]?.let { ref -> mRefCache.put(id, ref) } }
+            }
+        }
+        ids.mapNotNull { found[it] }
+    }.flatMapIterable { it }
+
+    /**
+     * Selection for a single id of each kind, with its args
+     */
+    private class KeyedQuery(
+            val uri: Uri,
+            val projection: Array<String>,
+            val keySelection: String,
+            val converter: (Cursor) -> MediaRef
+    )
+
+    private fun keyedQuery(mediaId: MediaId): KeyedQuery? = when (mediaId) {
+        is UpnpDeviceId -> KeyedQuery(mUris.upnpDevice(), upnpDeviceProjection,
+                "device_id=?", { c -> c.toUpnpDeviceRef() })
+        is StorageDeviceId -> KeyedQuery(mUris.storageDevice(), storageDeviceProjection,
+                "uuid=?", { c -> c.toStorageDevice() })
+        is UpnpFolderId -> KeyedQuery(mUris.upnpFolder(), upnpFolderProjection,
+                "device_id=? AND parent_id=? AND folder_id=?", { c -> c.toUpnpFolderRef() })
+        is DocDirectoryId -> KeyedQuery(mUris.documentDirectory(), directoryDocumentProjection,
+                "tree_uri=? AND document_id=? AND parent_id=?", { c -> c.toDirectoryDocument() })
+        is StorageFolderId -> KeyedQuery(mUris.storageFolder(), storageFolderProjection,
+                "f.path=? AND device_uuid=?", { c -> c.toStorageFolder() })
+        is UpnpVideoId -> KeyedQuery(mUris.upnpVideo(), upnpVideoProjection,
+                "v.device_id=? AND v.parent_id=? AND v.item_id=?", { c -> c.toUpnpVideoMediaMeta(mApiHelper) })
+        is DocVideoId -> KeyedQuery(mUris.documentVideo(), videoDocumentProjection,
+                "tree_uri=? AND document_id=? AND parent_id=?", { c -> c.toVideoDocumentRef(mApiHelper) })
+        is StorageVideoId -> KeyedQuery(mUris.storageVideo(), storageVideoProjection,
+                "v.path=? AND v.device_uuid=?", { c -> c.toStorageVideo(mApiHelper) })
+        else -> null
+    }
+
+    private fun keyArgs(mediaId: MediaId): List<String> = when (mediaId) {
+        is UpnpDeviceId -> listOf(mediaId.deviceId)
+        is StorageDeviceId -> listOf(mediaId.uuid)
+        is UpnpFolderId -> listOf(mediaId.deviceId, mediaId.parentId, mediaId.containerId)
+        is DocDirectoryId -> listOf(mediaId.treeUri.toString(), mediaId.documentId, mediaId.parentId)
+        is StorageFolderId -> listOf(mediaId.path, mediaId.uuid)
+        is UpnpVideoId -> listOf(mediaId.deviceId, mediaId.parentId, mediaId.itemId)
+        is DocVideoId -> listOf(mediaId.treeUri.toString(), mediaId.documentId, mediaId.parentId)
+        is StorageVideoId -> listOf(mediaId.path, mediaId.uuid)
+        else -> TODO("$mediaId")
+    }
+
+    /**
+     * Resolves ids of the same kind with a single query, sqlite turns the OR of keys into index lookups
+     */
+    private fun getMediaRefChunk(ids: List<MediaId>): List<MediaRef> {
+        val query = keyedQuery(ids[0]) ?: return ids.mapNotNull { id -> getMediaRef(id).blockingGet() }
+        val selection = ids.joinToString(" OR ") { "(${query.keySelection})" }
+        val selectionArgs = ids.flatMap { keyArgs(it) }.toTypedArray()
+        val refs = ArrayList<MediaRef>(ids.size)
+        mAccess.query(query.uri, query.projection, selection, selectionArgs, null, null)?.use { c ->
+            while (c.moveToNext()) {
+                refs.add(query.converter(c))
+            }
+        } ?: throw VideoDatabaseMalfuction()
+        return refs
+    }
+
+    /**
+     * Full text search over titles, the episodes and movies they were matched to,
+     * series names and overviews. Every word is matched as a prefix, best matches first.
+     * Matches are read [limit] at a time so the cost follows the limit, not how many rows match.
+     */
+    fun search(query: String, limit: Int = 50): Observable<MediaRef> = Observable.fromCallable {
+        val refs = ArrayList<MediaRef>(limit)
+        val seen = HashSet<Long>()
+        for (match in searchMatchTiers(query)) {
+            while (refs.size < limit) {
+                val page = searchPage(match, seen, limit - refs.size)
+                if (page.isEmpty()) {
+                    break
+                }
+                page.forEach { seen.add(it.first) }
+                //hidden rows are dropped while resolving, the next page makes up for them
+                refs.addAll(getSearchDocs(page.sortedByDescending { it.second }.map { it.first }))
+            }
+        }
+        refs
+    }.flatMapIterable { it }
+
+    /**
+     * Up to [limit] docids matching [match] and not in [seen], with their rank.
+     * Only the rows returned have their matchinfo computed.
+     */
+    private fun searchPage(match: String, seen: Set<Long>, limit: Int): List<Pair<Long, Double>> {
+        //docids are numbers we read back, so they can go in the sql as they are
+        val selection = if (seen.isEmpty()) "media_search MATCH ?" else
+            "media_search MATCH ? AND docid NOT IN (${seen.joinToString(",")})"
+        val page = ArrayList<Pair<Long, Double>>(limit)
+        mAccess.query(mUris.search(limit), arrayOf("docid", "matchinfo(media_search, 'pcx')"),
+                selection, arrayOf(match), null, null)?.use { c ->
+            while (c.moveToNext()) {
+                page.add(Pair(c.getLong(0), searchRank(c.getBlob(1))))
+            }
+        } ?: throw VideoDatabaseMalfuction()
+        return page
+    }
+
+    /**
+     * Resolves media_search docids to visible refs, in the same order
+     */
+    private fun getSearchDocs(docids: List<Long>): List<MediaRef> {
+        val found = HashMap<Long, MediaRef>()
+        docids.groupBy { searchDocKind(it) }.forEach { (kind, group) ->
+            val source = when (kind) {
+                SEARCH_KIND_UPNP_VIDEO -> SearchSource(mUris.upnpVideo(), upnpVideoProjection, "v",
+                        { c -> c.toUpnpVideoMediaMeta(mApiHelper) })
+                SEARCH_KIND_DOCUMENT_VIDEO -> SearchSource(mUris.documentVideo(), videoDocumentProjection, "v",
+                        { c -> c.toVideoDocumentRef(mApiHelper) })
+                SEARCH_KIND_STORAGE_VIDEO -> SearchSource(mUris.storageVideo(), storageVideoProjection, "v",
+                        { c -> c.toStorageVideo(mApiHelper) })
+                SEARCH_KIND_UPNP_MUSIC_TRACK -> SearchSource(mUris.upnpMusicTrack(), upnpMusicTrackProjection, "t",
+                        { c -> c.toUpnpMusicTrackMediaMeta(mApiHelper) })
+                SEARCH_KIND_DOCUMENT_MUSIC_TRACK -> SearchSource(mUris.documentMusicTrack(), docMusicTrackProjection, "t",
+                        { c -> c.toDocMusicTrackRef(mApiHelper) })
+                SEARCH_KIND_STORAGE_MUSIC_TRACK -> SearchSource(mUris.storageMusicTrack(), storageMusicTrackProjection, "t",
+                        { c -> c.toStorageMusicTrack(mApiHelper) })
+                else -> TODO("Unknown search kind $kind")
+            }
+            val alias = source.alias
+            group.chunked(MULTI_GET_CHUNK).forEach { chunk ->
+                val selection = "$alias.rowid IN (${chunk.joinToString(",") { "?" }}) AND $alias.hidden=0"
+                val selectionArgs = Array(chunk.size, { idx -> searchDocRowId(chunk[idx]).toString() })
+                //rowid goes last so the converters see the usual projection
+                mAccess.query(source.uri, arrayOf(*source.projection, "$alias.rowid"), selection,
+                        selectionArgs, null, null)?.use { c ->
+                    val rowid = source.projection.size
+                    while (c.moveToNext()) {
+                        found[searchDocId(kind, c.getLong(rowid))] = source.converter(c)
+                    }
+                } ?: throw VideoDatabaseMalfuction()
+            }
+        }
+        return docids.mapNotNull { found[it] }
+    }
+
+    private class SearchSource(
+            val uri: Uri,
+            val projection: Array<String>,
+            val alias: String,
+            val converter: (Cursor) -> MediaRef
+    )
+
+    /**
+     * The video and its overview in one query, for detail screens
+     */
+    fun getVideoDetail(videoId: VideoId): Maybe<VideoDetail> {
+        val query = keyedQuery(videoId) ?:
+                return getVideoRef(videoId).map { ref -> VideoDetail(ref, "") }
+        //overview columns go last so the converters see the usual projection
+        val projection = arrayOf(*query.projection, *VIDEO_DETAIL_COLUMNS)
+        return doGet(query.uri, projection, query.keySelection, keyArgs(videoId).toTypedArray(),
+                { c -> VideoDetail(query.converter(c) as VideoRef, c.videoOverview(query.projection.size)) })
     }
 
     fun getVideoOverview(mediaId: VideoId): Maybe<String> = when (mediaId) {
@@ -136,16 +579,12 @@ class MediaDAO
         else -> TODO()
     }
 
-    fun getRecentlyPlayedVideos(): Observable<VideoRef> {
-        return Observable.merge(
-                getRecentlyPlayedUpnpVideos(),
-                getRecentlyPlayedDocVideos(),
-                getRecentlyPlayedStorageVideos()
-        ).sorted({ left, right ->
-            //decending
-            ((right.resumeInfo?.lastPlayed ?: 0L) - (left.resumeInfo?.lastPlayed ?: 0L)).toInt()
-        }).take(10)
-    }
+    /**
+     * The [limit] most recently played videos of every kind, newest first
+     */
+    fun getRecentlyPlayedVideos(limit: Int = 10): Observable<VideoRef> =
+            doQuery(mUris.recentVideos(limit), null, null, null, null,
+                    { c -> c.toRecentVideoRef(mApiHelper) })
 
     fun setVideoTvEpisodeId(mediaId: VideoId, episodeId: TvEpisodeId) {
         when (mediaId) {
@@ -211,36 +650,61 @@ class MediaDAO
     }
 
     /**
-     * Used by [PlaybackSession]
+     * Same as [playableSiblingVideos] but pulls rows as they are requested, for slow consumers
+     */
+    fun playableSiblingVideosFlowable(videoId: VideoId): Flowable<out VideoRef> = when (videoId) {
+        is UpnpVideoId -> {
+            getUpnpVideosUnderFlowable(UpnpFolderId(deviceId = videoId.deviceId,
+                    parentId = "", containerId = videoId.parentId))
+        }
+        is DocVideoId -> {
+            getDocVideosUnderFlowable(DocDirectoryId(treeUri = videoId.treeUri,
+                    documentId = videoId.parentId, parentId = ""))
+        }
+        is StorageVideoId -> {
+            getStorageVideosUnderFlowable(StorageFolderId(uuid = videoId.uuid,
+                    path = videoId.parent, parent = ""))
+        }
+        else -> playableSiblingVideos(videoId).toFlowable(BackpressureStrategy.BUFFER)
+    }
+
+    /**
+     * Used by [PlaybackSession], prefer [PlaybackPositionStore] for positions that change often
      */
     fun setLastPlaybackPosition(mediaId: MediaId, position: Long, duration: Long) {
-        val values = positionContentVals(position, duration)
         when (mediaId) {
-            is UpnpVideoId -> {
-                setUpnpVideoLastPlayed(videoId = mediaId, lastPlayed = values.getAsLong("last_played"))
-                setVideoLastPlaybackPosition(mediaId, values)
-            }
-            is DocVideoId -> {
-                setDocVideoLastPlayed(documentId = mediaId, lastPlayed = values.getAsLong("last_played"))
-                setVideoLastPlaybackPosition(mediaId, values)
-            }
-            is StorageVideoId -> {
-                setStorageVideoLastPlayed(videoId = mediaId, lastPlayed = values.getAsLong("last_played"))
-                setVideoLastPlaybackPosition(mediaId, values)
-            }
-            is IntentDataVideoId -> {
-                Timber.i("Ignoring last playback position on ephemeral video $mediaId")
-            }
+            is VideoId -> setLastPlaybackPositions(mapOf(mediaId to PlaybackPosition(position, duration)))
             else -> TODO()
         }
     }
 
-    private fun setVideoLastPlaybackPosition(videoId: VideoId, values: ContentValues) {
-        getVideoRef(videoId).subscribeIgnoreError(Consumer { meta ->
-            values.put("_display_name", meta.meta.title)
-            mResolver.insert(mUris.playbackPosition(), values)
-            postChangeFor(videoId)
-        })
+    /**
+     * Writes [positions] and the last played time of their videos in one transaction,
+     * keyed updates so nothing is read first
+     */
+    fun setLastPlaybackPositions(positions: Map<VideoId, PlaybackPosition>) {
+        val ops = ArrayList<ContentProviderOperation>(positions.size * 2)
+        val written = ArrayList<VideoId>(positions.size)
+        for ((videoId, position) in positions) {
+            val key = rowKey(videoId)
+            if (key == null) {
+                Timber.i("Ignoring last playback position on ephemeral video $videoId")
+                continue
+            }
+            val (uri, selection) = key
+            ops.add(ContentProviderOperation.newUpdate(uri)
+                    .withValue("last_played", position.lastPlayed)
+                    .withSelection(selection, keyArgs(videoId).toTypedArray()).build())
+            ops.add(insertOp(mUris.playbackPosition(), position.contentValues(videoId)))
+            written.add(videoId)
+        }
+        if (ops.isEmpty()) {
+            return
+        }
+        applyBatch(ops)
+        batchChanges {
+            written.forEach { postChangeFor(it) }
+        }
     }
 
     fun hideChildrenOf(mediaId: MediaId) {
@@ -252,6 +716,133 @@ class MediaDAO
         }
     }
 
+    /**
+     * Replaces the children of [parentId] with [children] in a single transaction.
+     * The existing children are hidden and [children] are upserted (which unhides them)
+     * so readers never see a partially refreshed folder.
+     */
+    fun replaceChildrenOf(parentId: MediaId, children: List<MediaRef>): Boolean {
+        val ops = ArrayList<ContentProviderOperation>(children.size + 3)
+        ops.addAll(hideChildrenOps(parentId))
+        children.mapTo(ops) { child -> insertOp(child) }
+        val results = applyBatch(ops)
+        children.forEach { child -> invalidateRef(child.id) }
+        return results.size == ops.size
+    }
+
+    /**
+     * Upserts [children] in a single transaction without hiding their siblings,
+     * so the first of a large folder can be shown before [replaceChildrenOf] has the rest
+     */
+    fun addChildren(children: List<MediaRef>): Boolean {
+        val ops = children.mapTo(ArrayList<ContentProviderOperation>(children.size)) { child -> insertOp(child) }
+        val results = applyBatch(ops)
+        children.forEach { child -> invalidateRef(child.id) }
+        return results.size == ops.size
+    }
+
+    private fun hideChildrenOps(mediaId: MediaId): List<ContentProviderOperation> = when (mediaId) {
+        is UpnpContainerId -> hideChildrenOps(mediaId)
+        is DocDirectoryId -> hideChildrenOps(mediaId)
+        is StorageContainerId -> hideChildrenOps(mediaId)
+        else -> TODO("$mediaId")
+    }
+
+    private fun insertOp(mediaRef: MediaRef): ContentProviderOperation = when (mediaRef) {
+        is UpnpFolderRef -> insertOp(mUris.upnpFolder(), mediaRef.contentValues())
+        is UpnpVideoRef -> insertOp(mUris.upnpVideo(), mediaRef.contentValues())
+        is UpnpMusicTrackRef -> insertOp(mUris.upnpMusicTrack(), mediaRef.contentValues())
+        is DocDirectoryRef -> insertOp(mUris.documentDirectory(), mediaRef.contentValues())
+        is DocVideoRef -> insertOp(mUris.documentVideo(), mediaRef.contentValues())
+        is DocMusicTrackRef -> insertOp(mUris.documentMusicTrack(), mediaRef.contentValues())
+        is StorageFolderRef -> insertOp(mUris.storageFolder(), mediaRef.contentValues())
+        is StorageVideoRef -> insertOp(mUris.storageVideo(), mediaRef.contentValues())
+        is StorageMusicTrackRef -> insertOp(mUris.storageMusicTrack(), mediaRef.contentValues())
+        else -> TODO("$mediaRef")
+    }
+
+    private fun insertOp(uri: Uri, values: ContentValues): ContentProviderOperation =
+            ContentProviderOperation.newInsert(uri).withValues(values).build()
+
+    /**
+     * Hides the visible rows matching [selection]. Rows already hidden keep the time
+     * they were first hidden so [purgeHidden] can tell how long they have been gone.
+     */
+    private fun hideOp(uri: Uri, selection: String, selectionArgs: Array<String>): ContentProviderOperation =
+            ContentProviderOperation.newUpdate(uri).withValue("hidden", 1)
+                    .withValue("hidden_since", System.currentTimeMillis())
+                    .withSelection("($selection) AND hidden=0", selectionArgs).build()
+
+    /**
+     * Deletes rows hidden before [hiddenBefore] that are not pinned and have no playback position
+     * @return the number of rows deleted
+     */
+    fun purgeHidden(hiddenBefore: Long): Int {
+        //pins live in their own table keyed on json, so pinned rows are moved up to the cutoff
+        //to survive this pass; unpinned they go on the next one
+        doQuery(mUris.pins(), arrayOf("media_id"), null, null, null,
+                { c -> c.getString(0).toMediaId() }).blockingForEach { id ->
+            val (uri, selection) = rowKey(id) ?: return@blockingForEach
+            mAccess.update(uri, contentValues("hidden_since", hiddenBefore),
+                    "$selection AND hidden=1 AND hidden_since < ?",
+                    (keyArgs(id) + hiddenBefore.toString()).toTypedArray())
+        }
+        val rows = mAccess.call(CALL_PURGE_HIDDEN, hiddenBefore.toString(), null)
+                ?.getInt(CALL_RESULT_ROWS) ?: 0
+        if (rows > 0) {
+            invalidateRefs { it !is MediaDeviceId }
+        }
+        return rows
+    }
+
+    /**
+     * Updates the query planner statistics and vacuums free pages
+     * @return the bytes given back to the file system
+     */
+    fun optimize(): Long =
+            mAccess.call(CALL_OPTIMIZE, null, null)?.getLong(CALL_RESULT_BYTES) ?: 0L
+
+    /**
+     * Debug only: turns the provider's per route timings on or off.
+     * Also available through `dumpsys activity provider`
+     */
+    fun setProviderStatsEnabled(enabled: Boolean) {
+        mAccess.call(CALL_STATS, if (enabled) STATS_ENABLE else STATS_DISABLE, null)
+    }
+
+    /**
+     * Debug only: the provider's per route timings, see [setProviderStatsEnabled]
+     */
+    fun dumpProviderStats(): String =
+            mAccess.call(CALL_STATS, null, null)?.getString(CALL_RESULT_STATS) ?: ""
+
+    /**
+     * Table and key selection, without aliases, of the row behind [mediaId]
+     */
+    private fun rowKey(mediaId: MediaId): Pair<Uri, String>? = when (mediaId) {
+        is UpnpFolderId -> Pair(mUris.upnpFolder(), "device_id=? AND parent_id=? AND folder_id=?")
+        is DocDirectoryId -> Pair(mUris.documentDirectory(), "tree_uri=? AND document_id=? AND parent_id=?")
+        is StorageFolderId -> Pair(mUris.storageFolder(), "path=? AND device_uuid=?")
+        is UpnpVideoId -> Pair(mUris.upnpVideo(), "device_id=? AND parent_id=? AND item_id=?")
+        is DocVideoId -> Pair(mUris.documentVideo(), "tree_uri=? AND document_id=? AND parent_id=?")
+        is StorageVideoId -> Pair(mUris.storageVideo(), "path=? AND device_uuid=?")
+        else -> null
+    }
+
+    private fun applyBatch(ops: ArrayList<ContentProviderOperation>): Array<ContentProviderResult> {
+        return try {
+            mAccess.applyBatch(ops)
+        } catch (e: OperationApplicationException) {
+            Timber.e(e, "Unable to apply batch of ${ops.size} operations")
+            emptyArray()
+        } catch (e: RemoteException) {
+            Timber.e(e, "Unable to apply batch of ${ops.size} operations")
+            emptyArray()
+        }
+    }
+
+    private fun Array<ContentProviderResult>.updateCount(): Int = sumBy { it.count ?: 0 }
+
     /*
      * START PINS
      */
@@ -260,23 +851,23 @@ class MediaDAO
             doQuery(mUris.pins(), arrayOf("media_id"),
                     null, null, null,
                     { c -> c.getString(0).toMediaId() }
-            ).flatMapMaybe { mediaId -> getMediaRef(mediaId) }
+            ).toList().flatMapObservable { ids -> getMediaRefs(ids) }
 
     fun checkPinned(mediaId: MediaId): Single<Boolean> =
             Single.fromCallable {
-                mResolver.query(mUris.pins(), arrayOf("media_id"), "media_id=?",
+                mAccess.query(mUris.pins(), arrayOf("media_id"), "media_id=?",
                         arrayOf(mediaId.json), null, null)?.use { c ->
                     return@use c.count > 0
                 } ?: false
             }
 
     fun pinItem(mediaId: MediaId): Boolean =
-            mResolver.insert(mUris.pins(), contentValues("media_id", mediaId.json)).apply {
+            mAccess.insert(mUris.pins(), contentValues("media_id", mediaId.json)).apply {
                 postChangeFor(mediaId)
             } == URI_SUCCESS
 
     fun unpinItem(mediaId: MediaId): Boolean =
-            mResolver.delete(mUris.pins(), "media_id=?", arrayOf(mediaId.json)).apply {
+            mAccess.delete(mUris.pins(), "media_id=?", arrayOf(mediaId.json)).apply {
                 postChangeFor(mediaId)
             } != 0
 
@@ -288,7 +879,7 @@ class MediaDAO
      * Add a meta item describing a upnp device with a content directory service to the database
      * item should be created with Device.toMediaMeta
      */
-    fun addUpnpDevice(upnpDevice: UpnpDeviceRef) = mResolver.insert(mUris.upnpDevice(),
+    fun addUpnpDevice(upnpDevice: UpnpDeviceRef) = mAccess.insert(mUris.upnpDevice(),
             upnpDevice.contentValues()).apply {
         postChangeFor(upnpDevice.id)
     } == URI_SUCCESS
@@ -296,13 +887,15 @@ class MediaDAO
     /**
      * marks the upnp device with giving identity as unavailable
      */
-    fun hideUpnpDevice(identity: String): Boolean = mResolver.update(mUris.upnpDevice(),
+    fun hideUpnpDevice(identity: String): Boolean = mAccess.update(mUris.upnpDevice(),
             contentValues("available", 0), "device_id=?", arrayOf(identity)).apply {
         postChangeFor(UpnpDeviceId(identity))
     } != 0
 
-    fun hideAllUpnpDevices(): Boolean = mResolver.update(mUris.upnpDevice(),
-            contentValues("available", 0), null, null) != 0
+    fun hideAllUpnpDevices(): Boolean = mAccess.update(mUris.upnpDevice(),
+            contentValues("available", 0), null, null).apply {
+        invalidateRefs { it is UpnpDeviceId }
+    } != 0
 
     /**
      * retrieves all the upnp devices marked as available
@@ -318,8 +911,10 @@ class MediaDAO
     }
 
     fun setUpnpDeviceSystemUpdateId(deviceId: UpnpDeviceId, updateId: Long): Boolean {
-        return mResolver.update(mUris.upnpDevice(), contentValues("update_id", updateId),
-                "device_id=?", arrayOf(deviceId.deviceId)) != 0
+        val updated = mAccess.update(mUris.upnpDevice(), contentValues("update_id", updateId),
+                "device_id=?", arrayOf(deviceId.deviceId))
+        invalidateRef(deviceId)
+        return updated != 0
     }
 
     fun getUpnpDeviceSystemUpdateId(deviceId: UpnpDeviceId): Maybe<Long> {
@@ -327,11 +922,94 @@ class MediaDAO
                 arrayOf(deviceId.deviceId), { c ->c.getLong(0) })
     }
 
+    /**
+     * SystemUpdateID of the server when [containerId] was last browsed
+     */
+    fun getUpnpBrowseUpdateId(containerId: UpnpContainerId): Maybe<Long> {
+        return doGet(mUris.upnpBrowseState(), arrayOf("system_update_id"),
+                "device_id=? AND container_id=?", arrayOf(containerId.deviceId, containerId.containerId),
+                { c -> c.getLong(0) })
+    }
+
+    /**
+     * Records the children of [containerId] as current as of [updateId]
+     */
+    fun setUpnpBrowseUpdateId(containerId: UpnpContainerId, updateId: Long): Boolean {
+        val values = ContentValues()
+        values.put("device_id", containerId.deviceId)
+        values.put("container_id", containerId.containerId)
+        values.put("system_update_id", updateId)
+        return mAccess.insert(mUris.upnpBrowseState(), values) == URI_SUCCESS
+    }
+
+    /**
+     * Carries the browse state of every container except [changedIds] over to a new
+     * SystemUpdateID. Only containers browsed as of [fromUpdateId] are carried, and never
+     * the root, which may have been browsed through a feature list folder.
+     */
+    fun advanceUpnpBrowseUpdateIds(deviceId: UpnpDeviceId, fromUpdateId: Long, toUpdateId: Long,
+                                   changedIds: Collection<String>) {
+        val ops = ArrayList<ContentProviderOperation>()
+        changedIds.chunked(MULTI_GET_CHUNK).forEach { chunk ->
+            ops.add(ContentProviderOperation.newDelete(mUris.upnpBrowseState())
+                    .withSelection("device_id=? AND container_id IN (" +
+                            chunk.joinToString(",") { "?" } + ")",
+                            arrayOf(deviceId.deviceId, *chunk.toTypedArray()))
+                    .build())
+        }
+        ops.add(ContentProviderOperation.newUpdate(mUris.upnpBrowseState())
+                .withValue("system_update_id", toUpdateId)
+                .withSelection("device_id=? AND system_update_id=? AND container_id!=?",
+                        arrayOf(deviceId.deviceId, fromUpdateId.toString(), UPNP_ROOT_ID))
+                .build())
+        applyBatch(ops)
+    }
+
+    /**
+     * Forgets the browse state of [containerIds] on [deviceId], or all of them
+     */
+    fun clearUpnpBrowseUpdateIds(deviceId: UpnpDeviceId, containerIds: Collection<String>? = null) {
+        if (containerIds == null) {
+            mAccess.delete(mUris.upnpBrowseState(), "device_id=?", arrayOf(deviceId.deviceId))
+        } else {
+            containerIds.chunked(MULTI_GET_CHUNK).forEach { chunk ->
+                mAccess.delete(mUris.upnpBrowseState(), "device_id=? AND container_id IN (" +
+                        chunk.joinToString(",") { "?" } + ")",
+                        arrayOf(deviceId.deviceId, *chunk.toTypedArray()))
+            }
+        }
+    }
+
+    /**
+     * Replaces the children of every container in [children] as [replaceChildrenOf] does and,
+     * unless [updateId] is null, records each as browsed as of it. All in a single transaction
+     * so a container is never marked browsed without its children.
+     */
+    fun replaceUpnpChildren(children: Map<out UpnpContainerId, List<MediaRef>>, updateId: Long?): Boolean {
+        val ops = ArrayList<ContentProviderOperation>(children.values.sumBy { it.size + 4 })
+        children.forEach { (parentId, list) ->
+            ops.addAll(hideChildrenOps(parentId))
+            list.mapTo(ops) { child -> insertOp(child) }
+            if (updateId != null) {
+                val values = ContentValues()
+                values.put("device_id", parentId.deviceId)
+                values.put("container_id", parentId.containerId)
+                values.put("system_update_id", updateId)
+                ops.add(insertOp(mUris.upnpBrowseState(), values))
+            }
+        }
+        val results = applyBatch(ops)
+        children.values.forEach { list -> list.forEach { child -> invalidateRef(child.id) } }
+        return results.size == ops.size
+    }
+
     /**
      * add a upnp folder to the database, item should be created with Container.toMediaMeta
      */
     fun addUpnpFolder(folderRef: UpnpFolderRef) =
-            mResolver.insert(mUris.upnpFolder(), folderRef.contentValues()) == URI_SUCCESS
+            mAccess.insert(mUris.upnpFolder(), folderRef.contentValues()).apply {
+                invalidateRef(folderRef.id)
+            } == URI_SUCCESS
 
     /**
      * retrieve direct decedents of parent folder that aren't hidden
@@ -354,7 +1032,9 @@ class MediaDAO
      * Adds upnp video to database, item should be created with VideoItem.toMediaMeta
      */
     fun addUpnpVideo(videoRef: UpnpVideoRef) =
-            mResolver.insert(mUris.upnpVideo(), videoRef.contentValues()) == URI_SUCCESS
+            mAccess.insert(mUris.upnpVideo(), videoRef.contentValues()).apply {
+                invalidateRef(videoRef.id)
+            } == URI_SUCCESS
 
     /**
      * retrieve upnp videos, direct decedents of parent
@@ -366,6 +1046,27 @@ class MediaDAO
                 "v._display_name", { c ->c.toUpnpVideoMediaMeta(mApiHelper) })
     }
 
+    /**
+     * retrieve upnp videos under parent, reading rows only as they are requested
+     */
+    fun getUpnpVideosUnderFlowable(parentId: UpnpContainerId): Flowable<UpnpVideoRef> {
+        return flowQuery(mUris.upnpVideo(), upnpVideoProjection,
+                "v.device_id=? AND v.parent_id=? AND v.hidden=0",
+                arrayOf(parentId.deviceId, parentId.containerId),
+                "v._display_name", { c ->c.toUpnpVideoMediaMeta(mApiHelper) })
+    }
+
+    /**
+     * retrieve one page of upnp videos under parent, for containers too large to list at once.
+     * These are list rows, see [toUpnpVideoListRow]
+     */
+    fun getUpnpVideosUnder(parentId: UpnpContainerId, after: PageKey?, pageSize: Int): Single<Page<UpnpVideoRef>> {
+        return doPage(mUris.upnpVideoList(), upnpVideoListProjection, "v",
+                "v.device_id=? AND v.parent_id=? AND v.hidden=0",
+                arrayOf(parentId.deviceId, parentId.containerId),
+                after, pageSize, { c -> c.toUpnpVideoListRow(mApiHelper) })
+    }
+
     /**
      * retrieve specified upnp video
      */
@@ -376,10 +1077,13 @@ class MediaDAO
                 {c -> c.toUpnpVideoMediaMeta(mApiHelper) })
     }
 
-    fun setUpnpVideoLastPlayed(videoId: UpnpVideoId, lastPlayed: Long): Boolean =
-            mResolver.update(mUris.upnpVideo(), contentValues("last_played", lastPlayed),
-                    "device_id=? AND parent_id=? AND item_id=?",
-                    arrayOf(videoId.deviceId, videoId.parentId, videoId.itemId)) != 0
+    fun setUpnpVideoLastPlayed(videoId: UpnpVideoId, lastPlayed: Long): Boolean {
+        val updated = mAccess.update(mUris.upnpVideo(), contentValues("last_played", lastPlayed),
+                "device_id=? AND parent_id=? AND item_id=?",
+                arrayOf(videoId.deviceId, videoId.parentId, videoId.itemId))
+        invalidateRef(videoId)
+        return updated != 0
+    }
 
     fun getRecentlyPlayedUpnpVideos(): Observable<UpnpVideoRef> {
         return doQuery(mUris.upnpVideo(), upnpVideoProjection, "v.last_played > 0", null,
@@ -388,7 +1092,7 @@ class MediaDAO
 
     fun getUpnpVideoOverview(videoId: UpnpVideoId): Maybe<String> {
         return Maybe.create { s ->
-            mResolver.query(mUris.upnpVideo(),
+            mAccess.query(mUris.upnpVideo(),
                     arrayOf("e.overview as episode_overview",
                             "m.overview as movie_overview"),
                     "v.device_id=? AND v.parent_id=? AND v.item_id=?",
@@ -415,22 +1119,26 @@ class MediaDAO
         val cv = ContentValues()
         cv.put("episode_id", episodeId.episodeId)
         cv.put("movie_id", "")
-        return mResolver.update(mUris.upnpVideo(), cv,
+        val updated = mAccess.update(mUris.upnpVideo(), cv,
                 "device_id=? AND parent_id=? AND item_id=?",
-                arrayOf(videoId.deviceId, videoId.parentId, videoId.itemId)) != 0
+                arrayOf(videoId.deviceId, videoId.parentId, videoId.itemId))
+        invalidateRef(videoId)
+        return updated != 0
     }
 
     fun setUpnpVideoMovieId(videoId: UpnpVideoId, movieId: MovieId): Boolean {
         val cv = ContentValues()
         cv.put("episode_id", "")
         cv.put("movie_id", movieId.movieId)
-        return mResolver.update(mUris.upnpVideo(), cv,
+        val updated = mAccess.update(mUris.upnpVideo(), cv,
                 "device_id=? AND parent_id=? AND item_id=?",
-                arrayOf(videoId.deviceId, videoId.parentId, videoId.itemId)) != 0
+                arrayOf(videoId.deviceId, videoId.parentId, videoId.itemId))
+        invalidateRef(videoId)
+        return updated != 0
     }
 
     fun addUpnpMusicTrack(track: UpnpMusicTrackRef): Boolean =
-            mResolver.insert(mUris.upnpMusicTrack(), track.contentValues()) == URI_SUCCESS
+            mAccess.insert(mUris.upnpMusicTrack(), track.contentValues()) == URI_SUCCESS
 
     /**
      * retrieve upnp videos, direct decedents of parent
@@ -456,13 +1164,17 @@ class MediaDAO
      * Marks hidden column on upnp folders and videos with specified parent
      */
     fun hideChildrenOf(parentId: UpnpContainerId) {
-        val cv = contentValues("hidden", 1)
-        mResolver.update(mUris.upnpFolder(), cv, "device_id=? AND parent_id=?",
-                arrayOf(parentId.deviceId, parentId.containerId))
-        mResolver.update(mUris.upnpVideo(), cv, "device_id=? AND parent_id=?",
-                arrayOf(parentId.deviceId, parentId.containerId))
-        mResolver.update(mUris.upnpMusicTrack(), cv, "device_id=? AND parent_id=?",
-                arrayOf(parentId.deviceId, parentId.containerId))
+        applyBatch(ArrayList(hideChildrenOps(parentId)))
+    }
+
+    private fun hideChildrenOps(parentId: UpnpContainerId): List<ContentProviderOperation> {
+        val selection = "device_id=? AND parent_id=?"
+        val selectionArgs = arrayOf(parentId.deviceId, parentId.containerId)
+        return listOf(
+                hideOp(mUris.upnpFolder(), selection, selectionArgs),
+                hideOp(mUris.upnpVideo(), selection, selectionArgs),
+                hideOp(mUris.upnpMusicTrack(), selection, selectionArgs)
+        )
     }
 
     /*
@@ -474,7 +1186,9 @@ class MediaDAO
      */
 
     fun addDocDirectory(documentRef: DocDirectoryRef) =
-            mResolver.insert(mUris.documentDirectory(), documentRef.contentValues()) == URI_SUCCESS
+            mAccess.insert(mUris.documentDirectory(), documentRef.contentValues()).apply {
+                invalidateRef(documentRef.id)
+            } == URI_SUCCESS
 
     fun getDocDirectoryUnder(documentId: DocDirectoryId): Observable<DocDirectoryRef> {
         return doQuery(mUris.documentDirectory(), directoryDocumentProjection,
@@ -491,7 +1205,9 @@ class MediaDAO
     }
 
     fun addDocVideo(documentRef: DocVideoRef) =
-            mResolver.insert(mUris.documentVideo(), documentRef.contentValues()) == URI_SUCCESS
+            mAccess.insert(mUris.documentVideo(), documentRef.contentValues()).apply {
+                invalidateRef(documentRef.id)
+            } == URI_SUCCESS
 
     fun getDocVideosUnder(documentId: DocDirectoryId): Observable<DocVideoRef> {
         return doQuery(mUris.documentVideo(), videoDocumentProjection,
@@ -500,6 +1216,20 @@ class MediaDAO
                 "v._display_name", { c -> c.toVideoDocumentRef(mApiHelper) })
     }
 
+    fun getDocVideosUnderFlowable(documentId: DocDirectoryId): Flowable<DocVideoRef> {
+        return flowQuery(mUris.documentVideo(), videoDocumentProjection,
+                "tree_uri=? AND parent_id=? AND hidden=0",
+                arrayOf(documentId.treeUri.toString(), documentId.documentId),
+                "v._display_name", { c -> c.toVideoDocumentRef(mApiHelper) })
+    }
+
+    fun getDocVideosUnder(documentId: DocDirectoryId, after: PageKey?, pageSize: Int): Single<Page<DocVideoRef>> {
+        return doPage(mUris.documentVideo(), videoDocumentProjection, "v",
+                "v.tree_uri=? AND v.parent_id=? AND v.hidden=0",
+                arrayOf(documentId.treeUri.toString(), documentId.documentId),
+                after, pageSize, { c -> c.toVideoDocumentRef(mApiHelper) })
+    }
+
     fun getDocVideo(documentId: DocVideoId): Maybe<DocVideoRef> {
         return doGet(mUris.documentVideo(), videoDocumentProjection,
                 "tree_uri=? AND document_id=? AND parent_id=?",
@@ -507,10 +1237,13 @@ class MediaDAO
                 {c -> c.toVideoDocumentRef(mApiHelper) })
     }
 
-    fun setDocVideoLastPlayed(documentId: DocVideoId, lastPlayed: Long): Boolean =
-            mResolver.update(mUris.documentVideo(), contentValues("last_played", lastPlayed),
-                    "tree_uri=? AND document_id=? AND parent_id=?", arrayOf(documentId.treeUri.toString(),
-                    documentId.documentId, documentId.parentId)) != 0
+    fun setDocVideoLastPlayed(documentId: DocVideoId, lastPlayed: Long): Boolean {
+        val updated = mAccess.update(mUris.documentVideo(), contentValues("last_played", lastPlayed),
+                "tree_uri=? AND document_id=? AND parent_id=?", arrayOf(documentId.treeUri.toString(),
+                documentId.documentId, documentId.parentId))
+        invalidateRef(documentId)
+        return updated != 0
+    }
 
     fun getRecentlyPlayedDocVideos(): Observable<DocVideoRef> {
         return doQuery(mUris.documentVideo(), videoDocumentProjection, "v.last_played > 0", null,
@@ -519,7 +1252,7 @@ class MediaDAO
 
     fun getDocVideoOverview(documentId: DocVideoId): Maybe<String> {
         return Maybe.create { s ->
-            mResolver.query(mUris.documentVideo(),
+            mAccess.query(mUris.documentVideo(),
                     arrayOf("e.overview as episode_overview",
                             "m.overview as movie_overview"),
                     "tree_uri=? AND document_id=? AND parent_id=?",
@@ -546,20 +1279,24 @@ class MediaDAO
         val values = ContentValues()
         values.put("episode_id", tvEpisodeId.episodeId)
         values.put("movie_id", "")
-        return mResolver.update(mUris.documentVideo(), values, "tree_uri=? AND document_id=? AND parent_id=?",
-                arrayOf(documentId.treeUri.toString(), documentId.documentId, documentId.parentId)) != 0
+        val updated = mAccess.update(mUris.documentVideo(), values, "tree_uri=? AND document_id=? AND parent_id=?",
+                arrayOf(documentId.treeUri.toString(), documentId.documentId, documentId.parentId))
+        invalidateRef(documentId)
+        return updated != 0
     }
 
     fun setDocVideoMovieId(documentId: DocVideoId, movieId: MovieId): Boolean {
         val values = ContentValues()
         values.put("episode_id", "")
         values.put("movie_id", movieId.movieId)
-        return mResolver.update(mUris.documentVideo(), values, "tree_uri=? AND document_id=? AND parent_id=?",
-                arrayOf(documentId.treeUri.toString(), documentId.documentId, documentId.parentId)) != 0
+        val updated = mAccess.update(mUris.documentVideo(), values, "tree_uri=? AND document_id=? AND parent_id=?",
+                arrayOf(documentId.treeUri.toString(), documentId.documentId, documentId.parentId))
+        invalidateRef(documentId)
+        return updated != 0
     }
 
     fun addDocMusicTrack(documentRef: DocMusicTrackRef) =
-            mResolver.insert(mUris.documentMusicTrack(), documentRef.contentValues()) == URI_SUCCESS
+            mAccess.insert(mUris.documentMusicTrack(), documentRef.contentValues()) == URI_SUCCESS
 
     fun getDocMusicTracksUnder(documentId: DocDirectoryId): Observable<DocMusicTrackRef> {
         return doQuery(mUris.documentMusicTrack(), docMusicTrackProjection,
@@ -575,19 +1312,17 @@ class MediaDAO
                 {c -> c.toDocMusicTrackRef(mApiHelper) })
     }
 
-    fun hideChildrenOf(documentId: DocDirectoryId): Boolean {
-        val values = contentValues("hidden", 1)
-        var num = 0
-        num += mResolver.update(mUris.documentDirectory(), values,
-                "tree_uri=? AND document_id=? AND parent_id=?",
-                arrayOf(documentId.treeUri.toString(), documentId.documentId, documentId.parentId))
-        num += mResolver.update(mUris.documentVideo(), values,
-                "tree_uri=? AND document_id=? AND parent_id=?",
-                arrayOf(documentId.treeUri.toString(), documentId.documentId, documentId.parentId))
-        num += mResolver.update(mUris.documentMusicTrack(), values,
-                "tree_uri=? AND document_id=? AND parent_id=?",
-                arrayOf(documentId.treeUri.toString(), documentId.documentId, documentId.parentId))
-        return num != 0
+    fun hideChildrenOf(documentId: DocDirectoryId): Boolean =
+            applyBatch(ArrayList(hideChildrenOps(documentId))).updateCount() != 0
+
+    private fun hideChildrenOps(documentId: DocDirectoryId): List<ContentProviderOperation> {
+        val selection = "tree_uri=? AND parent_id=?"
+        val selectionArgs = arrayOf(documentId.treeUri.toString(), documentId.documentId)
+        return listOf(
+                hideOp(mUris.documentDirectory(), selection, selectionArgs),
+                hideOp(mUris.documentVideo(), selection, selectionArgs),
+                hideOp(mUris.documentMusicTrack(), selection, selectionArgs)
+        )
     }
 
     /*
@@ -599,12 +1334,14 @@ class MediaDAO
      */
 
     fun addStorageDevice(deviceRef: StorageDeviceRef) =
-            mResolver.insert(mUris.storageDevice(), deviceRef.contentValues()).apply {
+            mAccess.insert(mUris.storageDevice(), deviceRef.contentValues()).apply {
                 postChangeFor(deviceRef.id)
             } == URI_SUCCESS
 
-    fun hideAllStorageDevices(): Boolean = mResolver.update(mUris.storageDevice(),
-            contentValues("hidden", 1), null, null) != 0
+    fun hideAllStorageDevices(): Boolean = mAccess.update(mUris.storageDevice(),
+            contentValues("hidden", 1), null, null).apply {
+        invalidateRefs { it is StorageDeviceId }
+    } != 0
 
     fun getAvailableStorageDevices(): Observable<StorageDeviceRef> =
             doQuery(mUris.storageDevice(), storageDeviceProjection,
@@ -618,7 +1355,9 @@ class MediaDAO
                     { c -> c.toStorageDevice() })
 
     fun addStorageFolder(folderRef: StorageFolderRef) =
-            mResolver.insert(mUris.storageFolder(), folderRef.contentValues()) == URI_SUCCESS
+            mAccess.insert(mUris.storageFolder(), folderRef.contentValues()).apply {
+                invalidateRef(folderRef.id)
+            } == URI_SUCCESS
 
     fun getStorageFoldersUnder(containerId: StorageContainerId): Observable<StorageFolderRef> =
             doQuery(mUris.storageFolder(), storageFolderProjection,
@@ -633,7 +1372,9 @@ class MediaDAO
                 { c -> c.toStorageFolder() })
 
     fun addStorageVideo(videoRef: StorageVideoRef) =
-            mResolver.insert(mUris.storageVideo(), videoRef.contentValues()) == URI_SUCCESS
+            mAccess.insert(mUris.storageVideo(), videoRef.contentValues()).apply {
+                invalidateRef(videoRef.id)
+            } == URI_SUCCESS
 
     fun getStorageVideosUnder(containerId: StorageContainerId): Observable<StorageVideoRef> =
             doQuery(mUris.storageVideo(), storageVideoProjection,
@@ -642,15 +1383,34 @@ class MediaDAO
                 "v._display_name",
                 { c -> c.toStorageVideo(mApiHelper) })
 
+    fun getStorageVideosUnderFlowable(containerId: StorageContainerId): Flowable<StorageVideoRef> =
+            flowQuery(mUris.storageVideo(), storageVideoProjection,
+                "v.parent_path=? AND v.device_uuid=? AND v.hidden=0",
+                arrayOf(containerId.path, containerId.uuid),
+                "v._display_name",
+                { c -> c.toStorageVideo(mApiHelper) })
+
+    /**
+     * One page of list rows, see [toStorageVideoListRow]
+     */
+    fun getStorageVideosUnder(containerId: StorageContainerId, after: PageKey?, pageSize: Int): Single<Page<StorageVideoRef>> =
+            doPage(mUris.storageVideoList(), storageVideoListProjection, "v",
+                "v.parent_path=? AND v.device_uuid=? AND v.hidden=0",
+                arrayOf(containerId.path, containerId.uuid),
+                after, pageSize, { c -> c.toStorageVideoListRow(mApiHelper) })
+
     fun getStorageVideo(videoId: StorageVideoId): Maybe<StorageVideoRef> =
             doGet(mUris.storageVideo(), storageVideoProjection,
                 "v.path=? AND v.device_uuid=?",
                 arrayOf(videoId.path, videoId.uuid),
                 {c -> c.toStorageVideo(mApiHelper) })
 
-    fun setStorageVideoLastPlayed(videoId: StorageVideoId, lastPlayed: Long): Boolean =
-            mResolver.update(mUris.storageVideo(), contentValues("last_played", lastPlayed),
-                    "path=? AND device_uuid=?", arrayOf(videoId.path, videoId.uuid)) != 0
+    fun setStorageVideoLastPlayed(videoId: StorageVideoId, lastPlayed: Long): Boolean {
+        val updated = mAccess.update(mUris.storageVideo(), contentValues("last_played", lastPlayed),
+                "path=? AND device_uuid=?", arrayOf(videoId.path, videoId.uuid))
+        invalidateRef(videoId)
+        return updated != 0
+    }
 
     fun getRecentlyPlayedStorageVideos(): Observable<StorageVideoRef> =
             doQuery(mUris.storageVideo(), storageVideoProjection, "v.last_played > 0", null,
@@ -658,7 +1418,7 @@ class MediaDAO
 
     fun getStorageVideoOverview(videoId: StorageVideoId): Maybe<String> {
         return Maybe.create { s ->
-            mResolver.query(mUris.storageVideo(),
+            mAccess.query(mUris.storageVideo(),
                     arrayOf("e.overview as episode_overview",
                             "m.overview as movie_overview"),
                     "v.path=? AND v.device_uuid=?",
@@ -684,20 +1444,24 @@ class MediaDAO
         val values = ContentValues()
         values.put("episode_id", tvEpisodeId.episodeId)
         values.put("movie_id", "")
-        return mResolver.update(mUris.storageVideo(), values, "path=? AND device_uuid=?",
-                arrayOf(videoId.path, videoId.uuid)) != 0
+        val updated = mAccess.update(mUris.storageVideo(), values, "path=? AND device_uuid=?",
+                arrayOf(videoId.path, videoId.uuid))
+        invalidateRef(videoId)
+        return updated != 0
     }
 
     fun setStorageVideoMovieId(videoId: StorageVideoId, movieId: MovieId): Boolean {
         val values = ContentValues()
         values.put("episode_id", "")
         values.put("movie_id", movieId.movieId)
-        return mResolver.update(mUris.storageVideo(), values, "path=? AND device_uuid=?",
-                arrayOf(videoId.path, videoId.uuid)) != 0
+        val updated = mAccess.update(mUris.storageVideo(), values, "path=? AND device_uuid=?",
+                arrayOf(videoId.path, videoId.uuid))
+        invalidateRef(videoId)
+        return updated != 0
     }
 
     fun addStorageMusicTrack(videoRef: StorageMusicTrackRef) =
-            mResolver.insert(mUris.storageMusicTrack(), videoRef.contentValues()) == URI_SUCCESS
+            mAccess.insert(mUris.storageMusicTrack(), videoRef.contentValues()) == URI_SUCCESS
 
     fun getStorageMusicTracksUnder(containerId: StorageContainerId): Observable<StorageMusicTrackRef> =
             doQuery(mUris.storageMusicTrack(), storageMusicTrackProjection,
@@ -712,16 +1476,16 @@ class MediaDAO
                     arrayOf(trackId.path, trackId.uuid),
                     {c -> c.toStorageMusicTrack(mApiHelper) })
 
-    fun hideChildrenOf(containerId: StorageContainerId): Boolean {
-        val values = contentValues("hidden", 1)
-        var num = 0
-        num += mResolver.update(mUris.storageFolder(), values,
-                "parent_path=? AND device_uuid=?",
-                arrayOf(containerId.path, containerId.uuid))
-        num += mResolver.update(mUris.storageVideo(), values,
-                "parent_path=? AND device_uuid=?",
-                arrayOf(containerId.path, containerId.uuid))
-        return num != 0
+    fun hideChildrenOf(containerId: StorageContainerId): Boolean =
+            applyBatch(ArrayList(hideChildrenOps(containerId))).updateCount() != 0
+
+    private fun hideChildrenOps(containerId: StorageContainerId): List<ContentProviderOperation> {
+        val selection = "parent_path=? AND device_uuid=?"
+        val selectionArgs = arrayOf(containerId.path, containerId.uuid)
+        return listOf(
+                hideOp(mUris.storageFolder(), selection, selectionArgs),
+                hideOp(mUris.storageVideo(), selection, selectionArgs)
+        )
     }
 
     /*
@@ -733,7 +1497,9 @@ class MediaDAO
      */
 
     fun addTvSeries(series: TvSeriesRef) =
-            mResolver.insert(mUris.tvSeries(), series.contentValues()) == URI_SUCCESS
+            mAccess.insert(mUris.tvSeries(), series.contentValues()).apply {
+                invalidateRefs { it is VideoId }
+            } == URI_SUCCESS
 
     fun getTvSeries(seriesId: TvSeriesId): Maybe<TvSeriesRef> =
             doGet(mUris.tvSeries(), tvSeriesProjection,
@@ -744,7 +1510,9 @@ class MediaDAO
         val values = Array(episodes.size, { idx ->
             episodes[idx].contentValues()
         })
-        return mResolver.bulkInsert(mUris.tvEpisode(), values)
+        return mAccess.bulkInsert(mUris.tvEpisode(), values).apply {
+            invalidateRefs { it is VideoId }
+        }
     }
 
     fun getTvEpisodesForTvSeries(seriesId: TvSeriesId): Observable<TvEpisodeRef> =
@@ -761,7 +1529,9 @@ class MediaDAO
         val values = Array(banners.size, { idx ->
             banners[idx].contentValues()
         })
-        return mResolver.bulkInsert(mUris.tvImage(), values)
+        return mAccess.bulkInsert(mUris.tvImage(), values).apply {
+            invalidateRefs { it is VideoId }
+        }
     }
 
     fun getTvPosters(seriesId: TvSeriesId): Observable<TvImageRef> =
@@ -783,7 +1553,9 @@ class MediaDAO
      */
 
     fun addMovie(movie: MovieRef) =
-            mResolver.insert(mUris.movie(), movie.contentValues()) == URI_SUCCESS
+            mAccess.insert(mUris.movie(), movie.contentValues()).apply {
+                invalidateRefs { it is VideoId }
+            } == URI_SUCCESS
 
     fun getMovie(movieId: MovieId): Maybe<MovieRef> =
             doGet(mUris.movie(), movieProjection,
@@ -794,7 +1566,9 @@ class MediaDAO
         val contentValues = Array(images.size, { idx ->
             images[idx].contentValues()
         })
-        return mResolver.bulkInsert(mUris.movieImage(), contentValues)
+        return mAccess.bulkInsert(mUris.movieImage(), contentValues).apply {
+            invalidateRefs { it is VideoId }
+        }
     }
 
     fun getMoviePosters(movieId: MovieId): Observable<MovieImageRef> {
@@ -870,6 +1644,7 @@ fun UpnpVideoRef.contentValues(): ContentValues {
     cv.put("device_id", meta.id.deviceId)
     cv.put("item_id", meta.id.itemId)
     cv.put("parent_id", meta.id.parentId)
+    cv.put("media_key", meta.id.mediaKey)
     cv.put("_display_name", meta.meta.originalTitle.elseIfBlank(meta.meta.title))
     cv.put("mime_type", meta.meta.mimeType)
     cv.put("media_uri", meta.meta.mediaUri.toString())
@@ -901,70 +1676,69 @@ val upnpVideoProjection = arrayOf(
         "p.last_position", "p.last_completion", "p.last_played" //25
 )
 
+private val UPNP_VIDEO_COLUMNS = VideoColumns(upnpVideoProjection)
+
+/**
+ * Folder list rows for [MediaDBUris.upnpVideoList], only what a row shows
+ */
+val upnpVideoListProjection = arrayOf(
+        "v.device_id", "v.parent_id", "v.item_id", "v.episode_id", //3
+        "v._display_name", VIDEO_LIST_ARTWORK, //5
+        "p.last_position", "p.last_completion" //7
+)
+
+/**
+ * helper to convert a list row, the title is the display name and there is no media uri,
+ * playback and downloads read the video with [upnpVideoProjection]
+ */
+fun Cursor.toUpnpVideoListRow(mApiHelper: ApiHelper): UpnpVideoRef {
+    val displayName = getString(4)
+    return UpnpVideoRef(
+            id = UpnpVideoId(getString(0), getString(1), getString(2)),
+            meta = UpnpVideoMeta(
+                    title = displayName,
+                    originalTitle = displayName,
+                    artworkUri = videoListArtworkUri(3, 5, mApiHelper),
+                    mediaUri = Uri.EMPTY,
+                    mimeType = ""
+            ),
+            resumeInfo = videoListResumeInfo(6, 7)
+    )
+}
+
+/**
+ * helper to convert a [MediaDBUris.recentVideos] row, which starts with one of the video projections
+ */
+fun Cursor.toRecentVideoRef(mApiHelper: ApiHelper): VideoRef = when (getInt(RECENT_KIND_COLUMN)) {
+    RECENT_KIND_UPNP -> toUpnpVideoMediaMeta(mApiHelper)
+    RECENT_KIND_DOCUMENT -> toVideoDocumentRef(mApiHelper)
+    RECENT_KIND_STORAGE -> toStorageVideo(mApiHelper)
+    else -> TODO("Unknown kind ${getInt(RECENT_KIND_COLUMN)}")
+}
+
 /**
  * helper to convert cursor to mediameta using above projection
  */
 fun Cursor.toUpnpVideoMediaMeta(mApiHelper: ApiHelper): UpnpVideoRef {
-    val c = this
-    val mediaId = UpnpVideoId(c.getString(0), c.getString(1), c.getString(2))
-    var title = c.getString(4)
-    val originalTitle = title
-    val mimeType = c.getString(5)
-    val mediaUri = Uri.parse(c.getString(6))
-    val duration = c.getLong(7)
-    val size = c.getLong(8)
-    var subtitle = ""
-    var artworkUri = Uri.EMPTY
-    var backdropUri = Uri.EMPTY
-    var episodeId: TvEpisodeId? = null
-    var movieId: MovieId? = null
-    if (!c.isNull(9)) {
-        episodeId = TvEpisodeId(c.getLong(9), c.getLong(13))
-        title = c.getString(10)
-        subtitle = makeTvSubtitle(c.getString(14), c.getInt(12), c.getInt(11))
-        //prefer episode poster / backdrop over series
-        if (!c.isNull(21)) {
-            artworkUri = mApiHelper.tvImagePosterUri(c.getString(21))
-        } else if (!c.isNull(15)) {
-            artworkUri = mApiHelper.tvImagePosterUri(c.getString(15))
-        }
-        if (!c.isNull(22)) {
-            backdropUri = mApiHelper.tvImageBackdropUri(c.getString(22))
-        } else if (!c.isNull(16)) {
-            backdropUri = mApiHelper.tvImageBackdropUri(c.getString(16))
-        }
-    } else if (!c.isNull(17)) {
-        movieId = MovieId(c.getLong(17))
-        title = c.getString(18)
-        if (!c.isNull(19)) {
-            artworkUri = mApiHelper.movieImagePosterUri(c.getString(19))
-        }
-        if (!c.isNull(20)) {
-            backdropUri = mApiHelper.movieImageBackdropUri(c.getString(20))
-        }
-    }
-    var resume: VideoResumeInfo? = null
-    if (!isNull(23) && !isNull(24) && !isNull(25)) {
-        resume = VideoResumeInfo(lastPosition = getLong(23),
-                lastCompletion = getInt(24), lastPlayed = getLong(25))
-    }
+    val cols = UPNP_VIDEO_COLUMNS
+    val episodeId = videoEpisodeId(cols)
     return UpnpVideoRef(
-            id = mediaId,
+            id = UpnpVideoId(getString(0), getString(1), getString(2)),
             tvEpisodeId =  episodeId,
-            movieId = movieId,
+            movieId = videoMovieId(cols),
             meta = UpnpVideoMeta(
-                    title = title,
-                    subtitle = subtitle,
-                    artworkUri = artworkUri,
-                    backdropUri = backdropUri,
-                    originalTitle = originalTitle,
-                    mediaUri = mediaUri,
-                    mimeType = mimeType,
-                    duration = duration,
-                    size = size
+                    title = videoTitle(cols),
+                    subtitle = videoSubtitle(cols),
+                    artworkUri = videoArtworkUri(cols, mApiHelper),
+                    backdropUri = videoBackdropUri(cols, mApiHelper),
+                    originalTitle = getString(cols.displayName),
+                    mediaUri = getUri(6),
+                    mimeType = getString(cols.mimeType),
+                    duration = getLong(7),
+                    size = getLong(8)
                     //resolution =
             ),
-            resumeInfo = resume
+            resumeInfo = videoResumeInfo(cols)
     )
 }
 
@@ -1093,6 +1867,7 @@ fun DocVideoRef.contentValues(): ContentValues {
     values.put("tree_uri", documentRef.id.treeUri.toString())
     values.put("document_id", documentRef.id.documentId)
     values.put("parent_id", documentRef.id.parentId)
+    values.put("media_key", documentRef.id.mediaKey)
     values.put("_display_name", documentRef.meta.originalTitle.elseIfBlank(documentRef.meta.title))
     values.put("mime_type", documentRef.meta.mimeType)
     values.put("last_modified", documentRef.meta.lastMod)
@@ -1123,76 +1898,36 @@ val videoDocumentProjection = arrayOf(
         "p.last_position", "p.last_completion", "p.last_played" //25
 )
 
+private val DOCUMENT_VIDEO_COLUMNS = VideoColumns(videoDocumentProjection)
+
 /**
  * helper to convert cursor to mediameta using above projection
  */
 fun Cursor.toVideoDocumentRef(mApiHelper: ApiHelper): DocVideoRef {
-    val treeUri = Uri.parse(getString(0))
-    val docId = getString(1)
-    val parentId = getString(2)
-    val displayName = getString(4)
-    var title = displayName
-    val mimeType = getString(5)
-    val size = if (!isNull(6)) getLong(6) else 0L
-    val flags = if (!isNull(7)) getLong(7) else 0L
-    val lastMod = if (!isNull(8)) getLong(8) else 0L
-    var subtitle = ""
-    var artworkUri = Uri.EMPTY
-    var backdropUri = Uri.EMPTY
-    var episodeId: TvEpisodeId? = null
-    var movieId: MovieId? = null
-    if (!isNull(9)) {
-        episodeId = TvEpisodeId(getLong(9), getLong(13))
-        title = getString(10)
-        subtitle = makeTvSubtitle(getString(14), getInt(12), getInt(11))
-        //prefer episode poster / backdrop over series
-        if (!isNull(21)) {
-            artworkUri = mApiHelper.tvImagePosterUri(getString(21))
-        } else if (!isNull(15)) {
-            artworkUri = mApiHelper.tvImagePosterUri(getString(15))
-        }
-        if (!isNull(22)) {
-            backdropUri = mApiHelper.tvImageBackdropUri(getString(22))
-        } else if (!isNull(16)) {
-            backdropUri = mApiHelper.tvImageBackdropUri(getString(16))
-        }
-    } else if (!isNull(17)) {
-        movieId = MovieId(getLong(17))
-        title = getString(18)
-        if (!isNull(19)) {
-            artworkUri = mApiHelper.movieImagePosterUri(getString(19))
-        }
-        if (!isNull(20)) {
-            backdropUri = mApiHelper.movieImageBackdropUri(getString(20))
-        }
-    }
-    var resume: VideoResumeInfo? = null
-    if (!isNull(23) && !isNull(24) && !isNull(25)) {
-        resume = VideoResumeInfo(lastPosition = getLong(23),
-                lastCompletion = getInt(24), lastPlayed = getLong(25))
-    }
+    val cols = DOCUMENT_VIDEO_COLUMNS
+    val episodeId = videoEpisodeId(cols)
     val docid = DocVideoId(
-            treeUri = treeUri,
-            documentId = docId,
-            parentId = parentId)
+            treeUri = getSharedUri(0),
+            documentId = getString(1),
+            parentId = getString(2))
     return DocVideoRef(
             id = docid,
             tvEpisodeId =  episodeId,
-            movieId = movieId,
+            movieId = videoMovieId(cols),
             meta = DocVideoMeta(
-                    title = title,
-                    subtitle = subtitle,
-                    artworkUri = artworkUri,
-                    backdropUri = backdropUri,
-                    originalTitle = displayName,
-                    mimeType = mimeType,
-                    size = size,
-                    flags = flags,
-                    lastMod = lastMod,
+                    title = videoTitle(cols),
+                    subtitle = videoSubtitle(cols),
+                    artworkUri = videoArtworkUri(cols, mApiHelper),
+                    backdropUri = videoBackdropUri(cols, mApiHelper),
+                    originalTitle = getString(cols.displayName),
+                    mimeType = getString(cols.mimeType),
+                    size = if (!isNull(6)) getLong(6) else 0L,
+                    flags = if (!isNull(7)) getLong(7) else 0L,
+                    lastMod = if (!isNull(8)) getLong(8) else 0L,
                     mediaUri = docid.mediaUri
                     //summary,
             ),
-            resumeInfo = resume
+            resumeInfo = videoResumeInfo(cols)
     )
 }
 
@@ -1313,6 +2048,7 @@ fun StorageVideoRef.contentValues(): ContentValues {
     values.put("path", id.path)
     values.put("parent_path", id.parent)
     values.put("device_uuid", id.uuid)
+    values.put("media_key", id.mediaKey)
     values.put("_display_name", meta.originalTitle.elseIfBlank(meta.title))
     values.put("mime_type", meta.mimeType)
     values.put("last_modified", meta.lastMod)
@@ -1341,69 +2077,62 @@ val storageVideoProjection = arrayOf(
         "p.last_position", "p.last_completion", "p.last_played" //25
 )
 
+private val STORAGE_VIDEO_COLUMNS = VideoColumns(storageVideoProjection)
+
+/**
+ * Folder list rows for [MediaDBUris.storageVideoList], only what a row shows
+ */
+val storageVideoListProjection = arrayOf(
+        "v.path", "v.parent_path", "v.device_uuid", "v.episode_id", //3
+        "v._display_name", VIDEO_LIST_ARTWORK, //5
+        "p.last_position", "p.last_completion" //7
+)
+
+/**
+ * helper to convert a list row, the title is the display name and there is no mime type,
+ * playback and downloads read the video with [storageVideoProjection]
+ */
+fun Cursor.toStorageVideoListRow(mApiHelper: ApiHelper): StorageVideoRef {
+    val displayName = getString(4)
+    return StorageVideoRef(
+            id = StorageVideoId(
+                    path = getString(0),
+                    parent = getString(1),
+                    uuid = getString(2)
+            ),
+            meta = StorageVideoMeta(
+                    title = displayName,
+                    originalTitle = displayName,
+                    artworkUri = videoListArtworkUri(3, 5, mApiHelper),
+                    mimeType = "",
+                    mediaUri = getUri(0)
+            ),
+            resumeInfo = videoListResumeInfo(6, 7)
+    )
+}
+
 fun Cursor.toStorageVideo(mApiHelper: ApiHelper): StorageVideoRef {
-    val path = getString(0)
-    val parent = getString(1)
-    val uuid = getString(2)
-    var title = getString(4)
-    val originalTitle = title
-    val mimeType = getString(5)
-    val mediaUri = Uri.parse(getString(0))
-    val size = getLong(6)
-    var subtitle = ""
-    var artworkUri = Uri.EMPTY
-    var backdropUri = Uri.EMPTY
-    var episodeId: TvEpisodeId? = null
-    var movieId: MovieId? = null
-    if (!isNull(9)) {
-        episodeId = TvEpisodeId(getLong(9), getLong(13))
-        title = getString(10)
-        subtitle = makeTvSubtitle(getString(14), getInt(12), getInt(11))
-        //prefer episode poster / backdrop over series
-        if (!isNull(21)) {
-            artworkUri = mApiHelper.tvImagePosterUri(getString(21))
-        } else if (!isNull(15)) {
-            artworkUri = mApiHelper.tvImagePosterUri(getString(15))
-        }
-        if (!isNull(22)) {
-            backdropUri = mApiHelper.tvImageBackdropUri(getString(22))
-        } else if (!isNull(16)) {
-            backdropUri = mApiHelper.tvImageBackdropUri(getString(16))
-        }
-    } else if (!isNull(17)) {
-        movieId = MovieId(getLong(17))
-        title = getString(18)
-        if (!isNull(19)) {
-            artworkUri = mApiHelper.movieImagePosterUri(getString(19))
-        }
-        if (!isNull(20)) {
-            backdropUri = mApiHelper.movieImageBackdropUri(getString(20))
-        }
-    }
-    var resume: VideoResumeInfo? = null
-    if (!isNull(23) && !isNull(24) && !isNull(25)) {
-        resume = VideoResumeInfo(lastPosition = getLong(23),
-                lastCompletion = getInt(24), lastPlayed = getLong(25))
-    }
+    val cols = STORAGE_VIDEO_COLUMNS
+    val episodeId = videoEpisodeId(cols)
     return StorageVideoRef(
             id = StorageVideoId(
-                    path = path,
-                    parent = parent,
-                    uuid = uuid
+                    path = getString(0),
+                    parent = getString(1),
+                    uuid = getString(2)
             ),
             tvEpisodeId = episodeId,
-            movieId = movieId,
+            movieId = videoMovieId(cols),
             meta = StorageVideoMeta(
-                    title = title,
-                    originalTitle = originalTitle,
-                    subtitle = subtitle,
-                    artworkUri = artworkUri,
-                    backdropUri = backdropUri,
-                    mimeType = mimeType,
-                    mediaUri = mediaUri,
-                    size = size
+                    title = videoTitle(cols),
+                    originalTitle = getString(cols.displayName),
+                    subtitle = videoSubtitle(cols),
+                    artworkUri = videoArtworkUri(cols, mApiHelper),
+                    backdropUri = videoBackdropUri(cols, mApiHelper),
+                    mimeType = getString(cols.mimeType),
+                    mediaUri = getUri(0),
+                    size = getLong(6)
             ),
-            resumeInfo = resume
+            resumeInfo = videoResumeInfo(cols)
     )
 }
 
@@ -1604,9 +2333,6 @@ fun positionContentVals(position: Long, duration: Long): ContentValues {
     return values
 }
 
-fun makeTvSubtitle(seriesName: String, seasonNumber: Int, episodeNumber: Int): String =
-        "$seriesName - S${seasonNumber.zeroPad(2)}E${episodeNumber.zeroPad(2)}"
-
 fun Int.zeroPad(len: Int): String =
         this.toString().padStart(len, '0')
 
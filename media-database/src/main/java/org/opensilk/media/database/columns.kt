@@ -0,0 +1,225 @@
+package org.opensilk.media.database
+
+import android.database.Cursor
+import android.net.Uri
+import android.util.LruCache
+import io.reactivex.Observable
+import org.opensilk.media.MovieId
+import org.opensilk.media.TvEpisodeId
+import org.opensilk.media.VideoResumeInfo
+
+/**
+ * Positions of the columns the video projections share, looked up once per projection
+ * so converters don't hard code them or search by name on every row
+ */
+internal class VideoColumns(projection: Array<String>) {
+    val displayName = projection.column("v._display_name")
+    val mimeType = projection.column("v.mime_type")
+    val episodeId = projection.column("e._id")
+    val episodeTitle = projection.column("e._display_name")
+    val episodeNumber = projection.column("e.episode_number")
+    val seasonNumber = projection.column("e.season_number")
+    val seriesId = projection.column("s._id")
+    val seriesTitle = projection.column("s._display_name")
+    val seriesPoster = projection.column("s.poster")
+    val seriesBackdrop = projection.column("s.backdrop")
+    val movieId = projection.column("m._id")
+    val movieTitle = projection.column("m._display_name")
+    val moviePoster = projection.column("m.poster_path")
+    val movieBackdrop = projection.column("m.backdrop_path")
+    val episodePoster = projection.column("e.poster")
+    val episodeBackdrop = projection.column("e.backdrop")
+    val lastPosition = projection.column("p.last_position")
+    val lastCompletion = projection.column("p.last_completion")
+    val lastPlayed = projection.column("p.last_played")
+}
+
+internal fun Array<String>.column(name: String): Int {
+    val index = indexOf(name)
+    if (index < 0) {
+        throw IllegalArgumentException("$name not in projection")
+    }
+    return index
+}
+
+internal fun Cursor.videoTitle(cols: VideoColumns): String = when {
+    !isNull(cols.episodeId) -> getString(cols.episodeTitle)
+    !isNull(cols.movieId) -> getString(cols.movieTitle)
+    else -> getString(cols.displayName)
+}
+
+internal fun Cursor.videoSubtitle(cols: VideoColumns): String = when {
+    !isNull(cols.episodeId) -> makeTvSubtitle(getString(cols.seriesTitle),
+            getInt(cols.seasonNumber), getInt(cols.episodeNumber))
+    else -> ""
+}
+
+internal fun Cursor.videoEpisodeId(cols: VideoColumns): TvEpisodeId? = when {
+    !isNull(cols.episodeId) -> TvEpisodeId(getLong(cols.episodeId), getLong(cols.seriesId))
+    else -> null
+}
+
+internal fun Cursor.videoMovieId(cols: VideoColumns): MovieId? = when {
+    isNull(cols.episodeId) && !isNull(cols.movieId) -> MovieId(getLong(cols.movieId))
+    else -> null
+}
+
+/**
+ * Episode poster, else the series poster, else the movie poster
+ */
+internal fun Cursor.videoArtworkUri(cols: VideoColumns, helper: ApiHelper): Uri = when {
+    !isNull(cols.episodeId) -> when {
+        !isNull(cols.episodePoster) -> helper.tvImagePosterUri(getString(cols.episodePoster))
+        !isNull(cols.seriesPoster) -> helper.tvImagePosterUri(getString(cols.seriesPoster))
+        else -> Uri.EMPTY
+    }
+    !isNull(cols.movieId) && !isNull(cols.moviePoster) ->
+        helper.movieImagePosterUri(getString(cols.moviePoster))
+    else -> Uri.EMPTY
+}
+
+/**
+ * Episode backdrop, else the series backdrop, else the movie backdrop
+ */
+internal fun Cursor.videoBackdropUri(cols: VideoColumns, helper: ApiHelper): Uri = when {
+    !isNull(cols.episodeId) -> when {
+        !isNull(cols.episodeBackdrop) -> helper.tvImageBackdropUri(getString(cols.episodeBackdrop))
+        !isNull(cols.seriesBackdrop) -> helper.tvImageBackdropUri(getString(cols.seriesBackdrop))
+        else -> Uri.EMPTY
+    }
+    !isNull(cols.movieId) && !isNull(cols.movieBackdrop) ->
+        helper.movieImageBackdropUri(getString(cols.movieBackdrop))
+    else -> Uri.EMPTY
+}
+
+internal fun Cursor.videoResumeInfo(cols: VideoColumns): VideoResumeInfo? = when {
+    isNull(cols.lastPosition) || isNull(cols.lastCompletion) || isNull(cols.lastPlayed) -> null
+    else -> VideoResumeInfo(lastPosition = getLong(cols.lastPosition),
+            lastCompletion = getInt(cols.lastCompletion), lastPlayed = getLong(cols.lastPlayed))
+}
+
+/**
+ * The one artwork column of the list projections: the episode poster, else the series
+ * poster, else the movie poster. Each is a lookup by primary key so list routes only
+ * join the position table.
+ */
+internal const val VIDEO_LIST_ARTWORK = "COALESCE(" +
+        "(SELECT COALESCE(e.poster, s.poster) FROM tv_episodes e " +
+        "LEFT JOIN tv_series s ON e.series_id = s._id WHERE e._id = v.episode_id), " +
+        "(SELECT m.poster_path FROM movies m WHERE m._id = v.movie_id))"
+
+/**
+ * Uri of a [VIDEO_LIST_ARTWORK] column, a tv poster when the row has an episode
+ */
+internal fun Cursor.videoListArtworkUri(episodeColumn: Int, artworkColumn: Int, helper: ApiHelper): Uri = when {
+    isNull(artworkColumn) -> Uri.EMPTY
+    getLong(episodeColumn) > 0 -> helper.tvImagePosterUri(getString(artworkColumn))
+    else -> helper.movieImagePosterUri(getString(artworkColumn))
+}
+
+/**
+ * List rows carry the position and completion, not when the video was played
+ */
+internal fun Cursor.videoListResumeInfo(positionColumn: Int, completionColumn: Int): VideoResumeInfo? = when {
+    isNull(positionColumn) || isNull(completionColumn) -> null
+    else -> VideoResumeInfo(lastPosition = getLong(positionColumn), lastCompletion = getInt(completionColumn))
+}
+
+/**
+ * Parses a column holding a uri, empty and null columns give [Uri.EMPTY] without parsing
+ */
+internal fun Cursor.getUri(column: Int): Uri {
+    val value = getString(column)
+    return if (value.isNullOrEmpty()) Uri.EMPTY else Uri.parse(value)
+}
+
+/**
+ * Uris repeated across rows, like a document tree, are parsed once
+ */
+private val sSharedUris = LruCache<String, Uri>(32)
+
+internal fun Cursor.getSharedUri(column: Int): Uri {
+    val value = getString(column)
+    if (value.isNullOrEmpty()) {
+        return Uri.EMPTY
+    }
+    return sSharedUris.get(value) ?: Uri.parse(value).also { sSharedUris.put(value, it) }
+}
+
+/**
+ * Remembers the uris an [ApiHelper] builds. Rows of a folder mostly share
+ * series artwork so the same paths come back over and over.
+ */
+internal class CachingApiHelper(
+        private val mDelegate: ApiHelper,
+        size: Int = API_HELPER_CACHE_SIZE
+) : ApiHelper {
+
+    private val mTvPosters = LruCache<String, Uri>(size)
+    private val mTvBackdrops = LruCache<String, Uri>(size)
+    private val mMoviePosters = LruCache<String, Uri>(size)
+    private val mMovieBackdrops = LruCache<String, Uri>(size)
+
+    init {
+        //lives as long as the dao so the subscription is never disposed
+        mDelegate.uriChanges.subscribe {
+            mTvPosters.evictAll()
+            mTvBackdrops.evictAll()
+            mMoviePosters.evictAll()
+            mMovieBackdrops.evictAll()
+        }
+    }
+
+    override fun tvImagePosterUri(path: String): Uri =
+            mTvPosters.getOrPut(path, { mDelegate.tvImagePosterUri(path) })
+
+    override fun tvImageBackdropUri(path: String): Uri =
+            mTvBackdrops.getOrPut(path, { mDelegate.tvImageBackdropUri(path) })
+
+    override fun movieImagePosterUri(path: String): Uri =
+            mMoviePosters.getOrPut(path, { mDelegate.movieImagePosterUri(path) })
+
+    override fun movieImageBackdropUri(path: String): Uri =
+            mMovieBackdrops.getOrPut(path, { mDelegate.movieImageBackdropUri(path) })
+
+    override val uriChanges: Observable<out Any>
+        get() = mDelegate.uriChanges
+
+    private inline fun LruCache<String, Uri>.getOrPut(path: String, make: () -> Uri): Uri =
+            get(path) ?: make().also { put(path, it) }
+
+}
+
+internal const val API_HELPER_CACHE_SIZE = 128
+
+/**
+ * Builders for [makeTvSubtitle], one per thread so rows convert without a builder each
+ */
+private val sSubtitleBuilder = object : ThreadLocal<StringBuilder>() {
+    override fun initialValue(): StringBuilder = StringBuilder(64)
+}
+
+fun makeTvSubtitle(seriesName: String, seasonNumber: Int, episodeNumber: Int): String {
+    val sb = sSubtitleBuilder.get()
+    sb.setLength(0)
+    sb.append(seriesName).append(" - S")
+    sb.appendZeroPadded(seasonNumber, 2).append('E')
+    sb.appendZeroPadded(episodeNumber, 2)
+    return sb.toString()
+}
+
+/**
+ * Same as [zeroPad] without the intermediate strings
+ */
+private fun StringBuilder.appendZeroPadded(value: Int, len: Int): StringBuilder {
+    var width = if (value < 0) 2 else 1
+    var rest = value / 10
+    while (rest != 0) {
+        width++
+        rest /= 10
+    }
+    while (width++ < len) {
+        append('0')
+    }
+    return append(value)
+}
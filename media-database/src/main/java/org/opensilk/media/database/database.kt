@@ -1,12 +1,29 @@
 package org.opensilk.media.database
 
 import android.content.Context
+import android.database.Cursor
 import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteOpenHelper
+import android.net.Uri
 import org.opensilk.dagger2.ForApp
+import org.opensilk.media.*
 import javax.inject.Inject
 
-const private val VERSION = 7
+const private val VERSION = 12
+
+/**
+ * Tables of folder children, their rows are hidden instead of deleted when they go missing
+ */
+internal val HIDEABLE_TABLES = arrayOf(
+        "upnp_folder", "upnp_video", "upnp_music_track",
+        "document_directory", "document_video", "document_music_track",
+        "storage_directory", "storage_video", "storage_music_track"
+)
+
+/**
+ * The hideable tables whose rows can have a playback position
+ */
+internal val POSITIONED_TABLES = arrayOf("upnp_video", "document_video", "storage_video")
 
 /**
  * Created by drew on 7/18/17.
@@ -16,6 +33,31 @@ internal class MediaDB
         @ForApp context: Context
 ) : SQLiteOpenHelper(context, "media.sqlite", null, VERSION) {
 
+    init {
+        //readers get their own connections and no longer wait on prefetch writes
+        setWriteAheadLoggingEnabled(true)
+    }
+
+    override fun onConfigure(db: SQLiteDatabase) {
+        super.onConfigure(db)
+        //every route and selection is its own statement, the default cache of 25 keeps recompiling them
+        db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE)
+        //negative values are in KiB
+        db.execSQL("PRAGMA cache_size=-4096")
+        //wal only needs a sync on checkpoint to stay consistent
+        db.execSQL("PRAGMA synchronous=NORMAL")
+        //checkpoint often enough to keep the log small during large folder refreshes
+        pragma(db, "wal_autocheckpoint=500")
+        pragma(db, "journal_size_limit=${4 * 1024 * 1024}")
+    }
+
+    /**
+     * Pragmas that return their value have to go through rawQuery
+     */
+    private fun pragma(db: SQLiteDatabase, pragma: String) {
+        db.rawQuery("PRAGMA $pragma", null).use { c -> c.moveToFirst() }
+    }
+
     override fun onCreate(db: SQLiteDatabase) {
         onUpgrade(db, 0, VERSION)
     }
@@ -295,5 +337,161 @@ internal class MediaDB
                     "UNIQUE(device_id,item_id,parent_id) " +
                     ");")
         }
+        if (oldVersion < 8) {
+            //folder children, filtered on parent and hidden, sorted on name
+            db.execSQL("CREATE INDEX IF NOT EXISTS upnp_folder_children " +
+                    "ON upnp_folder(device_id, parent_id, hidden, _display_name)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS upnp_video_children " +
+                    "ON upnp_video(device_id, parent_id, hidden, _display_name)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS upnp_music_track_children " +
+                    "ON upnp_music_track(device_id, parent_id, hidden, _display_name)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS document_directory_children " +
+                    "ON document_directory(tree_uri, parent_id, hidden, _display_name)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS document_video_children " +
+                    "ON document_video(tree_uri, parent_id, hidden, _display_name)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS document_music_track_children " +
+                    "ON document_music_track(tree_uri, parent_id, hidden, _display_name)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS storage_directory_children " +
+                    "ON storage_directory(device_uuid, parent_path, hidden, _display_name)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS storage_video_children " +
+                    "ON storage_video(device_uuid, parent_path, hidden, _display_name)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS storage_music_track_children " +
+                    "ON storage_music_track(device_uuid, parent_path, hidden, _display_name)")
+            //recently played
+            db.execSQL("CREATE INDEX IF NOT EXISTS upnp_video_last_played " +
+                    "ON upnp_video(last_played)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS document_video_last_played " +
+                    "ON document_video(last_played)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS storage_video_last_played " +
+                    "ON storage_video(last_played)")
+            //lookup associations
+            db.execSQL("CREATE INDEX IF NOT EXISTS upnp_video_episode_id ON upnp_video(episode_id)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS upnp_video_movie_id ON upnp_video(movie_id)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS document_video_episode_id ON document_video(episode_id)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS document_video_movie_id ON document_video(movie_id)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS storage_video_episode_id ON storage_video(episode_id)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS storage_video_movie_id ON storage_video(movie_id)")
+            //metadata
+            db.execSQL("CREATE INDEX IF NOT EXISTS tv_episodes_series_id ON tv_episodes(series_id)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS tv_banners_series_id " +
+                    "ON tv_banners(series_id, type, rating)")
+            db.execSQL("CREATE INDEX IF NOT EXISTS movie_images_movie_id " +
+                    "ON movie_images(movie_id, image_type)")
+        }
+        if (oldVersion < 9) {
+            //positions are keyed on the media id instead of the display name
+            db.execSQL("ALTER TABLE upnp_video ADD COLUMN media_key INTEGER")
+            db.execSQL("ALTER TABLE document_video ADD COLUMN media_key INTEGER")
+            db.execSQL("ALTER TABLE storage_video ADD COLUMN media_key INTEGER")
+            backfillMediaKeys(db, "upnp_video", arrayOf("device_id", "parent_id", "item_id"), { c ->
+                UpnpVideoId(deviceId = c.getString(0), parentId = c.getString(1), itemId = c.getString(2))
+            })
+            backfillMediaKeys(db, "document_video", arrayOf("tree_uri", "document_id", "parent_id"), { c ->
+                DocVideoId(treeUri = Uri.parse(c.getString(0)), documentId = c.getString(1),
+                        parentId = c.getString(2))
+            })
+            backfillMediaKeys(db, "storage_video", arrayOf("path", "device_uuid", "parent_path"), { c ->
+                StorageVideoId(path = c.getString(0), uuid = c.getString(1), parent = c.getString(2))
+            })
+            db.execSQL("DROP TABLE IF EXISTS media_position_v9")
+            db.execSQL("CREATE TABLE media_position_v9 (" +
+                    "media_key INTEGER PRIMARY KEY, " +
+                    "last_played INTEGER NOT NULL, " + //milli
+                    "last_position INTEGER NOT NULL, " +
+                    "last_completion INTEGER NOT NULL " +
+                    ");")
+            //every video that shared a name also shared the position, so they all keep it
+            for (table in arrayOf("upnp_video", "document_video", "storage_video")) {
+                db.execSQL("INSERT OR REPLACE INTO media_position_v9 " +
+                        "(media_key, last_played, last_position, last_completion) " +
+                        "SELECT v.media_key, p.last_played, p.last_position, p.last_completion " +
+                        "FROM $table v JOIN media_position p ON v._display_name = p._display_name")
+            }
+            db.execSQL("DROP TABLE media_position")
+            db.execSQL("ALTER TABLE media_position_v9 RENAME TO media_position")
+        }
+        if (oldVersion < 10) {
+            //full text search over titles and the metadata they were matched to
+            db.execSQL("DROP TABLE IF EXISTS media_search")
+            db.execSQL("CREATE VIRTUAL TABLE media_search USING fts4(" +
+                    "title, alt_title, collection, overview)")
+            val videoJoins = "LEFT JOIN tv_episodes e ON e._id = new.episode_id " +
+                    "LEFT JOIN tv_series s ON s._id = e.series_id " +
+                    "LEFT JOIN movies m ON m._id = new.movie_id"
+            val videoColumns = "new._display_name, COALESCE(e._display_name, m._display_name), " +
+                    "s._display_name, COALESCE(e.overview, m.overview)"
+            val videoWatched = arrayOf("_display_name", "episode_id", "movie_id")
+            createSearchIndex(db, "upnp_video", SEARCH_KIND_UPNP_VIDEO,
+                    videoColumns, videoJoins, videoWatched)
+            createSearchIndex(db, "document_video", SEARCH_KIND_DOCUMENT_VIDEO,
+                    videoColumns, videoJoins, videoWatched)
+            createSearchIndex(db, "storage_video", SEARCH_KIND_STORAGE_VIDEO,
+                    videoColumns, videoJoins, videoWatched)
+            createSearchIndex(db, "upnp_music_track", SEARCH_KIND_UPNP_MUSIC_TRACK,
+                    "new._display_name, NULL, " +
+                            "TRIM(COALESCE(new.artist, '') || ' ' || COALESCE(new.album, '')), NULL",
+                    "", arrayOf("_display_name", "artist", "album"))
+            createSearchIndex(db, "document_music_track", SEARCH_KIND_DOCUMENT_MUSIC_TRACK,
+                    "new._display_name, NULL, NULL, NULL", "", arrayOf("_display_name"))
+            createSearchIndex(db, "storage_music_track", SEARCH_KIND_STORAGE_MUSIC_TRACK,
+                    "new._display_name, NULL, NULL, NULL", "", arrayOf("_display_name"))
+        }
+        if (oldVersion < 11) {
+            //when a row was hidden, so maintenance can purge the ones gone for good
+            for (table in HIDEABLE_TABLES) {
+                db.execSQL("ALTER TABLE $table ADD COLUMN hidden_since INTEGER")
+                db.execSQL("UPDATE $table SET hidden_since = ${System.currentTimeMillis()} WHERE hidden=1")
+            }
+        }
+        if (oldVersion < 12) {
+            //SystemUpdateID of the server when each container was last browsed
+            db.execSQL("DROP TABLE IF EXISTS upnp_browse_state")
+            db.execSQL("CREATE TABLE upnp_browse_state (" +
+                    "device_id TEXT NOT NULL, " +
+                    "container_id TEXT NOT NULL, " +
+                    "system_update_id INTEGER NOT NULL, " +
+                    "PRIMARY KEY(device_id, container_id) " +
+                    ") WITHOUT ROWID")
+        }
+    }
+
+    /**
+     * Indexes the existing rows of [table] and adds triggers keeping media_search current.
+     * [columns] and [joins] refer to the source row as new, the backfill aliases the table to match.
+     * Updates only reindex when one of the [watched] columns really changed, so upserting
+     * an unchanged folder doesn't rewrite the index.
+     */
+    private fun createSearchIndex(db: SQLiteDatabase, table: String, kind: Int, columns: String,
+                                  joins: String, watched: Array<String>) {
+        val docid = "(new.rowid << $SEARCH_KIND_BITS) | $kind"
+        val insert = "INSERT OR REPLACE INTO media_search (docid, title, alt_title, collection, overview) "
+        db.execSQL(insert + "SELECT $docid, $columns FROM $table AS new $joins")
+        db.execSQL("DROP TRIGGER IF EXISTS ${table}_search_insert")
+        db.execSQL("CREATE TRIGGER ${table}_search_insert AFTER INSERT ON $table BEGIN " +
+                insert + "SELECT $docid, $columns FROM (SELECT 1) $joins; " +
+                "END")
+        db.execSQL("DROP TRIGGER IF EXISTS ${table}_search_update")
+        db.execSQL("CREATE TRIGGER ${table}_search_update " +
+                "AFTER UPDATE OF ${watched.joinToString(", ")} ON $table " +
+                "WHEN ${watched.joinToString(" OR ") { "old.$it IS NOT new.$it" }} BEGIN " +
+                insert + "SELECT $docid, $columns FROM (SELECT 1) $joins; " +
+                "END")
+        db.execSQL("DROP TRIGGER IF EXISTS ${table}_search_delete")
+        db.execSQL("CREATE TRIGGER ${table}_search_delete AFTER DELETE ON $table BEGIN " +
+                "DELETE FROM media_search WHERE docid = (old.rowid << $SEARCH_KIND_BITS) | $kind; " +
+                "END")
+    }
+
+    private fun backfillMediaKeys(db: SQLiteDatabase, table: String, columns: Array<String>,
+                                  toMediaId: (Cursor) -> MediaId) {
+        val update = db.compileStatement("UPDATE $table SET media_key=? WHERE rowid=?")
+        db.query(table, arrayOf(*columns, "rowid"), null, null, null, null, null).use { c ->
+            while (c.moveToNext()) {
+                update.bindLong(1, toMediaId(c).mediaKey)
+                update.bindLong(2, c.getLong(columns.size))
+                update.executeUpdateDelete()
+            }
+        }
+        update.close()
     }
 }
\ No newline at end of file
@@ -0,0 +1,28 @@
+package org.opensilk.media.database
+
+import android.database.Cursor
+import org.opensilk.media.VideoRef
+
+/**
+ * Everything a detail screen shows about a video
+ */
+data class VideoDetail(
+        val ref: VideoRef,
+        val overview: String
+)
+
+/**
+ * Appended to a video projection by [MediaDAO.getVideoDetail]
+ */
+internal val VIDEO_DETAIL_COLUMNS = arrayOf("e.overview", "m.overview")
+
+/**
+ * The episode overview, else the movie overview, read from [VIDEO_DETAIL_COLUMNS] at [first]
+ */
+internal fun Cursor.videoOverview(first: Int): String {
+    val episode = getString(first)
+    if (!episode.isNullOrBlank()) {
+        return episode
+    }
+    return getString(first + 1) ?: ""
+}
@@ -0,0 +1,19 @@
+package org.opensilk.media.database
+
+import org.opensilk.media.MediaId
+
+private const val FNV_OFFSET_BASIS = -0x340d631b7bdddcdbL //0xcbf29ce484222325
+private const val FNV_PRIME = 0x100000001b3L
+
+/**
+ * Stable integer key for a media id, FNV-1a over the json representation.
+ * Used to join per item tables (like media_position) on an integer instead of text.
+ */
+val MediaId.mediaKey: Long
+    get() {
+        var hash = FNV_OFFSET_BASIS
+        for (ch in json) {
+            hash = (hash xor ch.toLong()) * FNV_PRIME
+        }
+        return hash
+    }
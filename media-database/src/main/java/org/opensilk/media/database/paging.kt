@@ -0,0 +1,35 @@
+package org.opensilk.media.database
+
+/**
+ * Position of the last row of a page, the next page starts right after it.
+ * Rows are ordered by display name with the rowid breaking ties.
+ */
+data class PageKey(val displayName: String, val rowId: Long)
+
+/**
+ * A window of rows and the key of the window after it, null when this is the last one
+ */
+data class Page<out T>(val items: List<T>, val next: PageKey?)
+
+/**
+ * Selection for the rows of [alias] after [after]. Written as a range on the display name
+ * so sqlite seeks the children index to the start of the page instead of walking
+ * every row before it; the rowid only settles rows sharing the boundary name.
+ */
+internal fun pageSelection(alias: String, selection: String, after: PageKey?): String = when (after) {
+    null -> selection
+    else -> "$selection AND $alias._display_name >= ? AND " +
+            "($alias._display_name > ? OR $alias.rowid > ?)"
+}
+
+internal fun pageSelectionArgs(selectionArgs: Array<String>, after: PageKey?): Array<String> = when (after) {
+    null -> selectionArgs
+    else -> selectionArgs + arrayOf(after.displayName, after.displayName, after.rowId.toString())
+}
+
+/**
+ * Order matching [pageSelection], [limit] is one more than the page size to learn
+ * if there is a next page without a second query
+ */
+internal fun pageSortOrder(alias: String, limit: Int): String =
+        "$alias._display_name, $alias.rowid LIMIT $limit"
@@ -0,0 +1,109 @@
+package org.opensilk.media.database
+
+import android.content.ContentValues
+import io.reactivex.Scheduler
+import io.reactivex.disposables.Disposable
+import io.reactivex.schedulers.Schedulers
+import org.opensilk.media.VideoId
+import org.opensilk.reactivex2.safeDispose
+import java.util.concurrent.TimeUnit
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * How long positions are held before they are written
+ */
+internal const val POSITION_FLUSH_DELAY_MS = 5000L
+
+/**
+ * Playback position of a video as of [lastPlayed]
+ */
+data class PlaybackPosition(
+        val position: Long,
+        val duration: Long,
+        val lastPlayed: Long = System.currentTimeMillis()
+)
+
+internal fun PlaybackPosition.contentValues(videoId: VideoId): ContentValues {
+    val values = ContentValues()
+    values.put("media_key", videoId.mediaKey)
+    values.put("last_played", lastPlayed)
+    values.put("last_position", position)
+    values.put("last_completion", calculateCompletion(position, duration))
+    return values
+}
+
+/**
+ * Write behind buffer for playback positions. Only the newest position of each video
+ * is held and they are written together in one transaction, [POSITION_FLUSH_DELAY_MS]
+ * after the first unwritten one or when [flush] is called. Seeking and scrubbing
+ * only replace the held position.
+ */
+@Singleton
+class PlaybackPositionStore
+internal constructor(
+        private val mDAO: MediaDAO,
+        private val mScheduler: Scheduler
+) {
+
+    @Inject constructor(dao: MediaDAO): this(dao, Schedulers.io())
+
+    private val mPending = LinkedHashMap<VideoId, PlaybackPosition>()
+    private val mFlushLock = Any()
+    private var mFlushTask: Disposable? = null
+
+    /**
+     * Holds [position] for [videoId] replacing any unwritten one.
+     * Positions without a known [duration] are dropped.
+     */
+    fun put(videoId: VideoId, position: Long, duration: Long) {
+        if (duration <= 0) {
+            return
+        }
+        synchronized(mPending) {
+            mPending.put(videoId, PlaybackPosition(position, duration))
+            if (mFlushTask == null) {
+                mFlushTask = mScheduler.scheduleDirect({
+                    synchronized(mPending) {
+                        mFlushTask = null
+                    }
+                    flush()
+                }, POSITION_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS)
+            }
+        }
+    }
+
+    /**
+     * The unwritten position of [videoId], if any
+     */
+    fun get(videoId: VideoId): PlaybackPosition? = synchronized(mPending) {
+        mPending[videoId]
+    }
+
+    /**
+     * Writes the held positions now, on the calling thread
+     */
+    fun flush() {
+        //flushes are serialized so an older batch can't land after a newer one
+        synchronized(mFlushLock) {
+            val batch = synchronized(mPending) {
+                mFlushTask.safeDispose()
+                mFlushTask = null
+                val batch = LinkedHashMap(mPending)
+                mPending.clear()
+                batch
+            }
+            if (batch.isNotEmpty()) {
+                mDAO.setLastPlaybackPositions(batch)
+            }
+        }
+    }
+
+    /**
+     * Writes the held positions now, off the calling thread
+     */
+    fun flushAsync() {
+        mScheduler.scheduleDirect { flush() }
+    }
+
+}
@@ -1,14 +1,47 @@
 package org.opensilk.media.database
 
 import android.content.ContentProvider
+import android.content.ContentProviderOperation
+import android.content.ContentProviderResult
 import android.content.ContentValues
 import android.database.Cursor
 import android.database.sqlite.SQLiteDatabase
-import android.database.sqlite.SQLiteException
 import android.net.Uri
+import android.database.sqlite.SQLiteException
+import android.database.sqlite.SQLiteQueryBuilder
+import android.os.Bundle
+import android.os.CancellationSignal
 import dagger.android.AndroidInjection
+import timber.log.Timber
+import java.io.FileDescriptor
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.util.concurrent.TimeUnit
 import javax.inject.Inject
 
+internal const val RECENT_KIND_UPNP = 0
+internal const val RECENT_KIND_DOCUMENT = 1
+internal const val RECENT_KIND_STORAGE = 2
+/**
+ * Columns of [MediaDBUris.recentVideos] after the shared video projection, the
+ * upnp, document and storage projections must line up for the UNION ALL
+ */
+internal val RECENT_KIND_COLUMN = upnpVideoProjection.size.also { size ->
+    require(videoDocumentProjection.size == size && storageVideoProjection.size == size) {
+        "Video projections differ in size, recent videos can't union them"
+    }
+}
+internal val RECENT_LAST_PLAYED_COLUMN = RECENT_KIND_COLUMN + 1
+
+/**
+ * [MediaProvider.call] methods for the maintenance job
+ */
+internal const val CALL_PURGE_HIDDEN = "purge_hidden"
+internal const val CALL_OPTIMIZE = "optimize"
+internal const val CALL_RESULT_ROWS = "rows"
+internal const val CALL_RESULT_BYTES = "bytes"
+private const val AUTO_VACUUM_INCREMENTAL = 2L
+
 /**
  * Created by drew on 7/18/17.
  */
@@ -16,6 +49,7 @@ class MediaProvider : ContentProvider() {
 
     @Inject internal lateinit var mMediaDB: MediaDB
     @Inject internal lateinit var mUris: MediaDBUris
+    internal val mStats = ProviderStats()
 
     override fun onCreate(): Boolean {
         AndroidInjection.inject(this)
@@ -29,6 +63,56 @@ class MediaProvider : ContentProvider() {
 
     override fun query(uri: Uri, projection: Array<String>?, selection: String?,
                        selectionArgs: Array<String>?, sortOrder: String?): Cursor? {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null)
+    }
+
+    override fun query(uri: Uri, projection: Array<String>?, selection: String?,
+                       selectionArgs: Array<String>?, sortOrder: String?,
+                       cancellationSignal: CancellationSignal?): Cursor? {
+        val sql = querySql(uri, projection, selection, sortOrder)
+        if (!mStats.enabled) {
+            return mMediaDB.readableDatabase.rawQuery(sql, selectionArgs, cancellationSignal)
+        }
+        val start = System.nanoTime()
+        val c = mMediaDB.readableDatabase.rawQuery(sql, selectionArgs, cancellationSignal)
+        //the query only runs when the cursor fills its first window,
+        //the window stays with the cursor so the caller doesn't run it twice
+        val rows = c.count
+        val nanos = System.nanoTime() - start
+        mStats.record(OP_QUERY, uri, nanos, rows)
+        if (nanos >= mStats.slowNanos) {
+            logSlowQuery(uri, sql, selectionArgs, nanos)
+        }
+        return c
+    }
+
+    private fun logSlowQuery(uri: Uri, sql: String, selectionArgs: Array<String>?, nanos: Long) {
+        val plan = try {
+            mMediaDB.readableDatabase.rawQuery("EXPLAIN QUERY PLAN $sql", selectionArgs).use { c ->
+                val sb = StringBuilder()
+                while (c.moveToNext()) {
+                    sb.append("\n  ").append(c.getString(c.getColumnIndexOrThrow("detail")))
+                }
+                sb.toString()
+            }
+        } catch (e: SQLiteException) {
+            " unavailable: ${e.message}"
+        }
+        Timber.w("Slow query %dms on %s (%s): %s\nplan:%s", TimeUnit.NANOSECONDS.toMillis(nanos),
+                uri.path, Thread.currentThread().name, sql, plan)
+    }
+
+    /**
+     * The sql [query] runs for these arguments, a limit query parameter on [uri] limits the rows
+     */
+    internal fun querySql(uri: Uri, projection: Array<out String>?, selection: String?, sortOrder: String?): String =
+            SQLiteQueryBuilder.buildQueryString(false, queryTable(uri), projection,
+                    selection, null, null, sortOrder, uri.getQueryParameter("limit")?.toIntOrNull()?.toString())
+
+    /**
+     * The table, or join, that queries on [uri] run against
+     */
+    internal fun queryTable(uri: Uri): String {
         val table: String
         when (mUris.matcher.match(uri)) {
             M.TV_SERIES -> {
@@ -60,12 +144,23 @@ class MediaProvider : ContentProvider() {
                         "LEFT JOIN tv_episodes e ON v.episode_id = e._id " +
                         "LEFT JOIN tv_series s ON e.series_id = s._id " +
                         "LEFT JOIN movies m ON v.movie_id = m._id " +
-                        "LEFT JOIN media_position p ON v._display_name = p._display_name " +
+                        "LEFT JOIN media_position p ON v.media_key = p.media_key " +
                         "JOIN upnp_device d ON v.device_id = d.device_id "
             }
+            M.UPNP_VIDEO_LIST -> {
+                //list rows only need the position, artwork is looked up per row
+                table = "upnp_video v " +
+                        "LEFT JOIN media_position p ON v.media_key = p.media_key "
+            }
+            M.UPNP_BROWSE_STATE -> {
+                table = "upnp_browse_state"
+            }
             M.PLAYBACK_POSITION -> {
                 table = "media_position"
             }
+            M.RECENT_VIDEO -> {
+                table = recentVideosTable(uri.getQueryParameter("limit")?.toIntOrNull() ?: 10)
+            }
             M.DOCUMENT_DIRECTORY -> {
                 table = "document_directory"
             }
@@ -74,7 +169,7 @@ class MediaProvider : ContentProvider() {
                         "LEFT JOIN tv_episodes e ON v.episode_id = e._id " +
                         "LEFT JOIN tv_series s ON e.series_id = s._id " +
                         "LEFT JOIN movies m ON v.movie_id = m._id " +
-                        "LEFT JOIN media_position p ON v._display_name = p._display_name "
+                        "LEFT JOIN media_position p ON v.media_key = p.media_key "
             }
             M.DOCUMENT_MUSIC_TRACK -> {
                 table = "document_music_track t "
@@ -91,26 +186,58 @@ class MediaProvider : ContentProvider() {
                         "LEFT JOIN tv_episodes e ON v.episode_id = e._id " +
                         "LEFT JOIN tv_series s ON e.series_id = s._id " +
                         "LEFT JOIN movies m ON v.movie_id = m._id " +
-                        "LEFT JOIN media_position p ON v._display_name = p._display_name " +
+                        "LEFT JOIN media_position p ON v.media_key = p.media_key " +
                         "JOIN storage_device d ON v.device_uuid = d.uuid "
             }
+            M.STORAGE_VIDEO_LIST -> {
+                //list rows only need the position, artwork is looked up per row
+                table = "storage_video v " +
+                        "LEFT JOIN media_position p ON v.media_key = p.media_key "
+            }
             M.STORAGE_MUSIC_TRACK -> {
                 table = "storage_music_track t "
             }
             M.PINS -> {
                 table = "pinned"
             }
+            M.SEARCH -> {
+                table = "media_search"
+            }
             else -> TODO("Unmatched uri: $uri")
         }
-        return mMediaDB.readableDatabase.query(table, projection, selection,
-                selectionArgs, null, null, sortOrder)
+        return table
+    }
+
+    /**
+     * The three video tables in one compound query, newest first. Each branch takes
+     * [limit] rows off its last_played index so at most three times [limit] rows are sorted.
+     * Columns are the per kind video projection followed by the kind and last_played.
+     */
+    private fun recentVideosTable(limit: Int): String {
+        val branches = listOf(
+                recentVideosBranch(RECENT_KIND_UPNP, upnpVideoProjection,
+                        queryTable(mUris.upnpVideo()), limit),
+                recentVideosBranch(RECENT_KIND_DOCUMENT, videoDocumentProjection,
+                        queryTable(mUris.documentVideo()), limit),
+                recentVideosBranch(RECENT_KIND_STORAGE, storageVideoProjection,
+                        queryTable(mUris.storageVideo()), limit)
+        )
+        return "(" + branches.joinToString(" UNION ALL ") +
+                " ORDER BY ${RECENT_LAST_PLAYED_COLUMN + 1} DESC LIMIT $limit)"
     }
 
+    private fun recentVideosBranch(kind: Int, projection: Array<String>, table: String, limit: Int): String =
+            "SELECT * FROM (SELECT ${projection.joinToString(", ")}, $kind, v.last_played " +
+                    "FROM $table WHERE v.last_played > 0 ORDER BY v.last_played DESC LIMIT $limit)"
+
     override fun getType(uri: Uri): String? {
         return null
     }
 
-    override fun insert(uri: Uri, values: ContentValues): Uri? {
+    override fun insert(uri: Uri, values: ContentValues): Uri? =
+            mStats.measure(OP_INSERT, uri, { doInsert(uri, values) }, { if (it == URI_SUCCESS) 1 else 0 })
+
+    private fun doInsert(uri: Uri, values: ContentValues): Uri? {
         val db = mMediaDB.writableDatabase
         when (mUris.matcher.match(uri)) {
             M.TV_SERIES -> {
@@ -134,62 +261,23 @@ class MediaProvider : ContentProvider() {
                 return if (id > 0) URI_SUCCESS else URI_FAILURE
             }
             M.UPNP_DEVICE -> {
-                val id: Long = try {
-                    db.insertWithOnConflict("upnp_device", null, values, SQLiteDatabase.CONFLICT_FAIL)
-                } catch (ignored: SQLiteException) { -1L }
-                if (id > 0) {
-                    return URI_SUCCESS
-                }
-                val device_id = values.getAsString("device_id")
-                values.remove("device_id")
-                return if (db.update("upnp_device", values, "device_id=?", arrayOf(device_id)) != 0)
-                    URI_SUCCESS else URI_FAILURE
+                return upsert(db, "upnp_device", values, arrayOf("device_id"))
             }
             M.UPNP_FOLDER -> {
                 val id = db.insertWithOnConflict("upnp_folder", null, values, SQLiteDatabase.CONFLICT_REPLACE)
                 return if (id > 0) URI_SUCCESS else URI_FAILURE
             }
             M.UPNP_MUSIC_TRACK -> {
-                val id: Long = try {
-                    db.insertWithOnConflict("upnp_music_track", null, values, SQLiteDatabase.CONFLICT_FAIL)
-                } catch (ignored: SQLiteException) { -1L }
-                if (id > 0) {
-                    return URI_SUCCESS
-                }
-                //already in database, we don't want to replace so update entry
-                val device_id = values.getAsString("device_id")
-                val parent_id = values.getAsString("parent_id")
-                val item_id = values.getAsString("item_id")
-                values.remove("device_id")
-                values.remove("parent_id")
-                values.remove("item_id")
-                values.remove("date_added")
-                //update the entry
-                return if (db.update("upnp_music_track", values,
-                        "device_id=? AND parent_id=? AND item_id=?",
-                        arrayOf(device_id, parent_id, item_id)) != 0)
-                    URI_SUCCESS else URI_FAILURE
+                return upsert(db, "upnp_music_track", values,
+                        arrayOf("device_id", "parent_id", "item_id"), arrayOf("date_added"))
             }
             M.UPNP_VIDEO -> {
-                val id: Long = try {
-                    db.insertWithOnConflict("upnp_video", null, values, SQLiteDatabase.CONFLICT_FAIL)
-                } catch (ignored: SQLiteException) { -1L }
-                if (id > 0) {
-                    return URI_SUCCESS
-                }
-                //already in database, we don't want to replace so update entry
-                val device_id = values.getAsString("device_id")
-                val parent_id = values.getAsString("parent_id")
-                val item_id = values.getAsString("item_id")
-                values.remove("device_id")
-                values.remove("parent_id")
-                values.remove("item_id")
-                values.remove("date_added")
-                //update the entry
-                return if (db.update("upnp_video", values,
-                        "device_id=? AND parent_id=? AND item_id=?",
-                        arrayOf(device_id, parent_id, item_id)) != 0)
-                    URI_SUCCESS else URI_FAILURE
+                return upsert(db, "upnp_video", values,
+                        arrayOf("device_id", "parent_id", "item_id"), arrayOf("date_added"))
+            }
+            M.UPNP_BROWSE_STATE -> {
+                val id = db.insertWithOnConflict("upnp_browse_state", null, values, SQLiteDatabase.CONFLICT_REPLACE)
+                return if (id != -1L) URI_SUCCESS else URI_FAILURE
             }
             M.PLAYBACK_POSITION -> {
                 val id = db.insertWithOnConflict("media_position", null, values, SQLiteDatabase.CONFLICT_REPLACE)
@@ -200,46 +288,12 @@ class MediaProvider : ContentProvider() {
                 return if (id > 0) URI_SUCCESS else URI_FAILURE
             }
             M.DOCUMENT_VIDEO -> {
-                val id: Long = try {
-                    db.insertWithOnConflict("document_video", null, values, SQLiteDatabase.CONFLICT_FAIL)
-                } catch (ignored: SQLiteException) { -1L }
-                if (id > 0) {
-                    return URI_SUCCESS
-                }
-                //already in db
-                val tree_uri = values.getAsString("tree_uri")
-                val doc_id = values.getAsString("document_id")
-                val parent_id = values.getAsString("parent_id")
-                values.remove("tree_uri")
-                values.remove("document_id")
-                values.remove("parent_id")
-                values.remove("date_added")
-                //update existing
-                return if (db.update("document_video", values,
-                        "tree_uri=? AND document_id=? AND parent_id=?",
-                        arrayOf(tree_uri, doc_id, parent_id)) != 0)
-                    URI_SUCCESS else URI_FAILURE
+                return upsert(db, "document_video", values,
+                        arrayOf("tree_uri", "document_id", "parent_id"), arrayOf("date_added"))
             }
             M.DOCUMENT_MUSIC_TRACK -> {
-                val id: Long = try {
-                    db.insertWithOnConflict("document_music_track", null, values, SQLiteDatabase.CONFLICT_FAIL)
-                } catch (ignored: SQLiteException) { -1L }
-                if (id > 0) {
-                    return URI_SUCCESS
-                }
-                //already in db
-                val tree_uri = values.getAsString("tree_uri")
-                val doc_id = values.getAsString("document_id")
-                val parent_id = values.getAsString("parent_id")
-                values.remove("tree_uri")
-                values.remove("document_id")
-                values.remove("parent_id")
-                values.remove("date_added")
-                //update existing
-                return if (db.update("document_music_track", values,
-                        "tree_uri=? AND document_id=? AND parent_id=?",
-                        arrayOf(tree_uri, doc_id, parent_id)) != 0)
-                    URI_SUCCESS else URI_FAILURE
+                return upsert(db, "document_music_track", values,
+                        arrayOf("tree_uri", "document_id", "parent_id"), arrayOf("date_added"))
             }
             M.STORAGE_DEVICE -> {
                 val id = db.insertWithOnConflict("storage_device", null, values, SQLiteDatabase.CONFLICT_REPLACE)
@@ -250,36 +304,10 @@ class MediaProvider : ContentProvider() {
                 return if (id > 0) URI_SUCCESS else URI_FAILURE
             }
             M.STORAGE_VIDEO -> {
-                val id: Long = try {
-                    db.insertWithOnConflict("storage_video", null, values, SQLiteDatabase.CONFLICT_FAIL)
-                } catch (ignored: SQLiteException) { -1L }
-                if (id > 0) {
-                    return URI_SUCCESS
-                }
-                //already in db
-                val path = values.getAsString("path")
-                val uuid = values.getAsString("device_uuid")
-                values.remove("path")
-                values.remove("device_uuid")
-                //update existing
-                return if (db.update("storage_video", values, "path=? AND device_uuid=?",
-                        arrayOf(path, uuid)) != 0) URI_SUCCESS else URI_FAILURE
+                return upsert(db, "storage_video", values, arrayOf("path", "device_uuid"))
             }
             M.STORAGE_MUSIC_TRACK -> {
-                val id: Long = try {
-                    db.insertWithOnConflict("storage_music_track", null, values, SQLiteDatabase.CONFLICT_FAIL)
-                } catch (ignored: SQLiteException) { -1L }
-                if (id > 0) {
-                    return URI_SUCCESS
-                }
-                //already in db
-                val path = values.getAsString("path")
-                val uuid = values.getAsString("device_uuid")
-                values.remove("path")
-                values.remove("device_uuid")
-                //update existing
-                return if (db.update("storage_music_track", values, "path=? AND device_uuid=?",
-                        arrayOf(path, uuid)) != 0) URI_SUCCESS else URI_FAILURE
+                return upsert(db, "storage_music_track", values, arrayOf("path", "device_uuid"))
             }
             M.PINS -> {
                 db.insertWithOnConflict("pinned", null, values, SQLiteDatabase.CONFLICT_IGNORE)
@@ -295,11 +323,17 @@ class MediaProvider : ContentProvider() {
             M.PINS -> {
                 db.delete("pinned", selection, selectionArgs)
             }
+            M.UPNP_BROWSE_STATE -> {
+                db.delete("upnp_browse_state", selection, selectionArgs)
+            }
             else -> TODO("Unmatched uri: $uri")
         }
     }
 
-    override fun update(uri: Uri, values: ContentValues?, selection: String?, selectionArgs: Array<String>?): Int {
+    override fun update(uri: Uri, values: ContentValues?, selection: String?, selectionArgs: Array<String>?): Int =
+            mStats.measure(OP_UPDATE, uri, { doUpdate(uri, values, selection, selectionArgs) }, { it })
+
+    private fun doUpdate(uri: Uri, values: ContentValues?, selection: String?, selectionArgs: Array<String>?): Int {
         val db = mMediaDB.writableDatabase
         when (mUris.matcher.match(uri)) {
             M.MOVIE -> {
@@ -320,6 +354,9 @@ class MediaProvider : ContentProvider() {
             M.UPNP_VIDEO -> {
                 return db.update("upnp_video", values, selection, selectionArgs)
             }
+            M.UPNP_BROWSE_STATE -> {
+                return db.update("upnp_browse_state", values, selection, selectionArgs)
+            }
             M.DOCUMENT_DIRECTORY -> {
                 return db.update("document_directory", values, selection, selectionArgs)
             }
@@ -344,4 +381,157 @@ class MediaProvider : ContentProvider() {
             else -> TODO("Unmatched uri: $uri")
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Runs the whole batch inside a single transaction so a folder refresh
+     * commits once and readers never see a partially applied batch
+     */
+    override fun applyBatch(operations: ArrayList<ContentProviderOperation>): Array<ContentProviderResult> {
+        val db = mMediaDB.writableDatabase
+        db.beginTransaction()
+        try {
+            val results = super.applyBatch(operations)
+            db.setTransactionSuccessful()
+            return results
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    override fun bulkInsert(uri: Uri, values: Array<ContentValues>): Int =
+            mStats.measure(OP_BULK_INSERT, uri, { doBulkInsert(uri, values) }, { it })
+
+    private fun doBulkInsert(uri: Uri, values: Array<ContentValues>): Int {
+        val db = mMediaDB.writableDatabase
+        db.beginTransaction()
+        try {
+            var num = 0
+            values.forEach { cv ->
+                if (doInsert(uri, cv) == URI_SUCCESS) {
+                    num++
+                }
+            }
+            db.setTransactionSuccessful()
+            return num
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    override fun call(method: String, arg: String?, extras: Bundle?): Bundle? = when (method) {
+        CALL_PURGE_HIDDEN -> purgeHidden(arg!!.toLong())
+        CALL_OPTIMIZE -> optimize()
+        CALL_STATS -> stats(arg)
+        else -> super.call(method, arg, extras)
+    }
+
+    /**
+     * Applies [command] to the stats and returns their dump
+     */
+    private fun stats(command: String?): Bundle {
+        when (command) {
+            STATS_ENABLE -> mStats.enabled = true
+            STATS_DISABLE -> mStats.enabled = false
+            STATS_RESET -> mStats.reset()
+        }
+        val sw = StringWriter()
+        PrintWriter(sw).use { mStats.dump(it) }
+        val result = Bundle()
+        result.putString(CALL_RESULT_STATS, sw.toString())
+        return result
+    }
+
+    /**
+     * adb shell dumpsys activity provider MediaProvider [enable [slowMs]|disable|reset]
+     */
+    override fun dump(fd: FileDescriptor?, writer: PrintWriter, args: Array<out String>?) {
+        when (args?.getOrNull(0)) {
+            STATS_ENABLE -> {
+                args.getOrNull(1)?.toLongOrNull()?.let {
+                    mStats.slowNanos = TimeUnit.MILLISECONDS.toNanos(it)
+                }
+                mStats.enabled = true
+            }
+            STATS_DISABLE -> mStats.enabled = false
+            STATS_RESET -> mStats.reset()
+        }
+        mStats.dump(writer)
+    }
+
+    /**
+     * Deletes rows hidden before [hiddenBefore] unless they have a playback position.
+     * Their search rows go with them through the delete triggers.
+     */
+    private fun purgeHidden(hiddenBefore: Long): Bundle {
+        val db = mMediaDB.writableDatabase
+        var rows = 0
+        db.beginTransaction()
+        try {
+            for (table in HIDEABLE_TABLES) {
+                var selection = "hidden=1 AND hidden_since < ?"
+                if (table in POSITIONED_TABLES) {
+                    selection += " AND NOT EXISTS (SELECT 1 FROM media_position p " +
+                            "WHERE p.media_key = $table.media_key)"
+                }
+                rows += db.delete(table, selection, arrayOf(hiddenBefore.toString()))
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+        val result = Bundle()
+        result.putInt(CALL_RESULT_ROWS, rows)
+        return result
+    }
+
+    /**
+     * Refreshes the planner statistics and gives free pages back to the file system.
+     * The first run on a database switches it to incremental vacuum with a full vacuum.
+     */
+    private fun optimize(): Bundle {
+        val db = mMediaDB.writableDatabase
+        val pagesBefore = pragmaLong(db, "page_count")
+        db.execSQL("ANALYZE")
+        try {
+            if (pragmaLong(db, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+                db.execSQL("PRAGMA auto_vacuum=INCREMENTAL")
+                db.execSQL("VACUUM")
+            } else {
+                //each step frees one page, so it has to go through a cursor to run to the end
+                db.rawQuery("PRAGMA incremental_vacuum", null).use { c -> c.count }
+            }
+        } catch (e: SQLiteException) {
+            //vacuum needs the database to itself, try again next time
+            Timber.w(e, "Unable to vacuum")
+        }
+        val result = Bundle()
+        result.putLong(CALL_RESULT_BYTES, (pagesBefore - pragmaLong(db, "page_count")) *
+                pragmaLong(db, "page_size"))
+        return result
+    }
+
+    private fun pragmaLong(db: SQLiteDatabase, pragma: String): Long =
+            db.rawQuery("PRAGMA $pragma", null).use { c -> if (c.moveToFirst()) c.getLong(0) else 0L }
+
+    /**
+     * Updates the row matching [keys], inserting it if nothing matched.
+     * The key columns and the [preserve] columns are left untouched on update.
+     */
+    private fun upsert(db: SQLiteDatabase, table: String, values: ContentValues,
+                       keys: Array<String>, preserve: Array<String> = emptyArray()): Uri {
+        val updateValues = ContentValues(values)
+        keys.forEach { updateValues.remove(it) }
+        preserve.forEach { updateValues.remove(it) }
+        val selection = keys.joinToString(" AND ") { "$it=?" }
+        val selectionArgs = Array(keys.size, { idx -> values.getAsString(keys[idx]) })
+        db.beginTransaction()
+        try {
+            val success = db.update(table, updateValues, selection, selectionArgs) != 0
+                    || db.insert(table, null, values) > 0
+            db.setTransactionSuccessful()
+            return if (success) URI_SUCCESS else URI_FAILURE
+        } finally {
+            db.endTransaction()
+        }
+    }
+}
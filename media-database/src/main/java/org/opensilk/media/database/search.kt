@@ -0,0 +1,80 @@
+package org.opensilk.media.database
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/*
+ * Rows of media_search are keyed on the source rowid shifted left with the kind in the low bits
+ */
+internal const val SEARCH_KIND_UPNP_VIDEO = 0
+internal const val SEARCH_KIND_DOCUMENT_VIDEO = 1
+internal const val SEARCH_KIND_STORAGE_VIDEO = 2
+internal const val SEARCH_KIND_UPNP_MUSIC_TRACK = 3
+internal const val SEARCH_KIND_DOCUMENT_MUSIC_TRACK = 4
+internal const val SEARCH_KIND_STORAGE_MUSIC_TRACK = 5
+internal const val SEARCH_KIND_BITS = 3
+internal const val SEARCH_KIND_MASK = (1L shl SEARCH_KIND_BITS) - 1
+
+/**
+ * Weight of a hit in each media_search column: title, alt_title, collection, overview
+ */
+private val SEARCH_WEIGHTS = doubleArrayOf(4.0, 3.0, 2.0, 1.0)
+
+internal fun searchDocId(kind: Int, rowid: Long): Long = (rowid shl SEARCH_KIND_BITS) or kind.toLong()
+
+internal fun searchDocKind(docid: Long): Int = (docid and SEARCH_KIND_MASK).toInt()
+
+internal fun searchDocRowId(docid: Long): Long = docid shr SEARCH_KIND_BITS
+
+/**
+ * Columns whose hits rank above the rest, best first
+ */
+private val SEARCH_TIER_COLUMNS = listOf("title", "alt_title", "collection")
+
+/**
+ * Turns user input into an fts query where every word is a prefix and all must match.
+ * Only letters and digits are kept so the input can't use the query syntax.
+ */
+internal fun searchMatchQuery(query: String): String =
+        searchWords(query).joinToString(" ") { "$it*" }
+
+/**
+ * The fts queries a search runs, best matches first: every word in the title, then
+ * the alt title, then the collection, then anywhere as [searchMatchQuery]. Running
+ * them in turn with a limit lets the database stop at the best rows instead of
+ * returning every match to be ranked.
+ */
+internal fun searchMatchTiers(query: String): List<String> {
+    val words = searchWords(query)
+    if (words.isEmpty()) {
+        return emptyList()
+    }
+    return SEARCH_TIER_COLUMNS.map { column -> words.joinToString(" ") { "$column:$it*" } } +
+            words.joinToString(" ") { "$it*" }
+}
+
+private fun searchWords(query: String): List<String> =
+        query.split(Regex("[^\\p{L}\\p{N}]+"))
+                .filter { it.isNotEmpty() }
+                .map { it.toLowerCase() }
+
+/**
+ * Ranks a row from its matchinfo(media_search, 'pcx') blob. Hits are weighted
+ * by column and scaled down by how common the term is across all rows.
+ */
+internal fun searchRank(matchinfo: ByteArray): Double {
+    val info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer()
+    val phrases = info.get(0)
+    val columns = info.get(1)
+    var rank = 0.0
+    for (phrase in 0 until phrases) {
+        for (column in 0 until minOf(columns, SEARCH_WEIGHTS.size)) {
+            val offset = 2 + 3 * (phrase * columns + column)
+            val rowHits = info.get(offset)
+            if (rowHits > 0) {
+                rank += SEARCH_WEIGHTS[column] * rowHits / maxOf(1, info.get(offset + 1))
+            }
+        }
+    }
+    return rank
+}
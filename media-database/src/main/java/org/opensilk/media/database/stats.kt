@@ -0,0 +1,141 @@
+package org.opensilk.media.database
+
+import android.net.Uri
+import java.io.PrintWriter
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * [MediaProvider.call] method and args for [ProviderStats]
+ */
+internal const val CALL_STATS = "stats"
+internal const val STATS_ENABLE = "enable"
+internal const val STATS_DISABLE = "disable"
+internal const val STATS_RESET = "reset"
+internal const val CALL_RESULT_STATS = "stats"
+
+internal const val OP_QUERY = "query"
+internal const val OP_INSERT = "insert"
+internal const val OP_UPDATE = "update"
+internal const val OP_BULK_INSERT = "bulkInsert"
+
+/**
+ * Queries at least this slow are logged with their plan
+ */
+internal const val SLOW_QUERY_MS = 100L
+
+/**
+ * Upper bounds of the latency buckets in millis, powers of two, the last bucket is open
+ */
+private const val LATENCY_BUCKETS = 13
+
+/**
+ * Distinct thread names kept per route, the rest are counted together
+ */
+private const val MAX_THREADS = 8
+private const val OTHER_THREADS = "other"
+
+/**
+ * Opt in latency histograms per provider route. Off by default, when off
+ * the provider pays a single volatile read per call.
+ */
+internal class ProviderStats {
+
+    @Volatile var enabled = false
+    @Volatile var slowNanos = TimeUnit.MILLISECONDS.toNanos(SLOW_QUERY_MS)
+
+    private val mRoutes = ConcurrentHashMap<String, RouteStats>()
+
+    /**
+     * Runs [block] and records it against [uri] when enabled, [rows] counts its result
+     */
+    inline fun <T> measure(op: String, uri: Uri, block: () -> T, rows: (T) -> Int): T {
+        if (!enabled) {
+            return block()
+        }
+        val start = System.nanoTime()
+        val result = block()
+        record(op, uri, System.nanoTime() - start, rows(result))
+        return result
+    }
+
+    fun record(op: String, uri: Uri, nanos: Long, rows: Int) {
+        val key = "$op ${uri.path}"
+        val stats = mRoutes[key] ?: mRoutes.putIfAbsent(key, RouteStats()) ?: mRoutes[key]!!
+        stats.record(nanos, rows, Thread.currentThread().name)
+    }
+
+    fun reset() {
+        mRoutes.clear()
+    }
+
+    fun dump(pw: PrintWriter) {
+        pw.println("MediaProvider stats: enabled=$enabled " +
+                "slow=${TimeUnit.NANOSECONDS.toMillis(slowNanos)}ms")
+        for (key in mRoutes.keys.sorted()) {
+            mRoutes[key]?.dump(key, pw)
+        }
+    }
+
+}
+
+private class RouteStats {
+
+    private val mCount = AtomicLong()
+    private val mTotalNanos = AtomicLong()
+    private val mMaxNanos = AtomicLong()
+    private val mRows = AtomicLong()
+    private val mLatency = AtomicLongArray(LATENCY_BUCKETS)
+    private val mThreads = ConcurrentHashMap<String, AtomicLong>()
+
+    fun record(nanos: Long, rows: Int, thread: String) {
+        mCount.incrementAndGet()
+        mTotalNanos.addAndGet(nanos)
+        mRows.addAndGet(rows.toLong())
+        var max = mMaxNanos.get()
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get()
+        }
+        mLatency.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMillis(nanos)))
+        val name = if (mThreads.size < MAX_THREADS || mThreads.containsKey(thread))
+            thread else OTHER_THREADS
+        (mThreads[name] ?: mThreads.putIfAbsent(name, AtomicLong()) ?: mThreads[name]!!)
+                .incrementAndGet()
+    }
+
+    fun dump(key: String, pw: PrintWriter) {
+        val count = mCount.get()
+        if (count == 0L) {
+            return
+        }
+        pw.println("  $key: count=$count " +
+                "avg=${TimeUnit.NANOSECONDS.toMicros(mTotalNanos.get() / count)}us " +
+                "max=${TimeUnit.NANOSECONDS.toMicros(mMaxNanos.get())}us rows=${mRows.get()}")
+        val sb = StringBuilder("    latency:")
+        for (ii in 0 until LATENCY_BUCKETS) {
+            val hits = mLatency.get(ii)
+            if (hits > 0) {
+                if (ii == LATENCY_BUCKETS - 1) {
+                    //the open bucket starts where the one before it ends
+                    sb.append(" >=").append(1L shl (ii - 1))
+                } else {
+                    sb.append(" <").append(1L shl ii)
+                }
+                sb.append("ms=").append(hits)
+            }
+        }
+        pw.println(sb)
+        pw.println("    threads: " + mThreads.entries.joinToString(" ") { "${it.key}=${it.value.get()}" })
+    }
+
+    /**
+     * Bucket ii holds latencies under 2^ii millis, the last holds 2^(ii-1) millis and over
+     */
+    private fun bucket(millis: Long): Int {
+        val bits = 64 - java.lang.Long.numberOfLeadingZeros(millis)
+        return Math.min(bits, LATENCY_BUCKETS - 1)
+    }
+
+}
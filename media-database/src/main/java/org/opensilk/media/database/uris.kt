@@ -21,19 +21,25 @@ internal object M {
     val UPNP_FOLDER = 203
     val UPNP_MUSIC_TRACK = 204
     val UPNP_VIDEO = 205
+    val UPNP_VIDEO_LIST = 206
+    val UPNP_BROWSE_STATE = 207
 
     val DOCUMENT_DIRECTORY = 301
     val DOCUMENT_VIDEO = 302
     val DOCUMENT_MUSIC_TRACK = 303
 
     val PLAYBACK_POSITION = 401
+    val RECENT_VIDEO = 402
 
     val STORAGE_DEVICE = 501
     val STORAGE_FOLDER = 502
     val STORAGE_VIDEO = 503
     val STORAGE_MUSIC_TRACK = 504
+    val STORAGE_VIDEO_LIST = 505
 
     val PINS = 601
+
+    val SEARCH = 701
 }
 
 /**
@@ -41,38 +47,44 @@ internal object M {
  */
 class MediaDBUris
 @Inject constructor(
-        @Named("MediaDatabaseAuthority") private val mAuthority: String
+        @Named("MediaDatabaseAuthority") val authority: String
 ) {
 
     val matcher = UriMatcher(UriMatcher.NO_MATCH)
     init {
-        matcher.addURI(mAuthority, "tv/series", M.TV_SERIES)
-        matcher.addURI(mAuthority, "tv/episode", M.TV_EPISODE)
-        matcher.addURI(mAuthority, "tv/image", M.TV_IMAGE)
+        matcher.addURI(authority, "tv/series", M.TV_SERIES)
+        matcher.addURI(authority, "tv/episode", M.TV_EPISODE)
+        matcher.addURI(authority, "tv/image", M.TV_IMAGE)
+
+        matcher.addURI(authority, "movie", M.MOVIE)
+        matcher.addURI(authority, "movie/image", M.MOVIE_IMAGE)
 
-        matcher.addURI(mAuthority, "movie", M.MOVIE)
-        matcher.addURI(mAuthority, "movie/image", M.MOVIE_IMAGE)
+        matcher.addURI(authority, "upnp/device", M.UPNP_DEVICE)
+        matcher.addURI(authority, "upnp/folder", M.UPNP_FOLDER)
+        matcher.addURI(authority, "upnp/music/track", M.UPNP_MUSIC_TRACK)
+        matcher.addURI(authority, "upnp/video", M.UPNP_VIDEO)
+        matcher.addURI(authority, "upnp/video/list", M.UPNP_VIDEO_LIST)
+        matcher.addURI(authority, "upnp/browse/state", M.UPNP_BROWSE_STATE)
 
-        matcher.addURI(mAuthority, "upnp/device", M.UPNP_DEVICE)
-        matcher.addURI(mAuthority, "upnp/folder", M.UPNP_FOLDER)
-        matcher.addURI(mAuthority, "upnp/music/track", M.UPNP_MUSIC_TRACK)
-        matcher.addURI(mAuthority, "upnp/video", M.UPNP_VIDEO)
+        matcher.addURI(authority, "document/directory", M.DOCUMENT_DIRECTORY)
+        matcher.addURI(authority, "document/video", M.DOCUMENT_VIDEO)
+        matcher.addURI(authority, "document/music/track", M.DOCUMENT_MUSIC_TRACK)
 
-        matcher.addURI(mAuthority, "document/directory", M.DOCUMENT_DIRECTORY)
-        matcher.addURI(mAuthority, "document/video", M.DOCUMENT_VIDEO)
-        matcher.addURI(mAuthority, "document/music/track", M.DOCUMENT_MUSIC_TRACK)
+        matcher.addURI(authority, "playback/position", M.PLAYBACK_POSITION)
+        matcher.addURI(authority, "playback/recent", M.RECENT_VIDEO)
 
-        matcher.addURI(mAuthority, "playback/position", M.PLAYBACK_POSITION)
+        matcher.addURI(authority, "storage/device", M.STORAGE_DEVICE)
+        matcher.addURI(authority, "storage/folder", M.STORAGE_FOLDER)
+        matcher.addURI(authority, "storage/video", M.STORAGE_VIDEO)
+        matcher.addURI(authority, "storage/music/track", M.STORAGE_MUSIC_TRACK)
+        matcher.addURI(authority, "storage/video/list", M.STORAGE_VIDEO_LIST)
 
-        matcher.addURI(mAuthority, "storage/device", M.STORAGE_DEVICE)
-        matcher.addURI(mAuthority, "storage/folder", M.STORAGE_FOLDER)
-        matcher.addURI(mAuthority, "storage/video", M.STORAGE_VIDEO)
-        matcher.addURI(mAuthority, "storage/music/track", M.STORAGE_MUSIC_TRACK)
+        matcher.addURI(authority, "pins", M.PINS)
 
-        matcher.addURI(mAuthority, "pins", M.PINS)
+        matcher.addURI(authority, "search", M.SEARCH)
     }
 
-    private fun base() = Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(mAuthority)
+    private fun base() = Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(authority)
 
     fun tvSeries() = base().appendPath("tv").appendPath("series").build()
 
@@ -92,8 +104,18 @@ class MediaDBUris
 
     fun upnpVideo() = base().appendPath("upnp").appendPath("video").build()
 
+    /**
+     * Query only route for folder list rows, the videos without their device or metadata
+     */
+    fun upnpVideoList() = base().appendPath("upnp").appendPath("video").appendPath("list").build()
+
+    fun upnpBrowseState() = base().appendPath("upnp").appendPath("browse").appendPath("state").build()
+
     fun playbackPosition() = base().appendPath("playback").appendPath("position").build()
 
+    fun recentVideos(limit: Int) = base().appendPath("playback").appendPath("recent")
+            .appendQueryParameter("limit", limit.toString()).build()
+
     fun documentDirectory() = base().appendPath("document").appendPath("directory").build()
 
     fun documentVideo() = base().appendPath("document").appendPath("video").build()
@@ -106,8 +128,16 @@ class MediaDBUris
 
     fun storageVideo() = base().appendPath("storage").appendPath("video").build()
 
+    /**
+     * Query only route for folder list rows, the videos without their device or metadata
+     */
+    fun storageVideoList() = base().appendPath("storage").appendPath("video").appendPath("list").build()
+
     fun storageMusicTrack() = base().appendPath("storage").appendPath("music").appendPath("track").build()
 
     fun pins() = base().appendPath("pins").build()
 
+    fun search(limit: Int) = base().appendPath("search")
+            .appendQueryParameter("limit", limit.toString()).build()
+
 }
\ No newline at end of file
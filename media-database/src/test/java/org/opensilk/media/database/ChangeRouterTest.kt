@@ -0,0 +1,110 @@
+package org.opensilk.media.database
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opensilk.media.UpnpDeviceId
+import org.opensilk.media.UpnpFolderId
+import org.opensilk.media.UpnpVideoId
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class, application = TestApp::class)
+class ChangeRouterTest {
+
+    @Test
+    fun video_change_reaches_only_video_and_parent_observers() {
+        val router = ChangeRouter()
+        val video = UpnpVideoId("foo0", "1", "1.1")
+        val parent = UpnpFolderId(deviceId = "foo0", parentId = "0", containerId = "1")
+        val other = UpnpFolderId(deviceId = "foo0", parentId = "0", containerId = "2")
+
+        val self = router.observe(video).test()
+        val children = router.observe(childrenOf(parent)).test()
+        val parentSelf = router.observe(parent).test()
+        val otherChildren = router.observe(childrenOf(other)).test()
+        val devices = router.observe(DeviceChange::class.java).test()
+
+        router.route(UpnpVideoChange(video))
+
+        self.assertValueCount(1)
+        children.assertValueCount(1)
+        parentSelf.assertNoValues()
+        otherChildren.assertNoValues()
+        devices.assertNoValues()
+    }
+
+    @Test
+    fun folder_change_reaches_device_children_observers() {
+        val router = ChangeRouter()
+        val device = UpnpDeviceId("foo0")
+        val folder = UpnpFolderId(deviceId = "foo0", parentId = device.containerId, containerId = "1")
+        val children = router.observe(childrenOf(device)).test()
+        val folders = router.observe(FolderChange::class.java).test()
+        router.route(UpnpFolderChange(folder))
+        children.assertValueCount(1)
+        folders.assertValueCount(1)
+    }
+
+    @Test
+    fun change_set_delivers_one_change_per_topic() {
+        val router = ChangeRouter()
+        val parent = UpnpFolderId(deviceId = "foo0", parentId = "0", containerId = "1")
+        val first = UpnpVideoId("foo0", "1", "1.1")
+        val second = UpnpVideoId("foo0", "1", "1.2")
+        val children = router.observe(childrenOf(parent)).test()
+        val firstSelf = router.observe(first).test()
+        val videos = router.observe(VideoChange::class.java).test()
+
+        router.route(ChangeSet(linkedSetOf(UpnpVideoChange(first), UpnpVideoChange(second),
+                UpnpVideoChange(first))))
+
+        children.assertValueCount(1)
+        assertThat((children.values()[0] as ChangeSet).changes).hasSize(2)
+        firstSelf.assertValue(UpnpVideoChange(first))
+        videos.assertValueCount(1)
+    }
+
+    @Test
+    fun topics_are_dropped_with_last_observer() {
+        val router = ChangeRouter()
+        val video = UpnpVideoId("foo0", "1", "1.1")
+        val first = router.observe(video).subscribe()
+        val second = router.observe(video).subscribe()
+        assertThat(router.topicCount).isEqualTo(1)
+        first.dispose()
+        assertThat(router.topicCount).isEqualTo(1)
+        second.dispose()
+        assertThat(router.topicCount).isEqualTo(0)
+    }
+
+    /**
+     * A change is handed only to the topics of its keys, however many unrelated
+     * observers there are, so dispatch cost stays flat as they grow
+     */
+    @Test
+    fun dispatch_touches_only_matching_topics_with_many_observers() {
+        val router = ChangeRouter()
+        val received = (0 until OBSERVERS).map { AtomicInteger() }
+        val disposables = (0 until OBSERVERS).map { ii ->
+            router.observe(childrenOf(UpnpFolderId("foo0", "0", "$ii")))
+                    .subscribe { received[ii].incrementAndGet() }
+        }
+        (0 until CHANGES).forEach { ii ->
+            router.route(UpnpVideoChange(UpnpVideoId("foo0", "${ii % OBSERVERS}", "$ii")))
+        }
+        //no one observes the video or its type, only its parent's topic is handed the change
+        assertThat(router.deliveries).isEqualTo(CHANGES.toLong())
+        assertThat(received.map { it.get() }).containsOnly(CHANGES / OBSERVERS)
+        disposables.forEach { it.dispose() }
+        assertThat(router.topicCount).isEqualTo(0)
+    }
+
+    companion object {
+        const val OBSERVERS = 1000
+        const val CHANGES = 5000
+    }
+
+}
@@ -0,0 +1,106 @@
+package org.opensilk.media.database
+
+import android.database.Cursor
+import android.database.CursorWrapper
+import android.database.MatrixCursor
+import android.net.Uri
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opensilk.media.UpnpVideoRef
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * What the video converters reuse between rows, [ConverterAllocationBenchmark] measures it
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class, application = TestApp::class)
+class ColumnsTest {
+
+    private val mBuilt = AtomicInteger()
+    private val mApiHelper = object : ApiHelper {
+        override fun tvImagePosterUri(path: String): Uri = build("tv/poster/$path")
+        override fun tvImageBackdropUri(path: String): Uri = build("tv/backdrop/$path")
+        override fun movieImagePosterUri(path: String): Uri = build("movie/poster$path")
+        override fun movieImageBackdropUri(path: String): Uri = build("movie/backdrop$path")
+
+        private fun build(path: String): Uri {
+            mBuilt.incrementAndGet()
+            return Uri.parse("https://foo.com/$path")
+        }
+    }
+
+    @Test
+    fun rows_convert_without_looking_up_columns() {
+        val lookups = AtomicInteger()
+        val cursor = object : CursorWrapper(episodeCursor(10)) {
+            override fun getColumnIndex(columnName: String?): Int {
+                lookups.incrementAndGet()
+                return super.getColumnIndex(columnName)
+            }
+
+            override fun getColumnIndexOrThrow(columnName: String?): Int {
+                lookups.incrementAndGet()
+                return super.getColumnIndexOrThrow(columnName)
+            }
+        }
+        val refs = convertAll(cursor, mApiHelper)
+
+        assertThat(refs).hasSize(10)
+        assertThat(lookups.get()).isEqualTo(0)
+        assertThat(refs.map { it.meta.subtitle }.distinct())
+                .containsExactly("Series - S01E02", "Series - S01E03")
+    }
+
+    @Test
+    fun caching_helper_builds_each_artwork_uri_once() {
+        val refs = convertAll(episodeCursor(10), CachingApiHelper(mApiHelper))
+
+        //both episodes fall back to the series artwork, one poster and one backdrop
+        assertThat(mBuilt.get()).isEqualTo(2)
+        refs.forEach { ref ->
+            assertThat(ref.meta.artworkUri).isSameAs(refs[0].meta.artworkUri)
+            assertThat(ref.meta.backdropUri).isSameAs(refs[0].meta.backdropUri)
+        }
+    }
+
+    private fun convertAll(cursor: Cursor, helper: ApiHelper): List<UpnpVideoRef> {
+        val refs = ArrayList<UpnpVideoRef>()
+        while (cursor.moveToNext()) {
+            refs.add(cursor.toUpnpVideoMediaMeta(helper))
+        }
+        return refs
+    }
+
+    /**
+     * [count] rows of [upnpVideoProjection] alternating between two episodes of one series
+     */
+    private fun episodeCursor(count: Int): MatrixCursor {
+        val cursor = MatrixCursor(upnpVideoProjection, count)
+        for (ii in 0 until count) {
+            val row = arrayOfNulls<Any>(upnpVideoProjection.size)
+            row[0] = "foo0"
+            row[1] = "1"
+            row[2] = "1.$ii"
+            row[3] = 1
+            row[4] = "Video.$ii.mkv"
+            row[5] = "video/x-matroska"
+            row[6] = "http://foo.com/media/$ii.mkv"
+            row[7] = 1000L
+            row[8] = 1000L
+            row[9] = 2L + ii % 2
+            row[10] = "Episode ${2 + ii % 2}"
+            row[11] = 2 + ii % 2
+            row[12] = 1
+            row[13] = 1L
+            row[14] = "Series"
+            row[15] = "posters/1.jpg"
+            row[16] = "fanart/1.jpg"
+            cursor.addRow(row)
+        }
+        return cursor
+    }
+
+}
@@ -0,0 +1,130 @@
+package org.opensilk.media.database
+
+import android.database.Cursor
+import android.database.MatrixCursor
+import android.net.Uri
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.lang.management.ManagementFactory
+
+/**
+ * Reports the bytes allocated per row when converting a large video cursor,
+ * to keep an eye on gc pressure on low memory devices. The caching helper
+ * must allocate less than the plain one. Only runs with ./gradlew test -Pbenchmarks,
+ * [ColumnsTest] covers what is reused.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class, application = TestApp::class)
+class ConverterAllocationBenchmark {
+
+    private val mApiHelper = object : ApiHelper {
+        override fun tvImagePosterUri(path: String): Uri =
+                Uri.parse(TVDB_BANNER_ROOT).buildUpon().appendPath(path).build()
+        override fun tvImageBackdropUri(path: String): Uri =
+                Uri.parse(TVDB_BANNER_ROOT).buildUpon().appendPath(path).build()
+        override fun movieImagePosterUri(path: String): Uri =
+                Uri.parse("https://image.tmdb.org/t/p/w342$path")
+        override fun movieImageBackdropUri(path: String): Uri =
+                Uri.parse("https://image.tmdb.org/t/p/w1280$path")
+    }
+
+    @Test
+    fun benchmark_upnp_video_rows() {
+        val cursor = upnpVideoCursor()
+        val plain = measure(cursor, { c -> c.toUpnpVideoMediaMeta(mApiHelper) })
+        val cached = CachingApiHelper(mApiHelper)
+        val caching = measure(cursor, { c -> c.toUpnpVideoMediaMeta(cached) })
+        println("toUpnpVideoMediaMeta($ROWS rows): " +
+                "plain=${plain.bytesPerRow} bytes/row ${plain.millis}ms " +
+                "caching=${caching.bytesPerRow} bytes/row ${caching.millis}ms")
+        if (plain.bytesPerRow >= 0) {
+            //two thirds of the rows have artwork uris the cache saves rebuilding
+            assertThat(caching.bytesPerRow).isLessThan(plain.bytesPerRow)
+        }
+    }
+
+    private class Result(val bytesPerRow: Long, val millis: Long)
+
+    private fun measure(cursor: Cursor, converter: (Cursor) -> Any): Result {
+        //warm up
+        convertAll(cursor, converter)
+        val start = System.nanoTime()
+        val bytes = allocatedBytes { convertAll(cursor, converter) }
+        return Result(bytes / ROWS, (System.nanoTime() - start) / 1000000)
+    }
+
+    private fun convertAll(cursor: Cursor, converter: (Cursor) -> Any) {
+        cursor.moveToPosition(-1)
+        var count = 0
+        while (cursor.moveToNext()) {
+            converter(cursor)
+            count++
+        }
+        assertThat(count).isEqualTo(ROWS)
+    }
+
+    /**
+     * Bytes allocated by the calling thread while running [block], -1 if the vm can't tell us
+     */
+    private fun allocatedBytes(block: () -> Unit): Long {
+        val bean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+        if (bean == null || !bean.isThreadAllocatedMemorySupported) {
+            block()
+            return -1
+        }
+        bean.isThreadAllocatedMemoryEnabled = true
+        val thread = Thread.currentThread().id
+        val before = bean.getThreadAllocatedBytes(thread)
+        block()
+        return bean.getThreadAllocatedBytes(thread) - before
+    }
+
+    /**
+     * Rows shaped like [upnpVideoProjection]: a third plain files, a third episodes
+     * of a few series and a third movies
+     */
+    private fun upnpVideoCursor(): Cursor {
+        val cursor = MatrixCursor(upnpVideoProjection, ROWS)
+        for (ii in 0 until ROWS) {
+            val row = arrayOfNulls<Any>(upnpVideoProjection.size)
+            row[0] = "foo0"
+            row[1] = "${ii / 500}"
+            row[2] = "${ii / 500}.$ii"
+            row[3] = 1
+            row[4] = "Video.$ii.mkv"
+            row[5] = "video/x-matroska"
+            row[6] = "http://foo.com/media/$ii.mkv"
+            row[7] = 1000L * ii
+            row[8] = 1000000L * ii
+            when (ii % 3) {
+                1 -> {
+                    row[9] = ii.toLong()
+                    row[10] = "Episode $ii"
+                    row[11] = ii % 24
+                    row[12] = 1 + ii % 9
+                    row[13] = (ii % 10).toLong()
+                    row[14] = "Series ${ii % 10}"
+                    row[15] = "posters/${ii % 10}.jpg"
+                    row[16] = "fanart/${ii % 10}.jpg"
+                }
+                2 -> {
+                    row[17] = ii.toLong()
+                    row[18] = "Movie $ii"
+                    row[19] = "/poster$ii.jpg"
+                    row[20] = "/backdrop$ii.jpg"
+                }
+            }
+            cursor.addRow(row)
+        }
+        return cursor
+    }
+
+    companion object {
+        const val ROWS = 5000
+        const val TVDB_BANNER_ROOT = "https://thetvdb.com/banners"
+    }
+
+}
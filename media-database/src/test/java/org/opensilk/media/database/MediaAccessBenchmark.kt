@@ -0,0 +1,93 @@
+package org.opensilk.media.database
+
+import android.content.pm.ProviderInfo
+import android.net.Uri
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opensilk.media.UpnpFolderId
+import org.opensilk.media.testdata.upnpDevice_all_meta
+import org.opensilk.media.testdata.upnpVideo_folder_1_no_association
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+
+/**
+ * Compares listing a large folder through the ContentResolver against reading
+ * the in process [MediaDB] directly, which must not be the slower of the two.
+ * Only runs with -Pbenchmarks.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class, application = TestApp::class)
+class MediaAccessBenchmark {
+
+    lateinit var mProvider: MediaProvider
+    lateinit var mResolverClient: MediaDAO
+    lateinit var mLocalClient: MediaDAO
+
+    @Before
+    fun setupProvider() {
+        val providerInfo = ProviderInfo()
+        providerInfo.authority = "foo.authority"
+        mProvider = Robolectric.buildContentProvider(MediaProvider::class.java)
+                .create(providerInfo).get()
+        mProvider.mMediaDB = MediaDB(RuntimeEnvironment.application)
+        mProvider.mUris = MediaDBUris("foo.authority")
+
+        val apiHelper = object : ApiHelper {
+            override fun tvImagePosterUri(path: String): Uri = Uri.EMPTY
+            override fun tvImageBackdropUri(path: String): Uri = Uri.EMPTY
+            override fun movieImagePosterUri(path: String): Uri = Uri.EMPTY
+            override fun movieImageBackdropUri(path: String): Uri = Uri.EMPTY
+        }
+        val uris = MediaDBUris("foo.authority")
+        mResolverClient = MediaDAO(ResolverMediaAccess(RuntimeEnvironment.application.contentResolver,
+                uris.authority), uris, apiHelper)
+        mLocalClient = MediaDAO(LocalMediaAccess(mProvider), uris, apiHelper)
+    }
+
+    @After
+    fun teardown() {
+        mProvider.shutdown()
+    }
+
+    @Test
+    fun benchmark_videos_under_large_folder() {
+        val video = upnpVideo_folder_1_no_association()
+        val parentId = UpnpFolderId(deviceId = video.id.deviceId, parentId = "0",
+                containerId = video.id.parentId)
+        val children = (0 until ROWS).map { ii ->
+            video.copy(id = video.id.copy(itemId = "${video.id.parentId}.$ii"),
+                    meta = video.meta.copy(title = "Video $ii"))
+        }
+        mLocalClient.addUpnpDevice(upnpDevice_all_meta())
+        assertThat(mLocalClient.replaceChildrenOf(parentId, children)).isTrue()
+
+        val resolver = timeVideosUnder(mResolverClient, parentId)
+        val local = timeVideosUnder(mLocalClient, parentId)
+        println("getUpnpVideosUnder($ROWS rows): resolver=${resolver}ms local=${local}ms")
+        assertThat(local).isLessThanOrEqualTo(resolver)
+    }
+
+    /**
+     * @return millis of the fastest pass
+     */
+    private fun timeVideosUnder(client: MediaDAO, parentId: UpnpFolderId): Long {
+        //warm up
+        assertThat(client.getUpnpVideosUnder(parentId).count().blockingGet()).isEqualTo(ROWS.toLong())
+        return (0 until PASSES).map {
+            val start = System.nanoTime()
+            client.getUpnpVideosUnder(parentId).count().blockingGet()
+            (System.nanoTime() - start) / 1000000
+        }.min()!!
+    }
+
+    companion object {
+        const val ROWS = 5000
+        const val PASSES = 3
+    }
+
+}
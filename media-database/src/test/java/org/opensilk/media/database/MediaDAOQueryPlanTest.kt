@@ -0,0 +1,206 @@
+package org.opensilk.media.database
+
+import android.content.ContentProvider
+import android.content.ContentValues
+import android.content.pm.ProviderInfo
+import android.database.Cursor
+import android.database.sqlite.SQLiteQueryBuilder
+import android.net.Uri
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opensilk.media.*
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+
+/**
+ * Runs EXPLAIN QUERY PLAN on every query the [MediaDAO] sends to the provider
+ * and fails if any of them scans a table that can grow with the library.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class, application = TestApp::class)
+class MediaDAOQueryPlanTest {
+
+    lateinit var mClient: MediaDAO
+    lateinit var mProvider: ExplainingProvider
+
+    @Before
+    fun setupProvider() {
+        val providerInfo = ProviderInfo()
+        providerInfo.authority = "foo.authority"
+        mProvider = Robolectric.buildContentProvider(ExplainingProvider::class.java)
+                .create(providerInfo).get()
+        mProvider.mDelegate.mMediaDB = MediaDB(RuntimeEnvironment.application)
+        mProvider.mDelegate.mUris = MediaDBUris("foo.authority")
+
+        val apiHelper = object : ApiHelper {
+            override fun tvImagePosterUri(path: String): Uri = Uri.EMPTY
+            override fun tvImageBackdropUri(path: String): Uri = Uri.EMPTY
+            override fun movieImagePosterUri(path: String): Uri = Uri.EMPTY
+            override fun movieImageBackdropUri(path: String): Uri = Uri.EMPTY
+        }
+        mClient = MediaDAO(RuntimeEnvironment.application.contentResolver,
+                MediaDBUris("foo.authority"), apiHelper)
+    }
+
+    @After
+    fun teardown() {
+        mProvider.mDelegate.shutdown()
+    }
+
+    @Test
+    fun upnp_queries_use_indexes() = assertNoTableScans {
+        val device = UpnpDeviceId("foo0")
+        val folder = UpnpFolderId(deviceId = "foo0", parentId = "0", containerId = "1")
+        mClient.getAvailableUpnpDevices().toList().blockingGet()
+        mClient.getUpnpDevice(device).blockingGet()
+        mClient.getUpnpDeviceSystemUpdateId(device).blockingGet()
+        mClient.getUpnpFoldersUnder(device).toList().blockingGet()
+        mClient.getUpnpFolder(folder).blockingGet()
+        mClient.getUpnpVideosUnder(folder).toList().blockingGet()
+        mClient.getUpnpVideosUnder(folder, PageKey("a", 1), 50).blockingGet()
+        mClient.getUpnpVideo(UpnpVideoId("foo0", "1", "1.1")).blockingGet()
+        mClient.getRecentlyPlayedUpnpVideos().toList().blockingGet()
+        mClient.getUpnpVideoOverview(UpnpVideoId("foo0", "1", "1.1")).blockingGet()
+        mClient.getVideoDetail(UpnpVideoId("foo0", "1", "1.1")).blockingGet()
+        mClient.getUpnpMusicTracksUnder(folder).toList().blockingGet()
+        mClient.getUpnpMusicTrack(UpnpMusicTrackId("foo0", "1", "1.2")).blockingGet()
+    }
+
+    @Test
+    fun document_queries_use_indexes() = assertNoTableScans {
+        val treeUri = Uri.parse("content://com.android.externalstorage.documents/tree/primary%3AMovies")
+        val directory = DocDirectoryId(treeUri = treeUri, documentId = "primary:Movies", parentId = "primary:Movies")
+        val video = DocVideoId(treeUri = treeUri, documentId = "primary:Movies/a.mp4", parentId = "primary:Movies")
+        mClient.getDocDirectoryUnder(directory).toList().blockingGet()
+        mClient.getDocDirectory(directory).blockingGet()
+        mClient.getDocVideosUnder(directory).toList().blockingGet()
+        mClient.getDocVideosUnder(directory, PageKey("a", 1), 50).blockingGet()
+        mClient.getDocVideo(video).blockingGet()
+        mClient.getRecentlyPlayedDocVideos().toList().blockingGet()
+        mClient.getDocVideoOverview(video).blockingGet()
+        mClient.getVideoDetail(video).blockingGet()
+        mClient.getDocMusicTracksUnder(directory).toList().blockingGet()
+        mClient.getDocMusicTrack(DocMusicTrackId(treeUri = treeUri, parentId = "primary:Movies",
+                documentId = "primary:Movies/a.mp3")).blockingGet()
+    }
+
+    @Test
+    fun storage_queries_use_indexes() = assertNoTableScans {
+        val device = StorageDeviceId(uuid = "0000", path = "/storage/0000", isPrimary = false)
+        val folder = StorageFolderId(path = "/storage/0000/Movies", uuid = "0000", parent = "/storage/0000")
+        val video = StorageVideoId(path = "/storage/0000/Movies/a.mp4", uuid = "0000", parent = folder.path)
+        mClient.getAvailableStorageDevices().toList().blockingGet()
+        mClient.getStorageDevice(device).blockingGet()
+        mClient.getStorageFoldersUnder(device).toList().blockingGet()
+        mClient.getStorageFolder(folder).blockingGet()
+        mClient.getStorageVideosUnder(folder).toList().blockingGet()
+        mClient.getStorageVideosUnder(folder, PageKey("a", 1), 50).blockingGet()
+        mClient.getStorageVideo(video).blockingGet()
+        mClient.getRecentlyPlayedStorageVideos().toList().blockingGet()
+        mClient.getStorageVideoOverview(video).blockingGet()
+        mClient.getVideoDetail(video).blockingGet()
+        mClient.getStorageMusicTracksUnder(folder).toList().blockingGet()
+        mClient.getStorageMusicTrack(StorageMusicTrackId(uuid = "0000",
+                path = "/storage/0000/Movies/a.mp3", parent = folder.path)).blockingGet()
+    }
+
+    @Test
+    fun metadata_queries_use_indexes() = assertNoTableScans {
+        mClient.getTvSeries(TvSeriesId(1)).blockingGet()
+        mClient.getTvEpisodesForTvSeries(TvSeriesId(1)).toList().blockingGet()
+        mClient.getTvEpisode(TvEpisodeId(1, 1)).blockingGet()
+        mClient.getTvPosters(TvSeriesId(1)).toList().blockingGet()
+        mClient.getTvBackdrops(TvSeriesId(1)).toList().blockingGet()
+        mClient.getMovie(MovieId(1)).blockingGet()
+    }
+
+    @Test
+    fun recent_videos_query_uses_indexes() = assertNoTableScans {
+        mClient.getRecentlyPlayedVideos().toList().blockingGet()
+    }
+
+    @Test
+    fun search_uses_full_text_index() = assertNoTableScans {
+        mClient.search("foo bar").toList().blockingGet()
+    }
+
+    @Test
+    fun pin_queries_use_indexes() = assertNoTableScans {
+        mClient.getPinnedItems().toList().blockingGet()
+        mClient.checkPinned(UpnpDeviceId("foo0")).blockingGet()
+    }
+
+    private fun assertNoTableScans(queries: () -> Unit) {
+        mProvider.plans.clear()
+        queries()
+        assertThat(mProvider.plans).isNotEmpty()
+        mProvider.plans.forEach { (sql, detail) ->
+            if (detail.contains("VIRTUAL TABLE INDEX")) {
+                //full text lookups are reported as a scan of the virtual table
+                return@forEach
+            }
+            val scan = SCAN_REGEX.find(detail) ?: return@forEach
+            if (SUBQUERY_REGEX.containsMatchIn(scan.groupValues[1])) {
+                //bounded by the limit inside the subquery
+                return@forEach
+            }
+            assertThat(SCAN_ALLOWED).overridingErrorMessage("Full scan in '%s' for query %s", detail, sql)
+                    .contains(scan.groupValues[1])
+        }
+    }
+
+    companion object {
+        /**
+         * Matches both the old "SCAN TABLE foo AS f" and the newer "SCAN f" plan output
+         */
+        val SCAN_REGEX = Regex("^SCAN (?:TABLE )?(\\S+)")
+        /**
+         * Matches both the old "SUBQUERY 1" and the newer "(subquery-1)" scan targets
+         */
+        val SUBQUERY_REGEX = Regex("(?i)^\\(?subquery")
+        /**
+         * Tables that only ever hold a handful of rows
+         */
+        val SCAN_ALLOWED = listOf("upnp_device", "storage_device", "pinned")
+    }
+
+}
+
+/**
+ * Records the query plan of every query before handing it to a [MediaProvider]
+ */
+class ExplainingProvider : ContentProvider() {
+
+    val mDelegate = MediaProvider()
+    val plans = ArrayList<Pair<String, String>>()
+
+    override fun onCreate(): Boolean = true
+
+    override fun query(uri: Uri, projection: Array<String>?, selection: String?,
+                       selectionArgs: Array<String>?, sortOrder: String?): Cursor? {
+        val sql = SQLiteQueryBuilder.buildQueryString(false, mDelegate.queryTable(uri),
+                projection, selection, null, null, sortOrder, null)
+        mDelegate.mMediaDB.readableDatabase.rawQuery("EXPLAIN QUERY PLAN $sql", selectionArgs).use { c ->
+            val detail = c.getColumnIndexOrThrow("detail")
+            while (c.moveToNext()) {
+                plans.add(Pair(sql, c.getString(detail)))
+            }
+        }
+        return mDelegate.query(uri, projection, selection, selectionArgs, sortOrder)
+    }
+
+    override fun getType(uri: Uri): String? = null
+
+    override fun insert(uri: Uri, values: ContentValues): Uri? = mDelegate.insert(uri, values)
+
+    override fun delete(uri: Uri, selection: String?, selectionArgs: Array<String>?): Int =
+            mDelegate.delete(uri, selection, selectionArgs)
+
+    override fun update(uri: Uri, values: ContentValues?, selection: String?, selectionArgs: Array<String>?): Int =
+            mDelegate.update(uri, values, selection, selectionArgs)
+}
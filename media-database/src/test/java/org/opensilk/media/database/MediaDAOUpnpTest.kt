@@ -3,16 +3,28 @@ package org.opensilk.media.database
 import android.content.ContentResolver
 import android.content.pm.ProviderInfo
 import android.net.Uri
+import io.reactivex.Observable
+import io.reactivex.schedulers.TestScheduler
+import io.reactivex.subjects.PublishSubject
 import org.assertj.core.api.Assertions.assertThat
 import org.junit.After
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
+import org.opensilk.media.UpnpDeviceId
+import org.opensilk.media.UpnpFolderId
+import org.opensilk.media.UpnpFolderMeta
+import org.opensilk.media.UpnpFolderRef
+import org.opensilk.media.UpnpVideoRef
+import org.opensilk.media.elseIfBlank
 import org.opensilk.media.testdata.*
 import org.robolectric.Robolectric
 import org.robolectric.RobolectricTestRunner
 import org.robolectric.RuntimeEnvironment
 import org.robolectric.annotation.Config
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.util.concurrent.TimeUnit
 
 /**
  * Created by drew on 7/19/17.
@@ -103,6 +115,45 @@ class MediaDAOUpnpTest {
         assertThat(overview).isEqualTo(movie.meta.overview)
     }
 
+    @Test
+    fun video_detail_has_ref_and_overview() {
+        val video = upnpVideo_folder_2_episode_id()
+        val episode = tvEpisode()
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        mClient.addUpnpVideo(video)
+        mClient.addTvEpisodes(listOf(episode))
+        mClient.setUpnpVideoTvEpisodeId(video.id, video.tvEpisodeId!!)
+        val detail = mClient.getVideoDetail(video.id).blockingGet()
+        assertThat(detail.ref).isEqualTo(mClient.getUpnpVideo(video.id).blockingGet())
+        assertThat(detail.overview).isEqualTo(episode.meta.overview)
+        //full lists still read the detail
+        val parentId = UpnpFolderId(deviceId = video.id.deviceId, parentId = "0",
+                containerId = video.id.parentId)
+        assertThat(mClient.getUpnpVideosUnder(parentId).blockingFirst()).isEqualTo(detail.ref)
+    }
+
+    @Test
+    fun video_list_rows_have_only_what_a_row_shows() {
+        val video = upnpVideo_folder_2_episode_id()
+        val episode = tvEpisode()
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        mClient.addUpnpVideo(video)
+        mClient.addTvEpisodes(listOf(episode))
+        mClient.setUpnpVideoTvEpisodeId(video.id, video.tvEpisodeId!!)
+        val detail = mClient.getUpnpVideo(video.id).blockingGet()
+        val parentId = UpnpFolderId(deviceId = video.id.deviceId, parentId = "0",
+                containerId = video.id.parentId)
+
+        val row = mClient.getUpnpVideosUnder(parentId, null, 10).blockingGet().items.single()
+
+        assertThat(row.id).isEqualTo(video.id)
+        assertThat(row.meta.title).isEqualTo(video.meta.originalTitle.elseIfBlank(video.meta.title))
+        assertThat(row.meta.artworkUri).isEqualTo(detail.meta.artworkUri)
+        assertThat(row.meta.mediaUri).isEqualTo(Uri.EMPTY)
+        assertThat(row.tvEpisodeId).isNull()
+        assertThat(row.resumeInfo).isNull()
+    }
+
     @Test
     fun setting_episode_id_fetches_proper_overview() {
         val video = upnpVideo_folder_2_episode_id()
@@ -141,4 +192,359 @@ class MediaDAOUpnpTest {
         assertThat(mClient.getUpnpVideo(video2_insert.id).blockingGet()).isEqualTo(video2_return)
     }
 
+    @Test
+    fun playback_position_not_shared_by_same_title() {
+        val video = upnpVideo_folder_1_no_association()
+        val twin = video.copy(id = video.id.copy(itemId = "1.2"))
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        mClient.addUpnpVideo(video)
+        mClient.addUpnpVideo(twin)
+        mClient.setLastPlaybackPosition(video.id, 500, 1000)
+        val resume = mClient.getUpnpVideo(video.id).blockingGet().resumeInfo
+        assertThat(resume).isNotNull()
+        assertThat(resume!!.lastPosition).isEqualTo(500L)
+        assertThat(resume.lastCompletion).isEqualTo(500)
+        assertThat(mClient.getUpnpVideo(twin.id).blockingGet().resumeInfo).isNull()
+    }
+
+    @Test
+    fun position_store_writes_last_position_per_window() {
+        val video = upnpVideo_folder_1_no_association()
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        mClient.addUpnpVideo(video)
+        val scheduler = TestScheduler()
+        val store = PlaybackPositionStore(mClient, scheduler)
+        for (pos in 100L..900L step 100) {
+            store.put(video.id, pos, 1000)
+        }
+        assertThat(store.get(video.id)?.position).isEqualTo(900L)
+        assertThat(mClient.getUpnpVideo(video.id).blockingGet().resumeInfo).isNull()
+        scheduler.advanceTimeBy(POSITION_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS)
+        assertThat(store.get(video.id)).isNull()
+        val resume = mClient.getUpnpVideo(video.id).blockingGet().resumeInfo
+        assertThat(resume).isNotNull()
+        assertThat(resume!!.lastPosition).isEqualTo(900L)
+        assertThat(resume.lastCompletion).isEqualTo(900)
+        //flushing by hand cancels the timer
+        store.put(video.id, 200, 1000)
+        store.flush()
+        store.put(video.id, 300, 1000)
+        scheduler.advanceTimeBy(POSITION_FLUSH_DELAY_MS - 1, TimeUnit.MILLISECONDS)
+        assertThat(mClient.getUpnpVideo(video.id).blockingGet().resumeInfo!!.lastPosition).isEqualTo(200L)
+        scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS)
+        assertThat(mClient.getUpnpVideo(video.id).blockingGet().resumeInfo!!.lastPosition).isEqualTo(300L)
+    }
+
+    @Test
+    fun recently_played_videos_newest_first() {
+        val video = upnpVideo_folder_1_no_association()
+        val twin = video.copy(id = video.id.copy(itemId = "1.2"))
+        val unplayed = video.copy(id = video.id.copy(itemId = "1.3"))
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        mClient.addUpnpVideo(video)
+        mClient.addUpnpVideo(twin)
+        mClient.addUpnpVideo(unplayed)
+        mClient.setUpnpVideoLastPlayed(video.id, 1000)
+        mClient.setUpnpVideoLastPlayed(twin.id, 2000)
+        assertThat(mClient.getRecentlyPlayedVideos().map { it.id }.toList().blockingGet())
+                .containsExactly(twin.id, video.id)
+        assertThat(mClient.getRecentlyPlayedVideos(1).map { it.id }.toList().blockingGet())
+                .containsExactly(twin.id)
+    }
+
+    @Test
+    fun get_media_refs_keeps_order_and_skips_missing() {
+        val device = upnpDevice_all_meta()
+        val folders = upnpFolders()
+        val video = upnpVideo_folder_1_no_association()
+        val missing = video.id.copy(itemId = "missing")
+        mClient.addUpnpDevice(device)
+        folders.forEach { mClient.addUpnpFolder(it) }
+        mClient.addUpnpVideo(video)
+        val ids = listOf(folders[2].id, video.id, missing, device.id, folders[0].id)
+        assertThat(mClient.getMediaRefs(ids).map { it.id }.toList().blockingGet())
+                .containsExactly(folders[2].id, video.id, device.id, folders[0].id)
+    }
+
+    @Test
+    fun videos_under_pages_by_name_without_gaps() {
+        val video = upnpVideo_folder_1_no_association()
+        val parentId = UpnpFolderId(deviceId = video.id.deviceId, parentId = "0",
+                containerId = video.id.parentId)
+        //repeated names so pages have to split between rows with the same name
+        val children = listOf("c", "a", "b", "a", "c", "b", "a").mapIndexed { ii, name ->
+            video.copy(id = video.id.copy(itemId = "${video.id.parentId}.$ii"),
+                    meta = video.meta.copy(title = name, originalTitle = ""))
+        }
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        children.forEach { mClient.addUpnpVideo(it) }
+
+        val pages = ArrayList<Page<UpnpVideoRef>>()
+        var next: PageKey? = null
+        do {
+            val page = mClient.getUpnpVideosUnder(parentId, next, 3).blockingGet()
+            pages.add(page)
+            next = page.next
+        } while (next != null)
+
+        assertThat(pages.map { it.items.size }).containsExactly(3, 3, 1)
+        assertThat(pages.flatMap { it.items }.map { it.id })
+                .isEqualTo(mClient.getUpnpVideosUnder(parentId).map { it.id }.toList().blockingGet())
+        assertThat(pages.flatMap { it.items }.map { it.meta.title })
+                .containsExactly("a", "a", "a", "b", "b", "c", "c")
+        //bad sizes error through the single like any other failure
+        mClient.getUpnpVideosUnder(parentId, null, 0).test()
+                .assertError(IllegalArgumentException::class.java)
+    }
+
+    @Test
+    fun videos_under_flowable_reads_on_request() {
+        val video = upnpVideo_folder_1_no_association()
+        val parentId = UpnpFolderId(deviceId = video.id.deviceId, parentId = "0",
+                containerId = video.id.parentId)
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        (0 until 5).forEach { ii ->
+            mClient.addUpnpVideo(video.copy(id = video.id.copy(itemId = "${video.id.parentId}.$ii")))
+        }
+        val subscriber = mClient.getUpnpVideosUnderFlowable(parentId).test(2)
+        subscriber.assertValueCount(2).assertNotComplete()
+        subscriber.requestMore(2)
+        subscriber.assertValueCount(4).assertNotComplete()
+        subscriber.requestMore(2)
+        subscriber.assertValueCount(5).assertComplete()
+    }
+
+    @Test
+    fun purge_hidden_keeps_pinned_and_positioned() {
+        val video = upnpVideo_folder_1_no_association()
+        val parentId = UpnpFolderId(deviceId = video.id.deviceId, parentId = "0",
+                containerId = video.id.parentId)
+        val pinned = video.copy(id = video.id.copy(itemId = "1.2"))
+        val positioned = video.copy(id = video.id.copy(itemId = "1.3"))
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        listOf(video, pinned, positioned).forEach { mClient.addUpnpVideo(it) }
+        mClient.pinItem(pinned.id)
+        mClient.setLastPlaybackPosition(positioned.id, 500, 1000)
+        mClient.hideChildrenOf(parentId)
+
+        //nothing was hidden before now minus a minute
+        assertThat(mClient.purgeHidden(System.currentTimeMillis() - 60000)).isEqualTo(0)
+        assertThat(mClient.purgeHidden(System.currentTimeMillis() + 60000)).isEqualTo(1)
+        assertThat(mClient.getUpnpVideo(video.id).blockingGet()).isNull()
+        assertThat(mClient.getUpnpVideo(pinned.id).blockingGet()).isNotNull()
+        assertThat(mClient.getUpnpVideo(positioned.id).blockingGet()).isNotNull()
+        assertThat(mClient.optimize()).isGreaterThanOrEqualTo(0L)
+    }
+
+    @Test
+    fun browse_state_advances_except_changed_containers() {
+        val device = UpnpDeviceId("device1")
+        val unchanged = UpnpFolderId(device.deviceId, "0", "1")
+        val changed = UpnpFolderId(device.deviceId, "0", "2")
+        val older = UpnpFolderId(device.deviceId, "0", "3")
+        mClient.setUpnpBrowseUpdateId(device, 5)
+        mClient.setUpnpBrowseUpdateId(unchanged, 5)
+        mClient.setUpnpBrowseUpdateId(changed, 5)
+        mClient.setUpnpBrowseUpdateId(older, 4)
+
+        mClient.advanceUpnpBrowseUpdateIds(device, 5, 6, listOf(changed.containerId))
+        assertThat(mClient.getUpnpBrowseUpdateId(unchanged).blockingGet()).isEqualTo(6L)
+        assertThat(mClient.getUpnpBrowseUpdateId(changed).blockingGet()).isNull()
+        assertThat(mClient.getUpnpBrowseUpdateId(older).blockingGet()).isEqualTo(4L)
+        //the root is never carried over
+        assertThat(mClient.getUpnpBrowseUpdateId(device).blockingGet()).isEqualTo(5L)
+
+        mClient.clearUpnpBrowseUpdateIds(device)
+        assertThat(mClient.getUpnpBrowseUpdateId(unchanged).blockingGet()).isNull()
+    }
+
+    @Test
+    fun replace_upnp_children_records_browse_state() {
+        val device = UpnpDeviceId("foo0")
+        //folder 0 would share the root's container id
+        val videos = syntheticUpnpVideos(9, perFolder = 3).drop(3)
+        val first = UpnpFolderRef(UpnpFolderId(device.deviceId, "0", "1"), UpnpFolderMeta(title = "1"))
+        val second = UpnpFolderRef(UpnpFolderId(device.deviceId, "0", "2"), UpnpFolderMeta(title = "2"))
+        val children = mapOf(
+                device to listOf(first, second),
+                first.id to videos.subList(0, 3),
+                second.id to videos.subList(3, 6)
+        )
+        assertThat(mClient.replaceUpnpChildren(children, 9)).isTrue()
+        assertThat(mClient.getUpnpFoldersUnder(device).toList().blockingGet()).containsExactly(first, second)
+        assertThat(mClient.getUpnpVideosUnder(second.id).toList().blockingGet()).hasSize(3)
+        assertThat(mClient.getUpnpBrowseUpdateId(device).blockingGet()).isEqualTo(9L)
+        assertThat(mClient.getUpnpBrowseUpdateId(first.id).blockingGet()).isEqualTo(9L)
+
+        //replaced children are hidden, without an update id the state is left alone
+        assertThat(mClient.replaceUpnpChildren(mapOf(first.id to videos.subList(0, 1)), null)).isTrue()
+        assertThat(mClient.getUpnpVideosUnder(first.id).toList().blockingGet()).hasSize(1)
+        assertThat(mClient.getUpnpBrowseUpdateId(first.id).blockingGet()).isEqualTo(9L)
+    }
+
+    @Test
+    fun add_children_leaves_siblings_visible() {
+        //folder 0 would share the root's container id
+        val videos = syntheticUpnpVideos(12, perFolder = 6).drop(6)
+        val folderId = UpnpFolderId("foo0", "0", "1")
+        assertThat(mClient.replaceChildrenOf(folderId, videos.subList(0, 4))).isTrue()
+        assertThat(mClient.addChildren(videos.subList(3, 6))).isTrue()
+        assertThat(mClient.getUpnpVideosUnder(folderId).toList().blockingGet()).hasSize(6)
+
+        assertThat(mClient.replaceChildrenOf(folderId, videos.subList(0, 2))).isTrue()
+        assertThat(mClient.getUpnpVideosUnder(folderId).toList().blockingGet()).hasSize(2)
+    }
+
+    @Test
+    fun provider_stats_record_routes_when_enabled() {
+        val video = upnpVideo_folder_1_no_association()
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        mClient.addUpnpVideo(video)
+        assertThat(mClient.dumpProviderStats()).doesNotContain("upnp/video")
+
+        mClient.setProviderStatsEnabled(true)
+        mClient.addUpnpVideo(video)
+        mClient.getUpnpVideo(video.id).blockingGet()
+        val dump = mClient.dumpProviderStats()
+        assertThat(dump).contains("insert /upnp/video: count=1")
+        assertThat(dump).contains("query /upnp/video: count=1")
+        assertThat(dump).contains(Thread.currentThread().name)
+        //bulk rows are counted once, under bulkInsert
+        mClient.addTvEpisodes(listOf(tvEpisode()))
+        assertThat(mClient.dumpProviderStats()).contains("bulkInsert /tv/episode: count=1")
+                .doesNotContain("insert /tv/episode")
+
+        mClient.setProviderStatsEnabled(false)
+        mClient.getUpnpVideo(video.id).blockingGet()
+        assertThat(mClient.dumpProviderStats()).contains("query /upnp/video: count=1")
+    }
+
+    @Test
+    fun provider_stats_label_the_open_bucket_by_its_lower_bound() {
+        val stats = ProviderStats()
+        val uri = Uri.parse("content://foo/upnp/video")
+        stats.record(OP_QUERY, uri, TimeUnit.MILLISECONDS.toNanos(3000), 1)
+        stats.record(OP_QUERY, uri, TimeUnit.MILLISECONDS.toNanos(5), 1)
+        val sw = StringWriter()
+        PrintWriter(sw).use { stats.dump(it) }
+        assertThat(sw.toString()).contains(" >=2048ms=1").contains(" <8ms=1")
+    }
+
+    @Test
+    fun search_matches_prefixes_and_skips_hidden() {
+        val video = upnpVideo_folder_1_no_association()
+        val other = video.copy(id = video.id.copy(itemId = "1.2"),
+                meta = video.meta.copy(title = "other.title.02"))
+        val parentId = UpnpFolderId(deviceId = video.id.deviceId, parentId = "0",
+                containerId = video.id.parentId)
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        mClient.addUpnpVideo(video)
+        mClient.addUpnpVideo(other)
+        assertThat(mClient.search("medi tit").map { it.id }.toList().blockingGet())
+                .containsExactly(video.id)
+        assertThat(mClient.search("title").toList().blockingGet()).hasSize(2)
+        assertThat(mClient.search("\"; DROP").toList().blockingGet()).isEmpty()
+
+        mClient.hideChildrenOf(parentId)
+        assertThat(mClient.search("title").toList().blockingGet()).isEmpty()
+    }
+
+    @Test
+    fun search_reads_title_matches_first_and_stops_at_limit() {
+        val video = upnpVideo_folder_1_no_association()
+        val parentId = UpnpFolderId(deviceId = video.id.deviceId, parentId = "0",
+                containerId = video.id.parentId)
+        val hidden = video.copy(id = video.id.copy(itemId = "1.2"), meta = video.meta.copy(title = "title.02"))
+        val shown = video.copy(id = video.id.copy(itemId = "1.3"), meta = video.meta.copy(title = "title.03"))
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        mClient.addUpnpVideo(hidden)
+        mClient.hideChildrenOf(parentId)
+        mClient.addUpnpVideo(shown)
+        //a hidden match doesn't use up the limit
+        assertThat(mClient.search("title", 1).map { it.id }.toList().blockingGet()).containsExactly(shown.id)
+
+        assertThat(searchMatchTiers("Star. riv")).containsExactly("title:star* title:riv*",
+                "alt_title:star* alt_title:riv*", "collection:star* collection:riv*", "star* riv*")
+        assertThat(searchMatchTiers("\"; --")).isEmpty()
+    }
+
+    @Test
+    fun local_access_reads_what_the_provider_does_and_reuses_its_sql() {
+        val video = upnpVideo_folder_1_no_association()
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        mClient.addUpnpVideo(video)
+        val access = LocalMediaAccess(mProvider)
+        val local = MediaDAO(access, MediaDBUris("foo.authority"), mApiHelper)
+        val parentId = UpnpFolderId(deviceId = video.id.deviceId, parentId = "0",
+                containerId = video.id.parentId)
+        assertThat(local.getUpnpVideosUnder(parentId).toList().blockingGet())
+                .isEqualTo(mClient.getUpnpVideosUnder(parentId).toList().blockingGet())
+        assertThat(access.queryCacheHits).isEqualTo(0)
+        local.getUpnpVideosUnder(parentId).toList().blockingGet()
+        assertThat(access.queryCacheHits).isEqualTo(1)
+    }
+
+    @Test
+    fun ref_cache_hits_until_own_write_invalidates() {
+        val video = upnpVideo_folder_1_no_association()
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        mClient.addUpnpVideo(video)
+        val first = mClient.getVideoRef(video.id).blockingGet()
+        assertThat(mClient.getVideoRef(video.id).blockingGet()).isEqualTo(first)
+        assertThat(mClient.refCacheHits).isEqualTo(1L)
+        assertThat(mClient.refCacheMisses).isEqualTo(1L)
+
+        mClient.setLastPlaybackPosition(video.id, 500, 1000)
+        assertThat(mClient.getVideoRef(video.id).blockingGet().resumeInfo).isNotNull()
+        assertThat(mClient.refCacheMisses).isEqualTo(2L)
+    }
+
+    @Test
+    fun ref_cache_clears_when_artwork_uris_change() {
+        val changes = PublishSubject.create<Any>()
+        val client = MediaDAO(mResolver, MediaDBUris("foo.authority"), object : ApiHelper by mApiHelper {
+            override val uriChanges: Observable<out Any>
+                get() = changes
+        })
+        val video = upnpVideo_folder_1_no_association()
+        client.addUpnpDevice(upnpDevice_all_meta())
+        client.addUpnpVideo(video)
+        client.getVideoRef(video.id).blockingGet()
+        client.getVideoRef(video.id).blockingGet()
+        assertThat(client.refCacheMisses).isEqualTo(1L)
+
+        changes.onNext(Unit)
+        client.getVideoRef(video.id).blockingGet()
+        assertThat(client.refCacheMisses).isEqualTo(2L)
+    }
+
+    @Test
+    fun replace_children_hides_stale_and_upserts_new() {
+        val device = upnpDevice_all_meta()
+        val folders = upnpFolders()
+        mClient.addUpnpDevice(device)
+        assertThat(mClient.replaceChildrenOf(device.id, folders)).isTrue()
+        assertThat(mClient.getUpnpFoldersUnder(device.id).toList().blockingGet())
+                .containsExactlyElementsOf(folders.sortedBy { it.meta.title })
+
+        val kept = folders.subList(0, 3)
+        assertThat(mClient.replaceChildrenOf(device.id, kept)).isTrue()
+        assertThat(mClient.getUpnpFoldersUnder(device.id).toList().blockingGet())
+                .containsExactlyElementsOf(kept.sortedBy { it.meta.title })
+    }
+
+    @Test
+    fun replace_children_updates_existing_video() {
+        val video = upnpVideo_folder_1_no_association()
+        val parentId = UpnpFolderId(deviceId = video.id.deviceId, parentId = "0",
+                containerId = video.id.parentId)
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        mClient.addUpnpVideo(video)
+        val renamed = video.copy(meta = video.meta.copy(title = "a new title"))
+        assertThat(mClient.replaceChildrenOf(parentId, listOf(renamed))).isTrue()
+        val videos = mClient.getUpnpVideosUnder(parentId).toList().blockingGet()
+        assertThat(videos).hasSize(1)
+        assertThat(videos[0].meta.title).isEqualTo("a new title")
+    }
+
 }
\ No newline at end of file
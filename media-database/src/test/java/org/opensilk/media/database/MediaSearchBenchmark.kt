@@ -0,0 +1,82 @@
+package org.opensilk.media.database
+
+import android.content.pm.ProviderInfo
+import android.net.Uri
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opensilk.media.UpnpFolderId
+import org.opensilk.media.testdata.syntheticUpnpVideos
+import org.opensilk.media.testdata.upnpDevice_all_meta
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+
+/**
+ * Times [MediaDAO.search] against a large synthetic library
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class, application = TestApp::class)
+class MediaSearchBenchmark {
+
+    lateinit var mProvider: MediaProvider
+    lateinit var mClient: MediaDAO
+
+    @Before
+    fun setupProvider() {
+        val providerInfo = ProviderInfo()
+        providerInfo.authority = "foo.authority"
+        mProvider = Robolectric.buildContentProvider(MediaProvider::class.java)
+                .create(providerInfo).get()
+        mProvider.mMediaDB = MediaDB(RuntimeEnvironment.application)
+        mProvider.mUris = MediaDBUris("foo.authority")
+
+        val apiHelper = object : ApiHelper {
+            override fun tvImagePosterUri(path: String): Uri = Uri.EMPTY
+            override fun tvImageBackdropUri(path: String): Uri = Uri.EMPTY
+            override fun movieImagePosterUri(path: String): Uri = Uri.EMPTY
+            override fun movieImageBackdropUri(path: String): Uri = Uri.EMPTY
+        }
+        mClient = MediaDAO(LocalMediaAccess(mProvider), MediaDBUris("foo.authority"), apiHelper)
+    }
+
+    @After
+    fun teardown() {
+        mProvider.shutdown()
+    }
+
+    @Test
+    fun benchmark_search_100k_videos() {
+        mClient.addUpnpDevice(upnpDevice_all_meta())
+        val insertStart = System.nanoTime()
+        syntheticUpnpVideos(ROWS, PER_FOLDER).groupBy { it.id.parentId }.forEach { (parent, videos) ->
+            mClient.replaceChildrenOf(UpnpFolderId(deviceId = "foo0", parentId = "0", containerId = parent), videos)
+        }
+        val insert = (System.nanoTime() - insertStart) / 1000000
+
+        QUERIES.forEach { query ->
+            //warm up
+            val results = mClient.search(query, LIMIT).toList().blockingGet()
+            assertThat(results).isNotEmpty()
+            val start = System.nanoTime()
+            for (ii in 0 until PASSES) {
+                mClient.search(query, LIMIT).toList().blockingGet()
+            }
+            val elapsed = (System.nanoTime() - start) / PASSES / 1000
+            println("search('$query') over $ROWS rows: ${elapsed}us, first=${results[0].meta.title}")
+        }
+        println("indexed $ROWS rows in ${insert}ms")
+    }
+
+    companion object {
+        const val ROWS = 100000
+        const val PER_FOLDER = 500
+        const val LIMIT = 50
+        const val PASSES = 10
+        val QUERIES = listOf("star", "star riv", "s01e0", "gold falc")
+    }
+
+}
@@ -1,6 +1,6 @@
 package org.opensilk.media.loader.cds
 
-import io.reactivex.Maybe
+import io.reactivex.Observable
 import io.reactivex.Single
 import org.opensilk.media.*
 
@@ -13,5 +13,12 @@ interface UpnpBrowseLoader {
      */
     fun directChildren(upnpFolderId: UpnpContainerId, wantVideoItems: Boolean = false,
                        wantAudioItems: Boolean = false): Single<out List<MediaRef>>
+
+    /**
+     * Emits direct children as they arrive, large containers arrive a page at a time
+     */
+    fun children(upnpFolderId: UpnpContainerId, wantVideoItems: Boolean = false,
+                 wantAudioItems: Boolean = false): Observable<out MediaRef> =
+            directChildren(upnpFolderId, wantVideoItems, wantAudioItems).flattenAsObservable { it }
 }
 
@@ -2,15 +2,18 @@ package org.opensilk.media.loader.cds
 
 import io.reactivex.Observable
 import io.reactivex.Single
+import io.reactivex.schedulers.Schedulers
 import org.fourthline.cling.model.message.header.UDAServiceTypeHeader
 import org.fourthline.cling.model.meta.Device
 import org.fourthline.cling.model.meta.Service
 import org.fourthline.cling.model.types.UDN
 import org.fourthline.cling.registry.DefaultRegistryListener
 import org.fourthline.cling.registry.Registry
-import org.fourthline.cling.support.contentdirectory.DIDLParser
+import org.fourthline.cling.support.model.DIDLObject
 import org.fourthline.cling.support.model.Protocol
+import org.fourthline.cling.support.model.container.Container
 import org.fourthline.cling.support.model.item.AudioItem
+import org.fourthline.cling.support.model.item.Item
 import org.fourthline.cling.support.model.item.MusicTrack
 import org.fourthline.cling.support.model.item.VideoItem
 import org.opensilk.media.*
@@ -19,115 +22,234 @@ import org.opensilk.upnp.cds.browser.CDSUpnpService
 import org.opensilk.upnp.cds.browser.CDSserviceType
 import org.opensilk.upnp.cds.featurelist.BasicView
 import timber.log.Timber
+import java.io.StringReader
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Semaphore
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
 import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * The first page is kept small so something shows after one round trip
+ */
+internal const val FIRST_PAGE_SIZE = 50L
+internal const val PAGE_SIZE = 200L
+/**
+ * Browse actions in flight per device, across all browses
+ */
+internal const val MAX_PARALLEL_PAGES = 3
+/**
+ * Most children read from one container, whatever TotalMatches says
+ */
+internal const val MAX_BROWSE_ITEMS = 100_000L
 
 /**
  * Default implementation of UpnpBrowseLoader
  *
  * Created by drew on 7/29/17.
  */
+@Singleton
 class UpnpBrowseLoaderImpl @Inject constructor(private val mUpnpService: CDSUpnpService): UpnpBrowseLoader {
 
     private data class Opts(val audio: Boolean, val video: Boolean)
+    /**
+     * What a browse action returned, or why it failed. [firstId] is the id of the first
+     * child, [repeated] is set when that was the first child of the page before
+     */
+    private class Page(val returned: Long, val totalMatches: Long, val error: Throwable? = null,
+                       val firstId: String? = null, val repeated: Boolean = false)
+
+    //browse slots of each device, shared by every browse on it
+    private val mDeviceSlots = ConcurrentHashMap<String, Semaphore>()
 
     override fun directChildren(upnpFolderId: UpnpContainerId, wantVideoItems: Boolean,
                                 wantAudioItems: Boolean): Single<out List<MediaRef>> {
+        return children(upnpFolderId, wantVideoItems, wantAudioItems).toList()
+    }
+
+    override fun children(upnpFolderId: UpnpContainerId, wantVideoItems: Boolean,
+                          wantAudioItems: Boolean): Observable<MediaRef> {
         val opts = Opts(wantAudioItems, wantVideoItems)
         return if (upnpFolderId is UpnpDeviceId) {
             //for root folder, look for feature list, falling back to normal browse
-            cachedService(upnpFolderId).flatMap { service ->
+            cachedService(upnpFolderId).flatMapObservable { service ->
                 featureList(service, upnpFolderId, opts)
                         .onErrorResumeNext(browse(service, upnpFolderId, opts))
-                        .toList()
             }
         } else {
             //else just do browse
-            cachedService(upnpFolderId).flatMap { service ->
+            cachedService(upnpFolderId).flatMapObservable { service ->
                 browse(service, upnpFolderId, opts)
-                        .toList()
             }
         }
     }
 
     /**
-     * performs the browse
+     * performs the browse. A small first page tells us TotalMatches, the rest
+     * is split in ranges fetched in parallel. Children are emitted as they are parsed,
+     * in page completion order.
      */
     private fun browse(service: Service<*, *>, parentId: UpnpContainerId, opts: Opts) : Observable<MediaRef> {
-        return Observable.create { subscriber ->
-            val browse = CDSBrowseAction(mUpnpService.controlPoint, service, parentId.containerId)
-            browse.run()
-            if (subscriber.isDisposed){
-                return@create
+        return Observable.defer {
+            val first = AtomicReference<Page>()
+            Observable.create<MediaRef> { subscriber ->
+                val page = browsePage(service, parentId, opts, 0, FIRST_PAGE_SIZE, null, { subscriber.onNext(it) })
+                if (page.error != null) {
+                    //quietly dropped if they went away mid browse
+                    subscriber.tryOnError(page.error)
+                    return@create
+                }
+                first.set(page)
+                subscriber.onComplete()
+            }.concatWith(Observable.defer {
+                remainingPages(service, parentId, opts, first.get())
+            })
+        }
+    }
+
+    private fun remainingPages(service: Service<*, *>, parentId: UpnpContainerId, opts: Opts,
+                               first: Page): Observable<MediaRef> {
+        val next = first.returned
+        return when {
+            next == 0L || (first.totalMatches in 1..next) -> {
+                //they sent everything
+                Observable.empty()
             }
-            if (browse.error.get() != null) {
-                subscriber.onError(browse.error.get())
-                return@create
+            first.totalMatches == 0L && next < FIRST_PAGE_SIZE -> {
+                //total unknown but they sent less than we asked for
+                Observable.empty()
             }
-            if (browse.result.get() == null) {
-                subscriber.onError(NullPointerException())
-                return@create
+            first.totalMatches == 0L -> {
+                //total unknown, keep going until they run out or start over
+                browseRange(service, parentId, opts, next, MAX_BROWSE_ITEMS, first.firstId)
             }
-            val result = browse.result.get()
-            if (result.countLong == 0L) {// && result.totalMatchesLong == 720L) {
-                subscriber.onComplete()
-                return@create
+            else -> {
+                val total = Math.min(first.totalMatches, MAX_BROWSE_ITEMS)
+                val ranges = (next until total step PAGE_SIZE).map { start ->
+                    Pair(start, Math.min(start + PAGE_SIZE, total))
+                }
+                //a range starting with the first child means they ignore the start index
+                Observable.fromIterable(ranges).flatMap({ (start, end) ->
+                    browseRange(service, parentId, opts, start, end, first.firstId).subscribeOn(Schedulers.io())
+                }, MAX_PARALLEL_PAGES)
             }
-            try {
-                val didlParser = DIDLParser()
-                val didl = didlParser.parse(result.result)
-                val deviceId = UpnpDeviceId(parentId.deviceId)
-
-                for (c in didl.containers) {
-                    try {
-                        subscriber.onNext(c.toUpnpFolder(deviceId))
-                    } catch (e: Exception) {
-                        Timber.e(e, "Unable to parse ${c.title}")
-                    }
+        }
+    }
+
+    /**
+     * Browses [start] until [end], servers returning less than asked for are asked again
+     * for the remainder. Stops early if a page comes back empty or starts with the same
+     * child as the page before it, [previousFirstId] for the first page.
+     */
+    private fun browseRange(service: Service<*, *>, parentId: UpnpContainerId, opts: Opts,
+                            start: Long, end: Long, previousFirstId: String?): Observable<MediaRef> {
+        return Observable.create { subscriber ->
+            var pos = start
+            var previous = previousFirstId
+            while (pos < end && !subscriber.isDisposed) {
+                val page = browsePage(service, parentId, opts, pos, Math.min(PAGE_SIZE, end - pos),
+                        previous, { subscriber.onNext(it) })
+                if (page.error != null) {
+                    subscriber.tryOnError(page.error)
+                    return@create
+                }
+                if (page.returned == 0L || page.repeated) {
+                    break
                 }
+                pos += page.returned
+                previous = page.firstId
+            }
+            subscriber.onComplete()
+        }
+    }
 
-                for (item in didl.items) {
-                    try {
-                        if (item.clazz.value.startsWith("object.item.videoItem", true) && opts.video) {
-                            val res = item.firstResource ?: continue
-                            if (res.protocolInfo.protocol != Protocol.HTTP_GET) {
-                                //we can only support http-get
-                                Timber.w("Skipping item ${item.title} with unsupported resource protocol")
-                                continue
-                            }
-                            subscriber.onNext((item as VideoItem).toMediaMeta(deviceId))
-                        } else if (item.clazz.value.startsWith("object.item.audioItem", true) && opts.audio) {
-                            val res = item.firstResource ?: continue
-                            if (res.protocolInfo.protocol != Protocol.HTTP_GET) {
-                                //we can only support http-get
-                                Timber.w("Skipping item ${item.title} with unsupported resource protocol")
-                                continue
-                            }
-                            if (MusicTrack.CLASS.equals(item)) {
-                                subscriber.onNext((item as MusicTrack).toUpnpMusicTrack(deviceId))
-                            } else {
-                                subscriber.onNext((item as AudioItem).toUpnpAudioTrack(deviceId))
-                            }
-                        } else {
-                            Timber.w("Skipping unsupported item ${item.title} class is ${item.clazz.value}")
-                        }
-                    } catch (e: Exception) {
-                        Timber.e(e, "Unable to parse ${item.title}")
+    /**
+     * Fetches one page, holding one of the device's slots while on the wire,
+     * and hands each child to [onRef] as it is read. A page starting with
+     * [repeatOf] hands over nothing. Never throws, failures are returned in
+     * the page so callers can drop them once disposed.
+     */
+    private fun browsePage(service: Service<*, *>, parentId: UpnpContainerId, opts: Opts,
+                           start: Long, count: Long, repeatOf: String?, onRef: (MediaRef) -> Unit): Page {
+        val browse = CDSBrowseAction(mUpnpService.controlPoint, service, parentId.containerId,
+                firstResult = start, maxResults = count)
+        val slots = mDeviceSlots[parentId.deviceId] ?: mDeviceSlots.putIfAbsent(parentId.deviceId,
+                Semaphore(MAX_PARALLEL_PAGES)) ?: mDeviceSlots[parentId.deviceId]!!
+        try {
+            //io workers are interrupted when disposed
+            slots.acquire()
+        } catch (e: InterruptedException) {
+            return Page(0, 0, e)
+        }
+        try {
+            browse.run()
+        } finally {
+            slots.release()
+        }
+        if (browse.error.get() != null) {
+            return Page(0, 0, browse.error.get())
+        }
+        val result = browse.result.get() ?: return Page(0, 0, NullPointerException())
+        var firstId: String? = null
+        var repeated = false
+        if (result.countLong > 0L) {
+            val deviceId = UpnpDeviceId(parentId.deviceId)
+            try {
+                readDidl(StringReader(result.result), { obj ->
+                    if (firstId == null) {
+                        firstId = obj.id
+                        repeated = repeatOf != null && obj.id == repeatOf
                     }
-                }
+                    if (!repeated) {
+                        toMediaRef(obj, deviceId, opts)?.let(onRef)
+                    }
+                })
+            } catch (e: Exception) {
+                return Page(0, 0, e)
+            }
+        }
+        return Page(result.countLong, result.totalMatchesLong, firstId = firstId, repeated = repeated)
+    }
 
-                if (result.countLong == result.totalMatchesLong) {
-                    //they sent everything
-                    subscriber.onComplete()
+    private fun toMediaRef(obj: DIDLObject, deviceId: UpnpDeviceId, opts: Opts): MediaRef? {
+        if (obj is Container) {
+            try {
+                return obj.toUpnpFolder(deviceId)
+            } catch (e: Exception) {
+                Timber.e(e, "Unable to parse ${obj.title}")
+                return null
+            }
+        }
+        val item = obj as? Item ?: return null
+        try {
+            if (item.clazz.value.startsWith("object.item.videoItem", true) && opts.video) {
+                val res = item.firstResource ?: return null
+                if (res.protocolInfo.protocol != Protocol.HTTP_GET) {
+                    //we can only support http-get
+                    Timber.w("Skipping item ${item.title} with unsupported resource protocol")
+                    return null
+                }
+                return (item as VideoItem).toMediaMeta(deviceId)
+            } else if (item.clazz.value.startsWith("object.item.audioItem", true) && opts.audio) {
+                val res = item.firstResource ?: return null
+                if (res.protocolInfo.protocol != Protocol.HTTP_GET) {
+                    //we can only support http-get
+                    Timber.w("Skipping item ${item.title} with unsupported resource protocol")
+                    return null
+                }
+                return if (MusicTrack.CLASS.equals(item)) {
+                    (item as MusicTrack).toUpnpMusicTrack(deviceId)
                 } else {
-                    //TODO handle pagination
-                    subscriber.onComplete()
+                    (item as AudioItem).toUpnpAudioTrack(deviceId)
                 }
-
-            } catch (e: Exception) {
-                subscriber.onError(e)
+            } else {
+                Timber.w("Skipping unsupported item ${item.title} class is ${item.clazz.value}")
             }
+        } catch (e: Exception) {
+            Timber.e(e, "Unable to parse ${item.title}")
         }
+        return null
     }
 
     /**
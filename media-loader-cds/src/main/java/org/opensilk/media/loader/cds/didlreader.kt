@@ -0,0 +1,185 @@
+package org.opensilk.media.loader.cds
+
+import android.util.Xml
+import org.fourthline.cling.support.model.DIDLObject
+import org.fourthline.cling.support.model.PersonWithRole
+import org.fourthline.cling.support.model.ProtocolInfo
+import org.fourthline.cling.support.model.Res
+import org.fourthline.cling.support.model.container.Container
+import org.fourthline.cling.support.model.item.AudioItem
+import org.fourthline.cling.support.model.item.Item
+import org.fourthline.cling.support.model.item.MusicTrack
+import org.fourthline.cling.support.model.item.VideoItem
+import org.xmlpull.v1.XmlPullParser
+import timber.log.Timber
+import java.io.Reader
+import java.net.URI
+
+private const val NS_DC = "http://purl.org/dc/elements/1.1/"
+private const val NS_UPNP = "urn:schemas-upnp-org:metadata-1-0/upnp/"
+
+/**
+ * Reads a DIDL-Lite document handing each container and item to [onObject] as soon as
+ * its element ends. Unlike DIDLParser the document is never held as a DIDLContent,
+ * and only the properties modelconverters.kt reads are kept.
+ *
+ * @return the number of objects read
+ */
+fun readDidl(xml: Reader, onObject: (DIDLObject) -> Unit): Int {
+    val parser = Xml.newPullParser()
+    parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true)
+    parser.setInput(xml)
+    var num = 0
+    var event = parser.next()
+    while (event != XmlPullParser.END_DOCUMENT) {
+        //objects are the children of the DIDL-Lite root
+        if (event == XmlPullParser.START_TAG && parser.depth == 2) {
+            val obj = when (parser.name) {
+                "container" -> readObject(parser, true)
+                "item" -> readObject(parser, false)
+                else -> {
+                    skip(parser)
+                    null
+                }
+            }
+            if (obj != null) {
+                num++
+                onObject(obj)
+            }
+        }
+        event = parser.next()
+    }
+    return num
+}
+
+/**
+ * Fields of a container or item collected until its class is known
+ */
+private class DidlFields(val container: Boolean) {
+    var id: String? = null
+    var parentId: String? = null
+    var title: String? = null
+    var creator: String? = null
+    var clazz: String? = null
+    var artist: String? = null
+    var album: String? = null
+    var date: String? = null
+    var trackNum: Int? = null
+    var albumArt: String? = null
+    val genres = ArrayList<String>(1)
+    val resources = ArrayList<Res>(1)
+
+    fun build(): DIDLObject {
+        val clazz = clazz ?: ""
+        val obj = when {
+            container -> Container()
+            clazz.startsWith(MusicTrack.CLASS.value) -> MusicTrack()
+            clazz.startsWith(AudioItem.CLASS.value) -> AudioItem()
+            clazz.startsWith(VideoItem.CLASS.value) -> VideoItem()
+            else -> Item()
+        }
+        //DIDLObject setters return the object so they aren't kotlin properties
+        obj.setId(id)
+        obj.setParentID(parentId)
+        obj.setTitle(title)
+        obj.setCreator(creator)
+        obj.setClazz(DIDLObject.Class(clazz))
+        resources.forEach { obj.addResource(it) }
+        genres.forEach { obj.addProperty(DIDLObject.Property.UPNP.GENRE(it)) }
+        artist?.let { obj.addProperty(DIDLObject.Property.UPNP.ARTIST(PersonWithRole(it))) }
+        album?.let { obj.addProperty(DIDLObject.Property.UPNP.ALBUM(it)) }
+        date?.let { obj.addProperty(DIDLObject.Property.DC.DATE(it)) }
+        trackNum?.let { obj.addProperty(DIDLObject.Property.UPNP.ORIGINAL_TRACK_NUMBER(it)) }
+        albumArt?.let {
+            try {
+                obj.addProperty(DIDLObject.Property.UPNP.ALBUM_ART_URI(URI.create(it)))
+            } catch (e: IllegalArgumentException) {
+                Timber.w("Ignoring bad album art uri $it")
+            }
+        }
+        return obj
+    }
+}
+
+/**
+ * Reads the container or item the parser is on, leaving it on the element's end tag
+ */
+private fun readObject(parser: XmlPullParser, container: Boolean): DIDLObject? {
+    val fields = DidlFields(container)
+    fields.id = parser.getAttributeValue(null, "id")
+    fields.parentId = parser.getAttributeValue(null, "parentID")
+    val depth = parser.depth
+    var event = parser.next()
+    while (!(event == XmlPullParser.END_TAG && parser.depth == depth)) {
+        if (event == XmlPullParser.START_TAG) {
+            readProperty(parser, fields)
+        }
+        event = parser.next()
+    }
+    if (fields.id == null) {
+        Timber.w("Skipping object without an id ${fields.title}")
+        return null
+    }
+    return fields.build()
+}
+
+private fun readProperty(parser: XmlPullParser, fields: DidlFields) {
+    when (parser.namespace) {
+        NS_DC -> when (parser.name) {
+            "title" -> fields.title = parser.nextText()
+            "creator" -> fields.creator = parser.nextText()
+            "date" -> fields.date = parser.nextText()
+            else -> skip(parser)
+        }
+        NS_UPNP -> when (parser.name) {
+            "class" -> fields.clazz = parser.nextText()
+            "genre" -> fields.genres.add(parser.nextText())
+            "artist" -> fields.artist = fields.artist ?: parser.nextText()
+            "album" -> fields.album = parser.nextText()
+            "albumArtURI" -> fields.albumArt = fields.albumArt ?: parser.nextText()
+            "originalTrackNumber" -> fields.trackNum = parser.nextText().trim().toIntOrNull()
+            else -> skip(parser)
+        }
+        else -> when (parser.name) {
+            "res" -> readRes(parser)?.let { fields.resources.add(it) }
+            else -> skip(parser)
+        }
+    }
+}
+
+private fun readRes(parser: XmlPullParser): Res? {
+    val protocolInfo = parser.getAttributeValue(null, "protocolInfo")
+    val duration = parser.getAttributeValue(null, "duration")
+    val bitrate = parser.getAttributeValue(null, "bitrate")?.toLongOrNull()
+    val size = parser.getAttributeValue(null, "size")?.toLongOrNull()
+    val resolution = parser.getAttributeValue(null, "resolution")
+    val nrAudioChannels = parser.getAttributeValue(null, "nrAudioChannels")?.toLongOrNull()
+    val sampleFrequency = parser.getAttributeValue(null, "sampleFrequency")?.toLongOrNull()
+    val value = parser.nextText().trim()
+    if (protocolInfo == null) {
+        return null
+    }
+    val res = try {
+        Res(ProtocolInfo(protocolInfo), size, duration, bitrate, value)
+    } catch (e: Exception) {
+        Timber.w("Skipping res with bad protocolInfo $protocolInfo")
+        return null
+    }
+    res.setResolution(resolution)
+    res.setNrAudioChannels(nrAudioChannels)
+    res.setSampleFrequency(sampleFrequency)
+    return res
+}
+
+/**
+ * Skips the element the parser is on and all its children
+ */
+private fun skip(parser: XmlPullParser) {
+    var depth = 1
+    while (depth != 0) {
+        when (parser.next()) {
+            XmlPullParser.END_TAG -> depth--
+            XmlPullParser.START_TAG -> depth++
+        }
+    }
+}
@@ -12,6 +12,11 @@ import org.fourthline.cling.support.model.container.StorageFolder
 import org.opensilk.media.UPNP_ROOT_ID
 import org.opensilk.media.testdata.upnpFolders
 
+const val LARGE_CONTAINER_ID = "large"
+const val LARGE_CONTAINER_SIZE = 1234
+const val LARGE_CONTAINER_PAGE_CAP = 150L
+const val LOOPING_CONTAINER_ID = "looping"
+
 /**
  * Created by drew on 8/13/17.
  */
@@ -33,6 +38,25 @@ class BrowseService: AbstractContentDirectoryService() {
                 }
                 size = upnpFolders().size
             }
+            LARGE_CONTAINER_ID -> {
+                //honors the requested range but caps pages like some servers do
+                val end = Math.min(LARGE_CONTAINER_SIZE.toLong(),
+                        firstResult + Math.min(maxResults, LARGE_CONTAINER_PAGE_CAP))
+                for (ii in firstResult until end) {
+                    didlContent.addContainer(Container("$LARGE_CONTAINER_ID.$ii",
+                            LARGE_CONTAINER_ID, "folder $ii", null, StorageFolder.CLASS, 0))
+                }
+                return BrowseResult(DIDLParser().generate(didlContent),
+                        Math.max(0, end - firstResult), LARGE_CONTAINER_SIZE.toLong())
+            }
+            LOOPING_CONTAINER_ID -> {
+                //ignores the start index and never says how many there are
+                for (ii in 0 until maxResults) {
+                    didlContent.addContainer(Container("$LOOPING_CONTAINER_ID.$ii",
+                            LOOPING_CONTAINER_ID, "folder $ii", null, StorageFolder.CLASS, 0))
+                }
+                return BrowseResult(DIDLParser().generate(didlContent), maxResults, 0)
+            }
         }
         return BrowseResult(
                 DIDLParser().generate(didlContent),
@@ -0,0 +1,97 @@
+package org.opensilk.media.loader.cds
+
+import org.assertj.core.api.Assertions.assertThat
+import org.fourthline.cling.support.contentdirectory.DIDLParser
+import org.fourthline.cling.support.model.DIDLContent
+import org.fourthline.cling.support.model.DIDLObject
+import org.fourthline.cling.support.model.container.Container
+import org.fourthline.cling.support.model.item.MusicTrack
+import org.fourthline.cling.support.model.item.VideoItem
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opensilk.media.MediaRef
+import org.opensilk.media.UpnpDeviceId
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.StringReader
+
+/**
+ * Compares the streaming reader against DIDLParser on a large Browse result:
+ * time until the first object is usable and time for the whole document,
+ * warm up iterations then measured iterations. Handing objects over as they
+ * are read must not cost much over building the whole DIDLContent.
+ * Only runs with ./gradlew test -Pbenchmarks, [DidlReaderTest] covers what is read.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class)
+class DidlReaderBenchmark {
+
+    private val mDeviceId = UpnpDeviceId("uuid:4d696e69-444c-164e-9d41-b827eb5d3dc4")
+
+    @Test
+    fun benchmark_large_browse_result() {
+        val xml = document(ITEMS)
+        var first = 0L
+        val parser = measure {
+            val start = System.nanoTime()
+            val didl = DIDLParser().parse(xml)
+            //nothing is usable until the whole tree is built
+            first += System.nanoTime() - start
+            didl.items.map { convert(it) }.size
+        }
+        //first is summed over the warm up iterations too
+        val parserFirst = first / (WARMUP_ITERATIONS + MEASURED_ITERATIONS)
+        first = 0L
+        val reader = measure {
+            val start = System.nanoTime()
+            val refs = ArrayList<MediaRef>(ITEMS)
+            readDidl(StringReader(xml), { obj ->
+                if (refs.isEmpty()) {
+                    first += System.nanoTime() - start
+                }
+                refs.add(convert(obj))
+            })
+            refs.size
+        }
+        val readerFirst = first / (WARMUP_ITERATIONS + MEASURED_ITERATIONS)
+        println("didl ${xml.length / 1024}KiB $ITEMS items: " +
+                "DIDLParser=${parser}ms (first item ${parserFirst / 1000}us) " +
+                "readDidl=${reader}ms (first item ${readerFirst / 1000}us)")
+        assertThat(reader).isLessThanOrEqualTo(parser + parser / 2)
+    }
+
+    /**
+     * @return millis per document averaged over the measured iterations
+     */
+    private fun measure(op: () -> Int): Long {
+        for (ii in 0 until WARMUP_ITERATIONS) {
+            assertThat(op()).isEqualTo(ITEMS)
+        }
+        val start = System.nanoTime()
+        for (ii in 0 until MEASURED_ITERATIONS) {
+            assertThat(op()).isEqualTo(ITEMS)
+        }
+        return (System.nanoTime() - start) / 1000000 / MEASURED_ITERATIONS
+    }
+
+    private fun convert(obj: DIDLObject): MediaRef = when (obj) {
+        is Container -> obj.toUpnpFolder(mDeviceId)
+        is MusicTrack -> obj.toUpnpMusicTrack(mDeviceId)
+        is VideoItem -> obj.toMediaMeta(mDeviceId)
+        else -> TODO("unexpected ${obj.clazz.value}")
+    }
+
+    private fun document(count: Int): String {
+        val didl = DIDLContent()
+        for (ii in 0 until count) {
+            didl.addItem(videoItem(ii))
+        }
+        return DIDLParser().generate(didl)
+    }
+
+    companion object {
+        const val ITEMS = 10000
+        const val WARMUP_ITERATIONS = 2
+        const val MEASURED_ITERATIONS = 3
+    }
+}
@@ -0,0 +1,91 @@
+package org.opensilk.media.loader.cds
+
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.fail
+import org.fourthline.cling.support.contentdirectory.DIDLParser
+import org.fourthline.cling.support.model.DIDLContent
+import org.fourthline.cling.support.model.DIDLObject
+import org.fourthline.cling.support.model.ProtocolInfo
+import org.fourthline.cling.support.model.Res
+import org.fourthline.cling.support.model.container.Container
+import org.fourthline.cling.support.model.container.StorageFolder
+import org.fourthline.cling.support.model.item.MusicTrack
+import org.fourthline.cling.support.model.item.VideoItem
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opensilk.media.MediaRef
+import org.opensilk.media.UpnpDeviceId
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.xmlpull.v1.XmlPullParserException
+import java.io.StringReader
+import java.net.URI
+
+/**
+ * What [readDidl] hands over compared to DIDLParser, [DidlReaderBenchmark] times them
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class)
+class DidlReaderTest {
+
+    private val mDeviceId = UpnpDeviceId("uuid:4d696e69-444c-164e-9d41-b827eb5d3dc4")
+
+    @Test
+    fun reader_matches_didl_parser() {
+        val didl = DIDLContent()
+        didl.addContainer(Container("c.1", "0", "folder & co", null, StorageFolder.CLASS, 0))
+        didl.addItem(videoItem(1))
+        val track = MusicTrack("t.1", "c.1", "track.title", "creator", "album", "artist",
+                Res(ProtocolInfo("http-get:*:audio/mpeg:*"), 4000L, "0:03:20.000", 320L,
+                        "http://10.0.0.2:8200/MediaItems/t.1.mp3"))
+        track.setGenres(arrayOf("genre"))
+        track.setOriginalTrackNumber(3)
+        track.addProperty(DIDLObject.Property.UPNP.ALBUM_ART_URI(
+                URI.create("http://10.0.0.2:8200/AlbumArt/1.jpg")))
+        didl.addItem(track)
+        val xml = DIDLParser().generate(didl)
+
+        val expected = DIDLParser().parse(xml).let { it.containers + it.items }.map { convert(it) }
+        val actual = ArrayList<MediaRef>()
+        assertThat(readDidl(StringReader(xml), { actual.add(convert(it)) })).isEqualTo(3)
+        assertThat(actual).isEqualTo(expected)
+    }
+
+    @Test
+    fun objects_are_handed_over_before_the_document_ends() {
+        val didl = DIDLContent()
+        (0 until 3).forEach { didl.addItem(videoItem(it)) }
+        val xml = DIDLParser().generate(didl)
+        //cut the document right after the second item
+        val cut = xml.indexOf("</item>", xml.indexOf("</item>") + 1) + "</item>".length
+
+        val read = ArrayList<String>()
+        try {
+            readDidl(StringReader(xml.substring(0, cut)), { read.add(it.id) })
+            fail("truncated document was read")
+        } catch (e: XmlPullParserException) {
+            //expected
+        }
+        assertThat(read).containsExactly("v.0", "v.1")
+    }
+
+    private fun convert(obj: DIDLObject): MediaRef = when (obj) {
+        is Container -> obj.toUpnpFolder(mDeviceId)
+        is MusicTrack -> obj.toUpnpMusicTrack(mDeviceId)
+        is VideoItem -> obj.toMediaMeta(mDeviceId)
+        else -> TODO("unexpected ${obj.clazz.value}")
+    }
+
+}
+
+/**
+ * Video item [ii] of container c.1 as a media server would describe it
+ */
+internal fun videoItem(ii: Int): VideoItem {
+    val res = Res(ProtocolInfo("http-get:*:video/mp4:*"), 1000000L + ii, "0:42:00.000", 5000L,
+            "http://10.0.0.2:8200/MediaItems/$ii.mp4")
+    res.setResolution("1920x1080")
+    res.setNrAudioChannels(2L)
+    res.setSampleFrequency(48000L)
+    return VideoItem("v.$ii", "c.1", "video.title.s01e$ii", "creator", res)
+}
@@ -48,4 +48,31 @@ class LoaderTest {
         val list = mLoader.directChildren(UpnpFolderId(deviceId, "0", UPNP_ROOT_ID)).blockingGet()
         assertThat(list).isEqualTo(upnpFolders())
     }
-}
\ No newline at end of file
+
+    @Test
+    fun large_containers_are_paged_without_gaps() {
+        val deviceId = mTestDevice.identity.udn.identifierString
+        val list = mLoader.directChildren(UpnpFolderId(deviceId, UPNP_ROOT_ID, LARGE_CONTAINER_ID))
+                .blockingGet()
+        assertThat(list).hasSize(LARGE_CONTAINER_SIZE)
+        assertThat(list.map { it.id }.toSet()).hasSize(LARGE_CONTAINER_SIZE)
+    }
+
+    @Test
+    fun first_page_is_emitted_before_the_rest() {
+        val deviceId = mTestDevice.identity.udn.identifierString
+        val first = mLoader.children(UpnpFolderId(deviceId, UPNP_ROOT_ID, LARGE_CONTAINER_ID))
+                .take(FIRST_PAGE_SIZE).toList().blockingGet()
+        assertThat(first.map { (it.id as UpnpFolderId).containerId })
+                .isEqualTo((0 until FIRST_PAGE_SIZE).map { "$LARGE_CONTAINER_ID.$it" })
+    }
+
+    @Test
+    fun servers_repeating_a_page_are_browsed_once() {
+        val deviceId = mTestDevice.identity.udn.identifierString
+        val list = mLoader.directChildren(UpnpFolderId(deviceId, UPNP_ROOT_ID, LOOPING_CONTAINER_ID))
+                .blockingGet()
+        assertThat(list.map { (it.id as UpnpFolderId).containerId })
+                .isEqualTo((0 until FIRST_PAGE_SIZE).map { "$LOOPING_CONTAINER_ID.$it" })
+    }
+}
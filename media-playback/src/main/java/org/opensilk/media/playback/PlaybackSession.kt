@@ -32,6 +32,7 @@ import okhttp3.OkHttpClient
 import org.opensilk.dagger2.ForApp
 import org.opensilk.media.*
 import org.opensilk.media.database.MediaDAO
+import org.opensilk.media.database.PlaybackPositionStore
 import org.opensilk.reactivex2.subscribeIgnoreError
 import timber.log.Timber
 import javax.inject.Inject
@@ -45,6 +46,7 @@ class PlaybackSession
 constructor(
         @ForApp private val mContext: Context,
         private val mDbClient: MediaDAO,
+        private val mPositions: PlaybackPositionStore,
         private val mQueue: PlaybackQueue,
         okHttpClient: OkHttpClient
 ) : MediaSession.Callback(), AudioManager.OnAudioFocusChangeListener, Player.EventListener {
@@ -116,6 +118,7 @@ constructor(
 
     fun release() {
         stop()
+        mPositions.flushAsync()
         mPlaybackState = PlaybackState.Builder().build() //STATE_NONE
         mMediaSession.release()
         mExoPlayer.release()
@@ -210,9 +213,12 @@ constructor(
             }
             Player.STATE_ENDED -> {
                 //update pos on last played
+                val duration = mExoPlayer.duration
                 mQueue.getCurrent().subscribeIgnoreError(Consumer { item ->
                     val ref = item.description.mediaId.toMediaId()
-                    mDbClient.setLastPlaybackPosition(ref, mExoPlayer.duration, mExoPlayer.duration)
+                    if (ref is VideoId) {
+                        mPositions.put(ref, duration, duration)
+                    }
                 })
                 mQueue.goToNext().subscribe({ item ->
                     prepareMedia(item.description._getMediaUri())
@@ -345,8 +351,10 @@ constructor(
                 mQueue.add(it.toMediaDescription())
             }
             val queue = mQueue.get()
+            //descriptions hold the json of the id, compare that instead of parsing each one
+            val mediaIdJson = mediaId.json
             val currentQueueItem = queue.first {
-                it.description.mediaId.toMediaId() == mediaId
+                it.description.mediaId == mediaIdJson
             }
             mQueue.setCurrent(currentQueueItem.queueId)
             mMediaSession.setQueue(queue)
@@ -375,11 +383,18 @@ constructor(
         }
     }
 
+    /**
+     * Holds the position of the current item in [mPositions], seeks and skips in quick
+     * succession only write the last one
+     */
     private fun saveCurrentPosition() {
-        //clear last pos for current item
-        mQueue.getCurrent().observeOn(mBackgroundScheduler).subscribeIgnoreError(Consumer { item ->
+        val position = mExoPlayer.currentPosition
+        val duration = mExoPlayer.duration
+        mQueue.getCurrent().subscribeIgnoreError(Consumer { item ->
             val ref = item.description.mediaId.toMediaId()
-            mDbClient.setLastPlaybackPosition(ref, mExoPlayer.currentPosition, mExoPlayer.duration)
+            if (ref is VideoId) {
+                mPositions.put(ref, position, duration)
+            }
         })
     }
 
@@ -392,7 +407,18 @@ constructor(
 
     override fun onPlayFromSearch(query: String, extras: Bundle) {
         Timber.d("onPlayFromSearch(%s)", query)
-        TODO()
+        pause()
+        mQueue.clear()
+        mMediaSession.setQueue(emptyList())
+        val playbackExtras = extras._playbackExtras()
+        mDbClient.search(query, SEARCH_LIMIT).ofType(VideoRef::class.java).firstElement()
+                .subscribeOn(mBackgroundScheduler).observeOn(mMainScheduler).subscribe({ ref ->
+            fetchAndPlaySiblingVideos(ref.id, playbackExtras)
+        }, { t ->
+            stopAndShowError(t.message ?: "Search failed")
+        }, {
+            stopAndShowError("Nothing found for $query")
+        })
     }
 
     override fun onPlayFromUri(uri: Uri, extras: Bundle) {
@@ -412,6 +438,7 @@ constructor(
             return
         }
         saveCurrentPosition()
+        mPositions.flushAsync()
         pause()
         changeState(STATE_PAUSED)
     }
@@ -470,6 +497,7 @@ constructor(
     override fun onStop() {
         Timber.d("onStop()")
         saveCurrentPosition()
+        mPositions.flushAsync()
         stop()
         changeState(STATE_STOPPED)
     }
@@ -14,4 +14,6 @@ internal const val VOLUME_DUCK = 0.2f
 // The volume we set the media player when we have audio focus.
 internal const val VOLUME_NORMAL = 1.0f
 
-const val PRETTY_MUCH_COMPLETE = 975
\ No newline at end of file
+const val PRETTY_MUCH_COMPLETE = 975
+// How many search results are considered when playing from a search
+internal const val SEARCH_LIMIT = 10
@@ -0,0 +1,40 @@
+package org.opensilk.media.testdata
+
+import android.net.Uri
+import org.opensilk.media.*
+import java.util.*
+
+/**
+ * Large made up libraries for benchmarks
+ */
+
+private val TITLE_WORDS = arrayOf(
+        "star", "night", "river", "iron", "shadow", "summer", "lost", "city", "dark", "golden",
+        "winter", "silent", "wild", "broken", "ocean", "fire", "glass", "north", "last", "secret",
+        "empire", "garden", "storm", "hollow", "crystal", "falcon", "paper", "stone", "velvet", "echo"
+)
+
+/**
+ * [count] videos on device foo0 spread over folders of [perFolder], named like
+ * release files ("Star.River.S01E02.mkv"). The same [seed] gives the same library.
+ */
+fun syntheticUpnpVideos(count: Int, perFolder: Int = 500, seed: Long = 0): List<UpnpVideoRef> {
+    val random = Random(seed)
+    return (0 until count).map { ii ->
+        val folder = ii / perFolder
+        val first = TITLE_WORDS[random.nextInt(TITLE_WORDS.size)].capitalize()
+        val second = TITLE_WORDS[random.nextInt(TITLE_WORDS.size)].capitalize()
+        val season = 1 + random.nextInt(9)
+        val episode = 1 + random.nextInt(24)
+        UpnpVideoRef(
+                id = UpnpVideoId(deviceId = "foo0", parentId = "$folder", itemId = "$folder.$ii"),
+                tvEpisodeId = null,
+                movieId = null,
+                meta = UpnpVideoMeta(
+                        title = "$first.$second.S0${season}E${"%02d".format(episode)}.mkv",
+                        mediaUri = Uri.parse("http://foo.com/media/$folder/$ii.mkv"),
+                        mimeType = "video/x-matroska"
+                )
+        )
+    }
+}
@@ -7,6 +7,7 @@ import android.os.Bundle
 import android.os.PersistableBundle
 import android.util.JsonReader
 import android.util.JsonWriter
+import android.util.LruCache
 import java.io.StringReader
 import java.io.StringWriter
 
@@ -30,6 +31,8 @@ const val KEY_DURATION = "media_duration"
 
 const val EXTRA_MEDIAID = "org.opensilk.extra.mediaid"
 
+internal const val PARSE_CACHE_SIZE = 256
+
 object NoMediaId: MediaId {
     override val json: String = ""
 }
@@ -147,10 +150,25 @@ fun PersistableBundle.getMediaId() = parseMediaId(getString(EXTRA_MEDIAID))
  */
 fun MediaId.asBundle() = bundle(EXTRA_MEDIAID, this.json)
 
+/**
+ * Ids are immutable so parses are shared, sessions and queues parse the same few over and over
+ */
+private val sParsedIds = LruCache<String, MediaId>(PARSE_CACHE_SIZE)
+
 /**
  * Recovers a MediaId from its json representation
  */
 internal fun parseMediaId(json: String): MediaId {
+    sParsedIds.get(json)?.let { return it }
+    val mediaId = readJsonMediaId(json)
+    sParsedIds.put(json, mediaId)
+    return mediaId
+}
+
+/**
+ * Recovers a MediaId from its json representation, without the cache
+ */
+internal fun readJsonMediaId(json: String): MediaId {
     return JsonReader(StringReader(json)).use { jr ->
         var mediaId: MediaId? = null
         jr.beginObject()
@@ -11,8 +11,9 @@ data class StorageDeviceId(
         override val path: String,
         val isPrimary: Boolean
 ): StorageContainerId, MediaDeviceId {
-    override val json: String
-        get() = writeJson(StorageDeviceIdTransformer, this)
+    override val json: String by lazy {
+        writeJson(StorageDeviceIdTransformer, this)
+    }
 }
 
 data class StorageDeviceMeta(
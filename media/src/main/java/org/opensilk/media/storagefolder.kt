@@ -11,8 +11,9 @@ data class StorageFolderId(
         override val uuid: String,
         val parent: String
 ): StorageContainerId, FolderId {
-    override val json: String
-        get() = writeJson(StorageFolderIdTransformer, this)
+    override val json: String by lazy {
+        writeJson(StorageFolderIdTransformer, this)
+    }
 }
 
 data class StorageFolderMeta(
@@ -12,8 +12,9 @@ data class StorageVideoId(
         override val uuid: String,
         val parent: String
 ): StorageId, VideoId {
-    override val json: String
-        get() = writeJson(StorageVideoIdTransformer, this)
+    override val json: String by lazy {
+        writeJson(StorageVideoIdTransformer, this)
+    }
 }
 
 data class StorageVideoMeta(
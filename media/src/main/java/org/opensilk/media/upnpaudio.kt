@@ -10,8 +10,9 @@ data class UpnpAudioId(
         override val parentId: String,
         override val itemId: String
 ): UpnpItemId {
-    override val json: String
-        get() = writeJson(UpnpAudioTransformer, this)
+    override val json: String by lazy {
+        writeJson(UpnpAudioTransformer, this)
+    }
 }
 
 data class UpnpAudioMeta(
@@ -12,8 +12,9 @@ data class UpnpDeviceId(
 ): UpnpContainerId, MediaDeviceId {
     override val parentId: String = UPNP_ROOT_ID
     override val containerId: String = UPNP_ROOT_ID
-    override val json: String
-        get() = writeJson(UpnpDeviceTransformer, this)
+    override val json: String by lazy {
+        writeJson(UpnpDeviceTransformer, this)
+    }
 }
 
 data class UpnpDeviceMeta(
@@ -9,8 +9,9 @@ data class UpnpFolderId(
         override val containerId: String
 ): UpnpContainerId, FolderId {
 
-    override val json: String
-        get() = writeJson(UpnpFolderTransformer, this)
+    override val json: String by lazy {
+        writeJson(UpnpFolderTransformer, this)
+    }
 
 }
 
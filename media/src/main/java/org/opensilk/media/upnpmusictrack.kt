@@ -10,8 +10,9 @@ data class UpnpMusicTrackId(
         override val parentId: String,
         override val itemId: String
 ): UpnpItemId, MusicTrackId {
-    override val json: String
-        get() = writeJson(UpnpMusicTrackTransformer, this)
+    override val json: String by lazy {
+        writeJson(UpnpMusicTrackTransformer, this)
+    }
 }
 
 data class UpnpMusicTrackMeta(
@@ -10,8 +10,9 @@ data class UpnpVideoId(
         override val parentId: String,
         override val itemId: String
 ): UpnpItemId, VideoId {
-    override val json: String
-        get() = writeJson(UpnpVideoTransformer, this)
+    override val json: String by lazy {
+        writeJson(UpnpVideoTransformer, this)
+    }
 }
 
 data class UpnpVideoMeta(
@@ -0,0 +1,75 @@
+package org.opensilk.media
+
+import org.assertj.core.api.Java6Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * Encode and decode throughput of the media id json, run in the style of a jmh
+ * throughput benchmark: warm up iterations then measured iterations, reporting ops/ms.
+ * The memoized and cached forms must beat writing and parsing the json every time.
+ * Only runs with ./gradlew test -Pbenchmarks, [MediaRefTest] covers the reuse itself.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class)
+class MediaIdCodecBenchmark {
+
+    private val mIds = (0 until IDS).map { ii ->
+        UpnpVideoId("uuid:4d696e69-444c-164e-9d41-b827eb5d3dc4", "64\$$ii", "64\$$ii\$1")
+    }
+    private val mJson = mIds.map { it.json }
+
+    @Test
+    fun benchmark_encode() {
+        val json = throughput { ii -> writeJson(UpnpVideoTransformer, mIds[ii]) }
+        val memoized = throughput { ii -> mIds[ii].json }
+        println("encode: json=$json memoized=$memoized ops/ms")
+        assertThat(memoized).isGreaterThan(json)
+        assertThat(mIds.map { writeJson(UpnpVideoTransformer, it) }).isEqualTo(mJson)
+    }
+
+    @Test
+    fun benchmark_decode() {
+        val json = throughput { ii -> readJsonMediaId(mJson[ii]) }
+        val cached = throughput { ii -> mJson[ii].toMediaId() }
+        println("decode: json=$json cached=$cached ops/ms")
+        assertThat(cached).isGreaterThan(json)
+        assertThat(mJson.map { it.toMediaId() }).isEqualTo(mIds)
+    }
+
+    /**
+     * @return operations per millisecond averaged over the measured iterations
+     */
+    private fun throughput(op: (Int) -> Any): Long {
+        var sink = 0
+        for (ii in 0 until WARMUP_ITERATIONS) {
+            sink += runIteration(op)
+        }
+        val start = System.nanoTime()
+        for (ii in 0 until MEASURED_ITERATIONS) {
+            sink += runIteration(op)
+        }
+        val millis = Math.max(1L, (System.nanoTime() - start) / 1000000)
+        //keep the results alive so the jit can't drop the work
+        assertThat(sink).isNotEqualTo(0)
+        return OPS_PER_ITERATION.toLong() * MEASURED_ITERATIONS / millis
+    }
+
+    private fun runIteration(op: (Int) -> Any): Int {
+        var hash = 0
+        for (ii in 0 until OPS_PER_ITERATION) {
+            hash = hash xor op(ii % IDS).hashCode()
+        }
+        return hash or 1
+    }
+
+    companion object {
+        //under the parse cache size so cached decodes hit
+        const val IDS = 200
+        const val OPS_PER_ITERATION = 5000
+        const val WARMUP_ITERATIONS = 3
+        const val MEASURED_ITERATIONS = 5
+    }
+}
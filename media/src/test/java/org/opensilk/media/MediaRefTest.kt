@@ -101,4 +101,11 @@ class MediaRefTest {
         val newRef = parseMediaId(ref.json)
         assertThat(newRef).isEqualTo(ref)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun toMediaId_sharesParses() {
+        val ref = UpnpVideoId("foobag", "bov", "barnfoo")
+        assertThat(ref.json).isSameAs(ref.json)
+        assertThat(ref.json.toMediaId()).isSameAs(ref.json.toMediaId())
+    }
+}
@@ -52,3 +52,9 @@ fun <T> MaybeEmitter<T>.cancellationSignal(): CancellationSignal {
     this.setCancellable { c.cancel() }
     return c
 }
+
+fun <T> SingleEmitter<T>.cancellationSignal(): CancellationSignal {
+    val c = CancellationSignal()
+    this.setCancellable { c.cancel() }
+    return c
+}
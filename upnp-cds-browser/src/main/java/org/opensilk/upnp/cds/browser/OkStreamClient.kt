@@ -7,12 +7,18 @@ import org.fourthline.cling.model.message.header.ContentTypeHeader
 import org.fourthline.cling.model.message.header.UpnpHeader
 import org.fourthline.cling.transport.spi.AbstractStreamClient
 import org.fourthline.cling.transport.spi.StreamClient
-import java.io.UnsupportedEncodingException
 import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
 import java.util.logging.Level
 import java.util.logging.Logger
 
+/**
+ * Idle connections kept per device, enough for parallel browse pages and an event subscription
+ */
+internal const val MAX_IDLE_CONNECTIONS_PER_DEVICE = 4
+internal const val KEEP_ALIVE_MINUTES = 2L
+
 /**
  * Created by drew on 8/5/17.
  */
@@ -31,8 +37,24 @@ constructor(
             .retryOnConnectionFailure(true)
             .build()
 
+    private val mDeviceClients = ConcurrentHashMap<String, OkHttpClient>()
+
+    /**
+     * Each device gets its own connection pool so its keep-alive connections are
+     * reused for its own requests and evicted on their own schedule. The clients
+     * share everything else.
+     */
+    private fun clientFor(url: HttpUrl): OkHttpClient {
+        val key = "${url.host()}:${url.port()}"
+        return mDeviceClients[key] ?: mDeviceClients.putIfAbsent(key, mOkClient.newBuilder()
+                .connectionPool(ConnectionPool(MAX_IDLE_CONNECTIONS_PER_DEVICE,
+                        KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .build()) ?: mDeviceClients[key]!!
+    }
+
     override fun stop() {
-        //nothing
+        mDeviceClients.values.forEach { it.connectionPool().evictAll() }
+        mDeviceClients.clear()
     }
 
     override fun getConfiguration(): OkStreamClientConfig = mConfiguration
@@ -57,6 +79,10 @@ constructor(
                     configuration.getUserAgentValue(message.udaMajorVersion, message.udaMinorVersion))
         }
         for ((key,value) in message.headers.entries) {
+            if (key.equals("Accept-Encoding", true)) {
+                //okhttp asks for gzip and undoes it itself, but only if we leave this alone
+                continue
+            }
             for (v in value) {
                 if (log.isLoggable(Level.FINE)) {
                     log.fine("Setting header '$key': $v")
@@ -64,7 +90,8 @@ constructor(
                 builder.addHeader(key, v)
             }
         }
-        return mOkClient.newCall(builder.build())
+        val request = builder.build()
+        return clientFor(request.url()).newCall(request)
     }
 
     private fun createRequestBody(message: StreamRequestMessage): RequestBody? {
@@ -106,9 +133,10 @@ constructor(
             if (log.isLoggable(Level.FINE)) {
                 log.fine("Sending HTTP request: $message")
             }
+            val start = System.nanoTime()
             return@Callable request.execute().use { response ->
                 if (response.isSuccessful) {
-                    createResponse(response)
+                    createResponse(response, start)
                 } else {
                     log.warning("Unsuccessful HTTP response: $response")
                     null
@@ -123,7 +151,7 @@ constructor(
 
     override fun logExecutionException(t: Throwable?): Boolean = true
 
-    private fun createResponse(response: Response): StreamResponseMessage {
+    private fun createResponse(response: Response, start: Long): StreamResponseMessage {
         // Status
         val responseOperation = UpnpResponse(response.code(), response.message())
 
@@ -143,30 +171,34 @@ constructor(
         responseMessage.headers = headers
 
         // Body
-        val bytes = response.body()?.bytes()
-        if (bytes != null && bytes.isNotEmpty() && responseMessage.isContentTypeMissingOrText) {
-
-            if (log.isLoggable(Level.FINE)) {
-                log.fine("Response contains textual entity body, converting then setting string on message")
-            }
-            try {
-                responseMessage.setBodyCharacters(bytes)
-            } catch (ex: UnsupportedEncodingException) {
-                throw RuntimeException("Unsupported character encoding: " + ex, ex)
-            }
-
-        } else if (bytes != null && bytes.isNotEmpty()) {
-
-            if (log.isLoggable(Level.FINE)) {
-                log.fine("Response contains binary entity body, setting bytes on message")
+        //okhttp has already undone any gzip. Text is decoded once with the response
+        //charset, or utf-8 and any bom, the same as cling would but without handing it bytes
+        val body = response.body()
+        var bodyLength = 0
+        if (body != null && responseMessage.isContentTypeMissingOrText) {
+            val text = body.string()
+            bodyLength = text.length
+            if (text.isNotEmpty()) {
+                if (log.isLoggable(Level.FINE)) {
+                    log.fine("Response contains textual entity body, setting string on message")
+                }
+                responseMessage.setBody(UpnpMessage.BodyType.STRING, text)
             }
-            responseMessage.setBody(UpnpMessage.BodyType.BYTES, bytes)
-
-        } else {
-            if (log.isLoggable(Level.FINE)) {
-                log.fine("Response did not contain entity body")
+        } else if (body != null) {
+            val bytes = body.bytes()
+            bodyLength = bytes.size
+            if (bytes.isNotEmpty()) {
+                if (log.isLoggable(Level.FINE)) {
+                    log.fine("Response contains binary entity body, setting bytes on message")
+                }
+                responseMessage.setBody(UpnpMessage.BodyType.BYTES, bytes)
             }
         }
+        if (bodyLength == 0 && log.isLoggable(Level.FINE)) {
+            log.fine("Response did not contain entity body")
+        }
+
+        reportTiming(response, start, bodyLength)
 
         if (log.isLoggable(Level.FINE)) {
             log.fine("Response message complete: " + responseMessage)
@@ -174,4 +206,27 @@ constructor(
         return responseMessage
     }
 
-}
\ No newline at end of file
+    private fun reportTiming(response: Response, start: Long, bodyLength: Int) {
+        val listener = configuration.timingListener
+        if (listener == null && !log.isLoggable(Level.FINE)) {
+            return
+        }
+        //the network response still has the headers as sent
+        val network = response.networkResponse()
+        val timing = OkStreamTiming(
+                url = response.request().url().toString(),
+                soapAction = response.request().header("SOAPACTION"),
+                code = response.code(),
+                waitMillis = response.receivedResponseAtMillis() - response.sentRequestAtMillis(),
+                totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                wireBytes = network?.header("Content-Length")?.toLongOrNull() ?: -1L,
+                bodyLength = bodyLength,
+                gzip = "gzip".equals(network?.header("Content-Encoding"), true)
+        )
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Request timing: $timing")
+        }
+        listener?.invoke(timing)
+    }
+
+}
@@ -5,11 +5,34 @@ import org.fourthline.cling.model.ServerClientTokens
 import org.fourthline.cling.transport.spi.AbstractStreamClientConfiguration
 import java.util.concurrent.ExecutorService
 
+/**
+ * How one request to a device went
+ *
+ * @param waitMillis from sending the request to receiving the response headers
+ * @param totalMillis from executing the call to having read the whole body
+ * @param wireBytes the response body as sent, before decompression, -1 if unknown
+ * @param bodyLength characters, or bytes for binary bodies, of the decoded body
+ */
+data class OkStreamTiming(
+        val url: String,
+        val soapAction: String?,
+        val code: Int,
+        val waitMillis: Long,
+        val totalMillis: Long,
+        val wireBytes: Long,
+        val bodyLength: Int,
+        val gzip: Boolean
+)
+
 /**
  * Created by drew on 8/5/17.
  */
 class OkStreamClientConfig(
-        executorService: ExecutorService
+        executorService: ExecutorService,
+        /**
+         * Called with the timing of every completed request, on the calling thread
+         */
+        val timingListener: ((OkStreamTiming) -> Unit)? = null
 ) : AbstractStreamClientConfiguration(executorService) {
 
     override fun getUserAgentValue(majorVersion: Int, minorVersion: Int): String {
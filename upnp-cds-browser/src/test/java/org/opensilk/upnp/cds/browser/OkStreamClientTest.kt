@@ -0,0 +1,117 @@
+package org.opensilk.upnp.cds.browser
+
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okio.Buffer
+import okio.GzipSink
+import okio.Okio
+import org.assertj.core.api.Assertions.assertThat
+import org.fourthline.cling.model.message.StreamRequestMessage
+import org.fourthline.cling.model.message.UpnpRequest
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Runs Browse sized responses through the client against a local server
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class)
+class OkStreamClientTest {
+
+    lateinit var mServer: MockWebServer
+    lateinit var mExecutor: ExecutorService
+    lateinit var mClient: OkStreamClient
+    val mTimings = CopyOnWriteArrayList<OkStreamTiming>()
+
+    @Before
+    fun setup() {
+        mServer = MockWebServer()
+        mServer.start()
+        mExecutor = Executors.newCachedThreadPool()
+        mClient = OkStreamClient(OkHttpClient(), OkStreamClientConfig(mExecutor, { mTimings.add(it) }))
+    }
+
+    @After
+    fun teardown() {
+        mClient.stop()
+        mExecutor.shutdown()
+        mServer.shutdown()
+    }
+
+    @Test
+    fun large_plain_response_is_read_whole() {
+        val body = browseResponse(BROWSE_ITEMS)
+        mServer.enqueue(MockResponse().setHeader("Content-Type", TEXT_XML).setBody(body))
+
+        val response = mClient.sendRequest(browseRequest())
+        assertThat(response.bodyString).isEqualTo(body)
+        assertThat(mTimings).hasSize(1)
+        assertThat(mTimings[0].gzip).isFalse()
+        assertThat(mTimings[0].bodyLength).isEqualTo(body.length)
+    }
+
+    @Test
+    fun large_gzip_response_is_negotiated_and_decoded() {
+        val body = browseResponse(BROWSE_ITEMS)
+        val gzipped = Buffer()
+        Okio.buffer(GzipSink(gzipped)).use { it.writeUtf8(body) }
+        val wireBytes = gzipped.size()
+        mServer.enqueue(MockResponse().setHeader("Content-Type", TEXT_XML)
+                .setHeader("Content-Encoding", "gzip").setBody(gzipped))
+
+        val response = mClient.sendRequest(browseRequest())
+        assertThat(mServer.takeRequest().getHeader("Accept-Encoding")).isEqualTo("gzip")
+        assertThat(response.bodyString).isEqualTo(body)
+        assertThat(mTimings[0].gzip).isTrue()
+        assertThat(mTimings[0].wireBytes).isEqualTo(wireBytes)
+        assertThat(mTimings[0].wireBytes).isLessThan(body.length.toLong())
+    }
+
+    @Test
+    fun requests_to_a_device_reuse_its_connection() {
+        mServer.enqueue(MockResponse().setHeader("Content-Type", TEXT_XML).setBody(browseResponse(1)))
+        mServer.enqueue(MockResponse().setHeader("Content-Type", TEXT_XML).setBody(browseResponse(1)))
+
+        mClient.sendRequest(browseRequest())
+        mClient.sendRequest(browseRequest())
+        assertThat(mServer.takeRequest().sequenceNumber).isEqualTo(0)
+        //second request on the same connection
+        assertThat(mServer.takeRequest().sequenceNumber).isEqualTo(1)
+    }
+
+    private fun browseRequest(): StreamRequestMessage {
+        val request = StreamRequestMessage(UpnpRequest.Method.POST,
+                mServer.url("/ctl/ContentDir").uri(), "<s:Envelope/>")
+        request.headers.add("SOAPACTION",
+                "\"urn:schemas-upnp-org:service:ContentDirectory:1#Browse\"")
+        return request
+    }
+
+    private fun browseResponse(items: Int): String {
+        val sb = StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><s:Envelope><s:Body>" +
+                "<u:BrowseResponse><Result>&lt;DIDL-Lite&gt;")
+        for (ii in 0 until items) {
+            sb.append("&lt;item id=\"64\$$ii\" parentID=\"64\"&gt;&lt;dc:title&gt;video.title.")
+                    .append(ii).append("&lt;/dc:title&gt;&lt;res protocolInfo=\"http-get:*:video/mp4:*\"&gt;")
+                    .append("http://10.0.0.2:8200/MediaItems/").append(ii)
+                    .append(".mp4&lt;/res&gt;&lt;/item&gt;")
+        }
+        sb.append("&lt;/DIDL-Lite&gt;</Result><NumberReturned>").append(items)
+                .append("</NumberReturned></u:BrowseResponse></s:Body></s:Envelope>")
+        return sb.toString()
+    }
+
+    companion object {
+        const val TEXT_XML = "text/xml; charset=\"utf-8\""
+        //a few megabytes once escaped
+        const val BROWSE_ITEMS = 20000
+    }
+}